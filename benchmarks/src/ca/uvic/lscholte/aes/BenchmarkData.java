@@ -0,0 +1,23 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.Random;
+
+/**
+ * Deterministic input data for the benchmarks
+ * @author lscholte
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() { }
+
+    /**
+     * @param length The number of bytes to generate
+     * @param seed The seed for the generator, so runs are repeatable
+     * @return An array of pseudo-random bytes
+     */
+    static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,41 @@
+package ca.uvic.lscholte.aes;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so that allocation
+ * rates are reported next to the timings
+ * @author lscholte
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() { }
+
+    /**
+     * @param args An optional regular expression selecting which benchmarks
+     * to run. All benchmarks are run if it is omitted
+     * @throws RunnerException If JMH fails to run the benchmarks
+     */
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder options = new OptionsBuilder();
+        options.include(args.length > 0 ? args[0] : ".*Benchmark.*")
+                .addProfiler(GCProfiler.class);
+        
+        //The forked JVMs need the incubator module for the vector engine,
+        //which only exists from Java 16
+        if (javaVersion() >= 16) {
+            options.jvmArgsAppend("--add-modules=jdk.incubator.vector");
+        }
+        new Runner(options.build()).run();
+    }
+    
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return version.startsWith("1.") ?
+                Integer.parseInt(version.substring(2)) :
+                Integer.parseInt(version);
+    }
+}
@@ -0,0 +1,87 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures single block encryption and decryption through each of the
+ * public AESCipher entry points
+ * @author lscholte
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockBenchmark {
+
+    @Param({ "TABLE", "BITSLICED", "REFERENCE" })
+    public AESCipher.Engine engine;
+
+    private AESCipher cipher;
+    private byte[] block;
+    private byte[] ciphertext;
+    private byte[] buffer;
+    private String hexBlock;
+    private String hexCiphertext;
+    private String hexBulk;
+
+    @Setup
+    public void setup() {
+        cipher = new AESCipher(BenchmarkData.random(32, 1), engine);
+        block = BenchmarkData.random(AESCipher.BLOCK_SIZE, 2);
+        ciphertext = cipher.encrypt(block);
+        buffer = block.clone();
+        hexBlock = Hex.encode(block);
+        hexCiphertext = Hex.encode(ciphertext);
+        hexBulk = Hex.encode(BenchmarkData.random(64 * AESCipher.BLOCK_SIZE, 5));
+    }
+
+    @Benchmark
+    public byte[] encryptBytes() {
+        return cipher.encrypt(block);
+    }
+
+    @Benchmark
+    public byte[] decryptBytes() {
+        return cipher.decrypt(ciphertext);
+    }
+
+    @Benchmark
+    public byte[] encryptInPlace() {
+        cipher.encryptBlock(buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] decryptInPlace() {
+        cipher.decryptBlock(buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public String encryptHex() {
+        return cipher.encrypt(hexBlock);
+    }
+
+    @Benchmark
+    public String decryptHex() {
+        return cipher.decrypt(hexCiphertext);
+    }
+
+    @Benchmark
+    public String encryptHex64Blocks() {
+        return cipher.encrypt(hexBulk);
+    }
+}
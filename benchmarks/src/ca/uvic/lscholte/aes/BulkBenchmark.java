@@ -0,0 +1,239 @@
+package ca.uvic.lscholte.aes;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures bulk throughput for each mode, alongside the same modes from
+ * javax.crypto as a baseline. Divide the size by the reported time to get
+ * bytes per microsecond
+ * @author lscholte
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkBenchmark {
+
+    @Param({ "1024", "65536", "16777216" })
+    public int size;
+
+    private AESCipher cipher;
+    private AESCipher bitsliced;
+    private AESCipher vector;
+    private byte[] iv;
+    private byte[] gcmIv;
+    private byte[] input;
+    private byte[] output;
+    private ByteBuffer directInput;
+    private ByteBuffer directOutput;
+    private ForkJoinPool sequentialPool;
+    private XTSMode xts;
+    private CMAC cmac;
+    private GCMSIVMode gcmSiv;
+
+    private SecretKeySpec jceKey;
+    private Cipher jceEcb;
+    private Cipher jceCtr;
+    private Cipher jceGcm;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        byte[] key = BenchmarkData.random(32, 1);
+        cipher = new AESCipher(key);
+        bitsliced = new AESCipher(key, AESCipher.Engine.BITSLICED);
+        vector = new AESCipher(key, AESCipher.Engine.VECTOR);
+        iv = BenchmarkData.random(AESCipher.BLOCK_SIZE, 2);
+        gcmIv = BenchmarkData.random(12, 3);
+        input = BenchmarkData.random(size, 4);
+        output = new byte[size + GCMMode.TAG_LENGTH];
+        directInput = ByteBuffer.allocateDirect(size);
+        directInput.put(input).flip();
+        directOutput = ByteBuffer.allocateDirect(size);
+        sequentialPool = new ForkJoinPool(1);
+        xts = new XTSMode(BenchmarkData.random(64, 5), 512);
+        cmac = new CMAC(new AESCipher(BenchmarkData.random(32, 6)));
+        gcmSiv = new GCMSIVMode(cipher);
+
+        jceKey = new SecretKeySpec(key, "AES");
+        jceEcb = Cipher.getInstance("AES/ECB/NoPadding");
+        jceEcb.init(Cipher.ENCRYPT_MODE, jceKey);
+        jceCtr = Cipher.getInstance("AES/CTR/NoPadding");
+        jceGcm = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    @TearDown
+    public void tearDown() {
+        sequentialPool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] ecbEncrypt() {
+        for (int offset = 0; offset < size; offset += AESCipher.BLOCK_SIZE) {
+            cipher.encryptBlock(input, offset, output, offset);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public byte[] ecbDecrypt() {
+        for (int offset = 0; offset < size; offset += AESCipher.BLOCK_SIZE) {
+            cipher.decryptBlock(input, offset, output, offset);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public byte[] ecbEncryptBitsliced() {
+        bitsliced.encryptBlocks(input, 0, output, 0, size / AESCipher.BLOCK_SIZE);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] ecbEncryptVector() {
+        vector.encryptBlocks(input, 0, output, 0, size / AESCipher.BLOCK_SIZE);
+        return output;
+    }
+
+    @Benchmark
+    public ByteBuffer ecbEncryptDirect() {
+        directInput.clear();
+        directOutput.clear();
+        cipher.encrypt(directInput, directOutput);
+        return directOutput;
+    }
+
+    @Benchmark
+    public byte[] ctrSequential() {
+        new CTRMode(cipher, iv, sequentialPool).update(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] ctrSequentialBitsliced() {
+        new CTRMode(bitsliced, iv, sequentialPool).update(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] ctrSequentialVector() {
+        new CTRMode(vector, iv, sequentialPool).update(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] ctrParallel() {
+        new CTRMode(cipher, iv).update(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] cbcEncrypt() throws GeneralSecurityException {
+        new CBCMode(cipher, iv, true, CBCMode.Padding.NONE).doFinal(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] cbcDecryptSequential() throws GeneralSecurityException {
+        new CBCMode(cipher, iv, false, CBCMode.Padding.NONE, sequentialPool).doFinal(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] cbcDecryptParallel() throws GeneralSecurityException {
+        new CBCMode(cipher, iv, false, CBCMode.Padding.NONE).doFinal(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] xtsEncrypt() {
+        xts.encrypt(0, input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] gcmEncrypt() throws AEADBadTagException {
+        nextGcmIv();
+        GCMMode gcm = new GCMMode(cipher, gcmIv, true);
+        int written = gcm.update(input, 0, size, output, 0);
+        gcm.doFinal(output, written);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] gcmSivEncrypt() {
+        //Nonce reuse is safe for GCM-SIV, apart from revealing repeated messages
+        gcmSiv.encrypt(gcmIv, iv, input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] cmac() {
+        cmac.update(input, 0, size);
+        return cmac.doFinal();
+    }
+
+    @Benchmark
+    public byte[] ctrThenCmac() {
+        new CTRMode(cipher, iv, sequentialPool).update(input, 0, size, output, 0);
+        cmac.update(output, 0, size);
+        cmac.doFinal(output, size);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] ctrCmacSinglePass() {
+        cmac.encryptThenMac(new CTRMode(cipher, iv, sequentialPool), input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] jceEcbEncrypt() throws GeneralSecurityException {
+        jceEcb.doFinal(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] jceCtr() throws GeneralSecurityException {
+        jceCtr.init(Cipher.ENCRYPT_MODE, jceKey, new IvParameterSpec(iv));
+        jceCtr.doFinal(input, 0, size, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] jceGcmEncrypt() throws GeneralSecurityException {
+        //The provider refuses to encrypt twice with the same key and IV
+        nextGcmIv();
+        jceGcm.init(Cipher.ENCRYPT_MODE, jceKey, new GCMParameterSpec(GCMMode.TAG_LENGTH * 8, gcmIv));
+        jceGcm.doFinal(input, 0, size, output, 0);
+        return output;
+    }
+
+    private void nextGcmIv() {
+        int i = gcmIv.length - 1;
+        while (i >= 0 && ++gcmIv[i] == 0) {
+            --i;
+        }
+    }
+}
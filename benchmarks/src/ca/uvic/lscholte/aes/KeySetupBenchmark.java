@@ -0,0 +1,80 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of turning a raw key into something that can encrypt
+ * @author lscholte
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeySetupBenchmark {
+
+    private static final int BATCH = 4096;
+
+    private byte[] key;
+    private byte[] keys;
+    private KeyScheduleCache cache;
+
+    @Setup
+    public void setup() {
+        key = BenchmarkData.random(32, 1);
+        keys = BenchmarkData.random(BATCH * 32, 2);
+        cache = new KeyScheduleCache(16);
+        cache.acquire(key).close();
+    }
+
+    @Benchmark
+    public AESCipher construct() {
+        return new AESCipher(key);
+    }
+
+    @Benchmark
+    public KeySchedule expand() {
+        return KeySchedule.expand(key);
+    }
+
+    @Benchmark
+    public AESCipher cachedConstruct() {
+        try (KeyScheduleCache.Lease lease = cache.acquire(key)) {
+            return lease.cipher();
+        }
+    }
+
+    /**
+     * Expands a whole batch of keys, so the score is divided by the batch
+     * size to compare with a single expansion
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public KeyScheduleArena arena() {
+        return KeyScheduleArena.expand(keys, 0, BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public AESCipher[] constructBatch() {
+        AESCipher[] ciphers = new AESCipher[BATCH];
+        byte[] k = new byte[32];
+        for (int i = 0; i < BATCH; ++i) {
+            System.arraycopy(keys, i * 32, k, 0, 32);
+            ciphers[i] = new AESCipher(k);
+        }
+        return ciphers;
+    }
+}
@@ -0,0 +1,97 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the individual steps in GaloisField and AESAlgorithms that the
+ * reference engine is built from
+ * @author lscholte
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrimitivesBenchmark {
+
+    private byte a;
+    private byte b;
+    private byte[] input;
+    private byte[][] state;
+    private byte[][] roundKey;
+
+    @Setup
+    public void setup() {
+        a = (byte) 0x57;
+        b = (byte) 0x83;
+        input = BenchmarkData.random(AESCipher.BLOCK_SIZE, 3);
+        state = AESAlgorithms.generateState(input);
+        roundKey = AESAlgorithms.generateState(BenchmarkData.random(AESCipher.BLOCK_SIZE, 4));
+    }
+
+    @Benchmark
+    public byte multiply() {
+        return GaloisField.multiply(a, b);
+    }
+
+    @Benchmark
+    public byte multiplyLoop() {
+        return GaloisField.multiplyLoop(a, b);
+    }
+
+    @Benchmark
+    public byte mul3() {
+        return GaloisField.mul3(a);
+    }
+
+    @Benchmark
+    public byte[][] generateState() {
+        return AESAlgorithms.generateState(input);
+    }
+
+    @Benchmark
+    public byte[][] subBytes() {
+        return AESAlgorithms.subBytes(state, false);
+    }
+
+    @Benchmark
+    public byte[][] inverseSubBytes() {
+        return AESAlgorithms.subBytes(state, true);
+    }
+
+    @Benchmark
+    public byte[][] shiftRows() {
+        return AESAlgorithms.shiftRows(state, false);
+    }
+
+    @Benchmark
+    public byte[][] mixColumns() {
+        return AESAlgorithms.mixColumns(state);
+    }
+
+    @Benchmark
+    public byte[][] inverseMixColumns() {
+        return AESAlgorithms.inverseMixColumns(state);
+    }
+
+    @Benchmark
+    public byte[][] addRoundKey() {
+        return AESAlgorithms.addRoundKey(state, roundKey);
+    }
+
+    @Benchmark
+    public byte[] generateOutput() {
+        return AESAlgorithms.generateOutput(state);
+    }
+}
@@ -0,0 +1,100 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of one cipher shared by every thread, against the
+ * same work on a single thread. Since a shared cipher takes no locks and
+ * writes no shared memory, the throughput with all threads should be close
+ * to the single thread figure times the number of cores
+ * @author lscholte
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedCipherBenchmark {
+
+    /**
+     * The cipher and key, shared by all threads
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        @Param({ "TABLE", "BITSLICED" })
+        public AESCipher.Engine engine;
+
+        AESCipher cipher;
+        byte[] iv;
+
+        @Setup
+        public void setup() {
+            cipher = new AESCipher(BenchmarkData.random(32, 1), engine);
+            iv = BenchmarkData.random(AESCipher.BLOCK_SIZE, 2);
+        }
+    }
+
+    /**
+     * The buffers of a single thread
+     */
+    @State(Scope.Thread)
+    public static class Buffers {
+
+        byte[] input;
+        byte[] output;
+
+        @Setup
+        public void setup() {
+            input = BenchmarkData.random(4096, 3);
+            output = new byte[input.length];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] ecbOneThread(Shared shared, Buffers buffers) {
+        return ecb(shared, buffers);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] ecbAllThreads(Shared shared, Buffers buffers) {
+        return ecb(shared, buffers);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] ctrOneThread(Shared shared, Buffers buffers) {
+        return ctr(shared, buffers);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] ctrAllThreads(Shared shared, Buffers buffers) {
+        return ctr(shared, buffers);
+    }
+
+    private static byte[] ecb(Shared shared, Buffers buffers) {
+        shared.cipher.encryptBlocks(buffers.input, 0, buffers.output, 0, buffers.input.length / AESCipher.BLOCK_SIZE);
+        return buffers.output;
+    }
+
+    private static byte[] ctr(Shared shared, Buffers buffers) {
+        //A new mode per operation, as a request handler would create
+        new CTRMode(shared.cipher, shared.iv).update(buffers.input, 0, buffers.input.length, buffers.output, 0);
+        return buffers.output;
+    }
+}
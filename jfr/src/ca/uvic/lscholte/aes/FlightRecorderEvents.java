@@ -0,0 +1,98 @@
+package ca.uvic.lscholte.aes;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder events emitted by {@link Instrumentation}.
+ *
+ * This class needs the jdk.jfr module and is compiled from its own source
+ * root. Instrumentation loads it by name the first time an instrumented
+ * cipher starts an operation, and emits no events when it is not available.
+ * @author lscholte
+ */
+final class FlightRecorderEvents implements FlightRecorder {
+
+    FlightRecorderEvents() { }
+
+    @Override
+    public Object beginKeySetup() {
+        KeySetupEvent event = new KeySetupEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endKeySetup(Object begun, long cipherId, String engine) {
+        KeySetupEvent event = (KeySetupEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.cipherId = cipherId;
+            event.engine = engine;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginBulk() {
+        BulkOperationEvent event = new BulkOperationEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endBulk(Object begun, long cipherId, String mode, boolean decrypting, long bytes) {
+        BulkOperationEvent event = (BulkOperationEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.cipherId = cipherId;
+            event.mode = mode;
+            event.decrypting = decrypting;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Name("ca.uvic.lscholte.aes.KeySetup")
+    @Label("AES Key Setup")
+    @Category("AES")
+    @Description("Expansion of an AES-256 key into round keys")
+    static final class KeySetupEvent extends Event {
+
+        @Label("Cipher Id")
+        long cipherId;
+
+        @Label("Engine")
+        String engine;
+    }
+
+    @Name("ca.uvic.lscholte.aes.BulkOperation")
+    @Label("AES Bulk Operation")
+    @Category("AES")
+    @Description("A single call into one of the AES modes")
+    static final class BulkOperationEvent extends Event {
+
+        @Label("Cipher Id")
+        long cipherId;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Decrypting")
+        boolean decrypting;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -100,31 +100,31 @@ public final class AESAlgorithms {
         for (int j = 0; j < NB; ++j) {
             
             newState[0][j] = GaloisField.add(
-                    GaloisField.multiply(state[0][j], (byte) 2),
-                    GaloisField.multiply(state[1][j], (byte) 3),
+                    GaloisField.mul2(state[0][j]),
+                    GaloisField.mul3(state[1][j]),
                     state[2][j],
                     state[3][j]
             );
             
             newState[1][j] = GaloisField.add(
                     state[0][j],
-                    GaloisField.multiply(state[1][j], (byte) 2),
-                    GaloisField.multiply(state[2][j], (byte) 3),
+                    GaloisField.mul2(state[1][j]),
+                    GaloisField.mul3(state[2][j]),
                     state[3][j]
             );
             
             newState[2][j] = GaloisField.add(
                     state[0][j],
                     state[1][j],
-                    GaloisField.multiply(state[2][j], (byte) 2),
-                    GaloisField.multiply(state[3][j], (byte) 3)
+                    GaloisField.mul2(state[2][j]),
+                    GaloisField.mul3(state[3][j])
             );
             
             newState[3][j] = GaloisField.add(
-                    GaloisField.multiply(state[0][j], (byte) 3),
+                    GaloisField.mul3(state[0][j]),
                     state[1][j],
                     state[2][j],
-                    GaloisField.multiply(state[3][j], (byte) 2)
+                    GaloisField.mul2(state[3][j])
             );            
         }
         return newState;
@@ -142,31 +142,31 @@ public final class AESAlgorithms {
         for (int j = 0; j < NB; ++j) {
             
             newState[0][j] = GaloisField.add(
-                    GaloisField.multiply(state[0][j], (byte) 14),
-                    GaloisField.multiply(state[1][j], (byte) 11),
-                    GaloisField.multiply(state[2][j], (byte) 13),
-                    GaloisField.multiply(state[3][j], (byte) 9)
+                    GaloisField.mul14(state[0][j]),
+                    GaloisField.mul11(state[1][j]),
+                    GaloisField.mul13(state[2][j]),
+                    GaloisField.mul9(state[3][j])
             );
             
             newState[1][j] = GaloisField.add(
-                    GaloisField.multiply(state[0][j], (byte) 9),
-                    GaloisField.multiply(state[1][j], (byte) 14),
-                    GaloisField.multiply(state[2][j], (byte) 11),
-                    GaloisField.multiply(state[3][j], (byte) 13)
+                    GaloisField.mul9(state[0][j]),
+                    GaloisField.mul14(state[1][j]),
+                    GaloisField.mul11(state[2][j]),
+                    GaloisField.mul13(state[3][j])
             );
             
             newState[2][j] = GaloisField.add(
-                    GaloisField.multiply(state[0][j], (byte) 13),
-                    GaloisField.multiply(state[1][j], (byte) 9),
-                    GaloisField.multiply(state[2][j], (byte) 14),
-                    GaloisField.multiply(state[3][j], (byte) 11)
+                    GaloisField.mul13(state[0][j]),
+                    GaloisField.mul9(state[1][j]),
+                    GaloisField.mul14(state[2][j]),
+                    GaloisField.mul11(state[3][j])
             );
             
             newState[3][j] = GaloisField.add(
-                    GaloisField.multiply(state[0][j], (byte) 11),
-                    GaloisField.multiply(state[1][j], (byte) 13),
-                    GaloisField.multiply(state[2][j], (byte) 9),
-                    GaloisField.multiply(state[3][j], (byte) 14)
+                    GaloisField.mul11(state[0][j]),
+                    GaloisField.mul13(state[1][j]),
+                    GaloisField.mul9(state[2][j]),
+                    GaloisField.mul14(state[3][j])
             );            
         }
         return newState;
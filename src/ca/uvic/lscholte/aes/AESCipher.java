@@ -1,28 +1,132 @@
 package ca.uvic.lscholte.aes;
 
-import static ca.uvic.lscholte.aes.AESConstants.NB;
-import static ca.uvic.lscholte.aes.AESConstants.NR;
-import javax.xml.bind.DatatypeConverter;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 
 /**
  * Provides functionality for encrypting and decrypting data using AES-256
+ *
+ * An AESCipher holds nothing but its expanded key and keeps no state between
+ * calls, so a single instance may be shared by any number of threads without
+ * locking. Working memory comes from the calling thread. The modes built on
+ * top of a cipher, such as {@link CTRMode} and {@link CBCMode}, carry the
+ * state of one message; they are cheap to create, and each thread should
+ * create its own from the shared cipher.
  * 
  * @author lscholte
  */
 public final class AESCipher {
 
-    private final byte[][][] roundKeys;
+    /**
+     * The available implementations of the AES-256 block transformation.
+     * All engines produce identical output
+     */
+    public enum Engine {
+        /**
+         * Follows FIPS-197 step by step on a 2D state array. Slow, but easy
+         * to compare against the specification
+         */
+        REFERENCE,
+
+        /**
+         * Keeps the state in four 32-bit words and uses precomputed lookup
+         * tables that combine SubBytes, ShiftRows and MixColumns
+         */
+        TABLE,
+
+        /**
+         * Processes four blocks at a time as bitsliced 64-bit words with no
+         * table lookups, so the running time does not depend on the key or
+         * the data. Fastest when given many blocks at once
+         */
+        BITSLICED,
+
+        /**
+         * Processes as many blocks at once as fit in a vector register using
+         * the JDK Vector API. This needs the jdk.incubator.vector module and
+         * the classes from the vector source root; when either is missing the
+         * TABLE engine is used instead
+         */
+        VECTOR
+    }
+
+    /**
+     * The number of bytes in a single block
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * The constructor of the vector engine, or null if it could not be
+     * loaded. It is looked up by name so that this class still loads on
+     * runtimes without the Vector API
+     */
+    private static final Constructor<? extends AESEngine> VECTOR_ENGINE = findVectorEngine();
+
+    private final AESEngine engine;
+    
+    /**
+     * The counts for this cipher, or null if it is not instrumented
+     */
+    final Instrumentation.Counters counters;
     
     /**
      * Initializes an AESCipher with a 32-byte (256-bit) key
      * @param key An array of bytes of length 32 to use as the key
      */
     public AESCipher(byte[] key) {
-        if (key.length != 32) {
-            throw new IllegalArgumentException("The key must be 32 bytes long");
-        }
-        byte[][] formattedKey = KeyExpansion.formatKey(key);
-        roundKeys = KeyExpansion.generateRoundKeys(formattedKey);
+        this(key, Engine.TABLE);
+    }
+    
+    /**
+     * Initializes an AESCipher with a 32-byte (256-bit) key
+     * @param key An array of bytes of length 32 to use as the key
+     * @param engine The implementation to use for encrypting and decrypting
+     */
+    public AESCipher(byte[] key, Engine engine) {
+        counters = Instrumentation.newCounters();
+        Instrumentation.Span span = Instrumentation.beginKeySetup(counters);
+        //The bitsliced engine expands the key itself so that key setup does
+        //not use the S-box table either
+        this.engine = engine == Engine.BITSLICED ?
+                new BitslicedEngine(checkKey(key)) :
+                create(expand(key), engine);
+        Instrumentation.endKeySetup(span, counters, engine.name());
+    }
+    
+    /**
+     * Initializes an AESCipher with a key that has already been expanded,
+     * for example one leased from a {@link KeyScheduleCache}
+     * @param schedule The expanded key
+     */
+    public AESCipher(KeySchedule schedule) {
+        this(schedule, Engine.TABLE);
+    }
+    
+    /**
+     * Initializes an AESCipher with a key that has already been expanded
+     * @param schedule The expanded key
+     * @param engine The implementation to use for encrypting and decrypting
+     */
+    public AESCipher(KeySchedule schedule, Engine engine) {
+        this(schedule, engine, Instrumentation.newCounters());
+    }
+    
+    private AESCipher(KeySchedule schedule, Engine engine, Instrumentation.Counters counters) {
+        this.engine = create(schedule, engine);
+        this.counters = counters;
+    }
+    
+    /**
+     * Creates a cipher that is never instrumented, for short-lived keys such
+     * as the per-message keys of {@link GCMSIVMode} whose work is already
+     * counted by the cipher that derived them
+     * @param schedule The expanded key
+     * @param engine The implementation to use for encrypting and decrypting
+     * @return A cipher that records nothing
+     */
+    static AESCipher uninstrumented(KeySchedule schedule, Engine engine) {
+        return new AESCipher(schedule, engine, null);
     }
     
     /**
@@ -31,7 +135,17 @@ public final class AESCipher {
      * to use as the key
      */
     public AESCipher(String key) {
-        this(DatatypeConverter.parseHexBinary(key));
+        this(Hex.decode(key));
+    }
+    
+    /**
+     * Initializes an AESCipher with a 32-byte (256-bit) key.
+     * @param key A string of length 64 containing only hexadecimal characters
+     * to use as the key
+     * @param engine The implementation to use for encrypting and decrypting
+     */
+    public AESCipher(String key, Engine engine) {
+        this(Hex.decode(key), engine);
     }
     
     /**
@@ -40,7 +154,11 @@ public final class AESCipher {
      * @return The encrypted array of bytes of length 16
      */
     public byte[] encrypt(byte[] input) {        
-        return cipher(input, false);
+        checkLength(input);
+        byte[] output = new byte[BLOCK_SIZE];
+        engine.encryptBlock(input, 0, output, 0);
+        countEncrypted(1);
+        return output;
     }
     
     /**
@@ -49,68 +167,329 @@ public final class AESCipher {
      * @return The decrypted array of bytes of length 16
      */
     public byte[] decrypt(byte[] input) {
-        return cipher(input, true);
+        checkLength(input);
+        byte[] output = new byte[BLOCK_SIZE];
+        engine.decryptBlock(input, 0, output, 0);
+        countDecrypted(1);
+        return output;
     }
     
     /**
-     * Encrypts the input data using AES-256
-     * @param input A string of length 32 of hexadecimal characters (16 bytes)
-     * @return The encrypted string of length 16 of hexadecimal characters
+     * Encrypts a single block using AES-256 without allocating. The input
+     * and output may overlap
+     * @param in The array containing the 16 bytes to encrypt
+     * @param inOff The offset of the first byte to encrypt
+     * @param out The array that receives the 16 encrypted bytes
+     * @param outOff The offset at which to write the encrypted bytes
+     */
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        checkBounds(in, inOff);
+        checkBounds(out, outOff);
+        engine.encryptBlock(in, inOff, out, outOff);
+        countEncrypted(1);
+    }
+    
+    /**
+     * Decrypts a single block using AES-256 without allocating. The input
+     * and output may overlap
+     * @param in The array containing the 16 bytes to decrypt
+     * @param inOff The offset of the first byte to decrypt
+     * @param out The array that receives the 16 decrypted bytes
+     * @param outOff The offset at which to write the decrypted bytes
+     */
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        checkBounds(in, inOff);
+        checkBounds(out, outOff);
+        engine.decryptBlock(in, inOff, out, outOff);
+        countDecrypted(1);
+    }
+    
+    /**
+     * Encrypts a single block in place using AES-256
+     * @param buffer The array containing the 16 bytes to encrypt
+     * @param offset The offset of the first byte to encrypt
+     */
+    public void encryptBlock(byte[] buffer, int offset) {
+        encryptBlock(buffer, offset, buffer, offset);
+    }
+    
+    /**
+     * Decrypts a single block in place using AES-256
+     * @param buffer The array containing the 16 bytes to decrypt
+     * @param offset The offset of the first byte to decrypt
+     */
+    public void decryptBlock(byte[] buffer, int offset) {
+        decryptBlock(buffer, offset, buffer, offset);
+    }
+    
+    /**
+     * Encrypts consecutive blocks independently of each other (ECB) using
+     * AES-256. Handing over many blocks at once lets the bitsliced engine
+     * work on several of them in parallel. The input and output may be the
+     * same region of the same array
+     * @param in The array containing the blocks to encrypt
+     * @param inOff The offset of the first byte to encrypt
+     * @param out The array that receives the encrypted blocks
+     * @param outOff The offset at which to write the encrypted bytes
+     * @param blocks The number of 16-byte blocks to encrypt
+     */
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        checkBounds(in, inOff, blocks);
+        checkBounds(out, outOff, blocks);
+        engine.encryptBlocks(in, inOff, out, outOff, blocks);
+        countEncrypted(blocks);
+    }
+    
+    /**
+     * Decrypts consecutive blocks independently of each other (ECB) using
+     * AES-256. The input and output may be the same region of the same array
+     * @param in The array containing the blocks to decrypt
+     * @param inOff The offset of the first byte to decrypt
+     * @param out The array that receives the decrypted blocks
+     * @param outOff The offset at which to write the decrypted bytes
+     * @param blocks The number of 16-byte blocks to decrypt
+     */
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        checkBounds(in, inOff, blocks);
+        checkBounds(out, outOff, blocks);
+        engine.decryptBlocks(in, inOff, out, outOff, blocks);
+        countDecrypted(blocks);
+    }
+    
+    /**
+     * Encrypts every block remaining in src using AES-256 and writes the
+     * result to dst. Both heap and direct buffers are supported, and the
+     * positions of both buffers are advanced past the processed bytes. The
+     * two buffers may share the same region of memory
+     * @param src The buffer to encrypt, which must have a multiple of 16
+     * bytes remaining
+     * @param dst The buffer that receives the encrypted bytes, which must
+     * have at least as many bytes remaining as src
+     * @return The number of bytes encrypted
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst) {
+        return process(src, dst, false);
+    }
+    
+    /**
+     * Decrypts every block remaining in src using AES-256 and writes the
+     * result to dst. Both heap and direct buffers are supported, and the
+     * positions of both buffers are advanced past the processed bytes. The
+     * two buffers may share the same region of memory
+     * @param src The buffer to decrypt, which must have a multiple of 16
+     * bytes remaining
+     * @param dst The buffer that receives the decrypted bytes, which must
+     * have at least as many bytes remaining as src
+     * @return The number of bytes decrypted
+     */
+    public int decrypt(ByteBuffer src, ByteBuffer dst) {
+        return process(src, dst, true);
+    }
+    
+    /**
+     * Encrypts the input data using AES-256. Each block is encrypted
+     * independently
+     * @param input A string of hexadecimal characters whose length is a
+     * multiple of 32 (16 bytes per block)
+     * @return The encrypted string of hexadecimal characters, which is the
+     * same length as the input
      */
     public String encrypt(String input) {
-        byte[] data = cipher(DatatypeConverter.parseHexBinary(input), false);
-        return DatatypeConverter.printHexBinary(data);
+        return processHex(input, false);
     }
     
     /**
-     * Decrypts the input data using AES-256
-     * @param input A string of length 32 of hexadecimal characters (16 bytes)
-     * @return The decrypted string of length 16 of hexadecimal characters
+     * Decrypts the input data using AES-256. Each block is decrypted
+     * independently
+     * @param input A string of hexadecimal characters whose length is a
+     * multiple of 32 (16 bytes per block)
+     * @return The decrypted string of hexadecimal characters, which is the
+     * same length as the input
      */
     public String decrypt(String input) {
-        byte[] data = cipher(DatatypeConverter.parseHexBinary(input), true);
-        return DatatypeConverter.printHexBinary(data);
+        return processHex(input, true);
     }
+    
     /**
-     * The algorithm for encrypting/decrypting data
-     * @param input An array of bytes of length 16
-     * @param inverse True if the input should be decrypted. False if the input
-     * should be encrypted
-     * @return The encrypted or decrypted array of bytes of length 16
+     * Returns the counts of the work done by this cipher and the modes that
+     * use it. They are all zero unless {@link Instrumentation} was enabled
+     * when this cipher was created
+     * @return The counts for this cipher
      */
-    private byte[] cipher(byte[] input, boolean inverse) {
-        if(input.length != NB * NB) {
-            throw new IllegalArgumentException("The input must be " + (NB * NB) + " bytes long");
+    public CipherMetrics metrics() {
+        return Instrumentation.metrics(counters);
+    }
+    
+    /**
+     * Overwrites the key material held by the engine. The schedule this
+     * cipher was built from is not touched, and the cipher must not be used
+     * afterwards
+     */
+    void destroy() {
+        engine.destroy();
+    }
+    
+    private String processHex(CharSequence input, boolean inverse) {
+        if (input.length() % (2 * BLOCK_SIZE) != 0) {
+            throw new IllegalArgumentException("The input must be a multiple of " + (2 * BLOCK_SIZE) + " characters long");
         }
+        byte[] data = new byte[input.length() / 2];
+        Hex.decode(input, 0, input.length(), data, 0);
         
-        byte[][] state = AESAlgorithms.generateState(input);
-
-        int i, stepSize;
         if (inverse) {
-            i = NR;
-            stepSize = -1;
+            engine.decryptBlocks(data, 0, data, 0, data.length / BLOCK_SIZE);
+            countDecrypted(data.length / BLOCK_SIZE);
         }
         else {
-            i = 0;
-            stepSize = 1;
+            engine.encryptBlocks(data, 0, data, 0, data.length / BLOCK_SIZE);
+            countEncrypted(data.length / BLOCK_SIZE);
         }
-
-        state = AESAlgorithms.addRoundKey(state, roundKeys[i]);
         
-        for (i = i + stepSize; i > 0 && i < NR; i += stepSize) {
-            state = AESAlgorithms.subBytes(state, inverse);
-            state = AESAlgorithms.shiftRows(state, inverse);
-            state = AESAlgorithms.mixColumns(state, inverse);
-            state = inverse ?
-                    AESAlgorithms.addRoundKey(state, AESAlgorithms.inverseMixColumns(roundKeys[i])) :
-                    AESAlgorithms.addRoundKey(state, roundKeys[i]);
+        char[] output = new char[input.length()];
+        Hex.encode(data, 0, data.length, output, 0);
+        return new String(output);
+    }
+    
+    private int process(ByteBuffer src, ByteBuffer dst, boolean inverse) {
+        int length = src.remaining();
+        if (length % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("The input must be a multiple of " + BLOCK_SIZE + " bytes long");
+        }
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("The output must have room for " + length + " bytes");
+        }
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
         }
         
-        state = AESAlgorithms.subBytes(state, inverse);
-        state = AESAlgorithms.shiftRows(state, inverse);
-        state = AESAlgorithms.addRoundKey(state, roundKeys[i]);
+        int srcPos = src.position();
+        int dstPos = dst.position();
         
-        return AESAlgorithms.generateOutput(state);
+        if (src.hasArray() && dst.hasArray()) {
+            byte[] in = src.array();
+            byte[] out = dst.array();
+            int inOff = src.arrayOffset() + srcPos;
+            int outOff = dst.arrayOffset() + dstPos;
+            if (inverse) {
+                engine.decryptBlocks(in, inOff, out, outOff, length / BLOCK_SIZE);
+            }
+            else {
+                engine.encryptBlocks(in, inOff, out, outOff, length / BLOCK_SIZE);
+            }
+        }
+        else {
+            //Copy the input through the thread's scratch buffer a chunk at a
+            //time with bulk gets and puts, so that the engines that work on
+            //many blocks at once see whole batches
+            ByteBuffer in = src.duplicate();
+            ByteBuffer out = dst.duplicate();
+            byte[] batch = Scratch.get().keystream;
+            for (int done = 0; done < length; done += batch.length) {
+                int n = Math.min(batch.length, length - done);
+                in.get(batch, 0, n);
+                if (inverse) {
+                    engine.decryptBlocks(batch, 0, batch, 0, n / BLOCK_SIZE);
+                }
+                else {
+                    engine.encryptBlocks(batch, 0, batch, 0, n / BLOCK_SIZE);
+                }
+                out.put(batch, 0, n);
+            }
+        }
+        
+        if (inverse) {
+            countDecrypted(length / BLOCK_SIZE);
+        }
+        else {
+            countEncrypted(length / BLOCK_SIZE);
+        }
+        src.position(srcPos + length);
+        dst.position(dstPos + length);
+        return length;
+    }
+    
+    private void countEncrypted(int blocks) {
+        if (counters != null) {
+            counters.encrypted(blocks);
+        }
+    }
+    
+    private void countDecrypted(int blocks) {
+        if (counters != null) {
+            counters.decrypted(blocks);
+        }
+    }
+    
+    private static AESEngine create(KeySchedule schedule, Engine engine) {
+        switch (engine) {
+            case REFERENCE:
+                return new ReferenceEngine(schedule);
+            case BITSLICED:
+                return new BitslicedEngine(schedule);
+            case VECTOR:
+                return VECTOR_ENGINE == null ? new TableEngine(schedule) : newVectorEngine(schedule);
+            default:
+                return new TableEngine(schedule);
+        }
+    }
+    
+    /**
+     * @return True if {@link Engine#VECTOR} uses the Vector API rather than
+     * falling back to the table engine
+     */
+    static boolean isVectorAvailable() {
+        return VECTOR_ENGINE != null;
+    }
+    
+    private static Constructor<? extends AESEngine> findVectorEngine() {
+        try {
+            return Class.forName("ca.uvic.lscholte.aes.VectorEngine")
+                    .asSubclass(AESEngine.class)
+                    .getDeclaredConstructor(KeySchedule.class);
+        }
+        catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+            //Either the vector source root was not compiled in, or the
+            //jdk.incubator.vector module is not present at runtime
+            return null;
+        }
+    }
+    
+    private static AESEngine newVectorEngine(KeySchedule schedule) {
+        try {
+            return VECTOR_ENGINE.newInstance(schedule);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the vector engine", e);
+        }
+    }
+    
+    private static KeySchedule expand(byte[] key) {
+        return KeySchedule.expand(checkKey(key));
+    }
+    
+    private static byte[] checkKey(byte[] key) {
+        if (key.length != 32) {
+            throw new IllegalArgumentException("The key must be 32 bytes long");
+        }
+        return key;
+    }
+    
+    private static void checkLength(byte[] input) {
+        if (input.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("The input must be " + BLOCK_SIZE + " bytes long");
+        }
+    }
+    
+    private static void checkBounds(byte[] buffer, int offset) {
+        if (offset < 0 || buffer.length - offset < BLOCK_SIZE) {
+            throw new IllegalArgumentException("The buffer must contain " + BLOCK_SIZE + " bytes at offset " + offset);
+        }
+    }
+    
+    private static void checkBounds(byte[] buffer, int offset, int blocks) {
+        if (blocks < 0 || offset < 0 || offset > buffer.length || (buffer.length - offset) / BLOCK_SIZE < blocks) {
+            throw new IllegalArgumentException("The buffer must contain " + blocks + " blocks at offset " + offset);
+        }
     }
    
 }
@@ -0,0 +1,68 @@
+package ca.uvic.lscholte.aes;
+
+/**
+ * An implementation of the AES-256 block transformation for a single
+ * expanded key
+ * @author lscholte
+ */
+interface AESEngine {
+
+    /**
+     * Encrypts a single 16-byte block. The input and output regions may be
+     * the same region of the same array
+     * @param in The array containing the block to encrypt
+     * @param inOff The offset of the block within in
+     * @param out The array that receives the encrypted block
+     * @param outOff The offset within out at which to write
+     */
+    void encryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+    /**
+     * Decrypts a single 16-byte block. The input and output regions may be
+     * the same region of the same array
+     * @param in The array containing the block to decrypt
+     * @param inOff The offset of the block within in
+     * @param out The array that receives the decrypted block
+     * @param outOff The offset within out at which to write
+     */
+    void decryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+    /**
+     * Encrypts consecutive 16-byte blocks independently of each other.
+     * Engines that work on several blocks at once override this; the
+     * default encrypts one block at a time
+     * @param in The array containing the blocks to encrypt
+     * @param inOff The offset of the first block within in
+     * @param out The array that receives the encrypted blocks
+     * @param outOff The offset within out at which to write
+     * @param blocks The number of blocks
+     */
+    default void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        for (int i = 0; i < blocks; ++i) {
+            encryptBlock(in, inOff + i * 16, out, outOff + i * 16);
+        }
+    }
+
+    /**
+     * Decrypts consecutive 16-byte blocks independently of each other.
+     * Engines that work on several blocks at once override this; the
+     * default decrypts one block at a time
+     * @param in The array containing the blocks to decrypt
+     * @param inOff The offset of the first block within in
+     * @param out The array that receives the decrypted blocks
+     * @param outOff The offset within out at which to write
+     * @param blocks The number of blocks
+     */
+    default void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        for (int i = 0; i < blocks; ++i) {
+            decryptBlock(in, inOff + i * 16, out, outOff + i * 16);
+        }
+    }
+
+    /**
+     * Overwrites any round keys this engine copied out of its schedule. The
+     * default does nothing, for engines that only refer to the schedule
+     */
+    default void destroy() {
+    }
+}
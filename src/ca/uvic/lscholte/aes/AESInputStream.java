@@ -0,0 +1,236 @@
+package ca.uvic.lscholte.aes;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An input stream that encrypts or decrypts everything read from another
+ * stream with a {@link CTRMode} or {@link CBCMode}.
+ *
+ * Input is read from the underlying stream a buffer at a time, and the mode
+ * is called once per buffer, so it always works on many blocks at a time.
+ * Reads into an array with room for a whole buffer of output skip the output
+ * buffer. Each stream holds two arrays of about the buffer size and allocates
+ * nothing else while reading. As described for {@link AESOutputStream}, each
+ * thread also keeps up to {@link AESOutputStream#THREAD_SCRATCH_BYTES} bytes
+ * of working memory, which with a virtual thread per stream is part of the
+ * cost of each stream.
+ *
+ * The stream is guarded by a ReentrantLock rather than by synchronized, so a
+ * virtual thread that blocks reading from the underlying stream does not pin
+ * its carrier thread. The mode must not be used by anything else while the
+ * stream is open. The message is finished when the underlying stream ends,
+ * and a malformed message is reported as an IOException at that point.
+ * @author lscholte
+ */
+public final class AESInputStream extends FilterInputStream {
+
+    /**
+     * The buffer size used when none is given
+     */
+    public static final int DEFAULT_BUFFER_SIZE = AESOutputStream.DEFAULT_BUFFER_SIZE;
+
+    private final StreamMode mode;
+    private final byte[] input;
+    private final byte[] buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int position;
+    private int limit;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * Wraps a stream in counter mode with the default buffer size
+     * @param in The stream to read the input from
+     * @param mode The counter mode used to process the data
+     */
+    public AESInputStream(InputStream in, CTRMode mode) {
+        this(in, mode, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Wraps a stream in counter mode
+     * @param in The stream to read the input from
+     * @param mode The counter mode used to process the data
+     * @param bufferSize The largest number of bytes to read from the
+     * underlying stream at once, which must be a positive multiple of 16
+     */
+    public AESInputStream(InputStream in, CTRMode mode, int bufferSize) {
+        this(in, StreamMode.of(mode), bufferSize);
+    }
+
+    /**
+     * Wraps a stream in CBC mode with the default buffer size
+     * @param in The stream to read the input from
+     * @param mode The CBC mode used to process the data
+     */
+    public AESInputStream(InputStream in, CBCMode mode) {
+        this(in, mode, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Wraps a stream in CBC mode
+     * @param in The stream to read the input from
+     * @param mode The CBC mode used to process the data
+     * @param bufferSize The largest number of bytes to read from the
+     * underlying stream at once, which must be a positive multiple of 16
+     */
+    public AESInputStream(InputStream in, CBCMode mode, int bufferSize) {
+        this(in, StreamMode.of(mode), bufferSize);
+    }
+
+    private AESInputStream(InputStream in, StreamMode mode, int bufferSize) {
+        super(in);
+        AESOutputStream.checkBufferSize(bufferSize);
+        this.mode = mode;
+        this.input = new byte[bufferSize];
+        this.buffer = new byte[bufferSize + StreamMode.OVERHEAD];
+    }
+
+    @Override
+    public int read() throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || b.length - off < len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            if (position == limit && !finished && len >= buffer.length) {
+                //Process straight into the caller's array
+                int written = readInput(b, off);
+                if (written != 0) {
+                    return written;
+                }
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skips output by reading it, since skipping the underlying stream would
+     * lose the position in the mode
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            long skipped = 0;
+            while (skipped < n && (position < limit || fill())) {
+                int step = (int) Math.min(n - skipped, limit - position);
+                position += step;
+                skipped += step;
+            }
+            return skipped;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            return limit - position;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                in.close();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset is not supported");
+    }
+
+    /**
+     * Refills the output buffer until it has something in it or the message
+     * is finished
+     * @return False if there is no more output
+     */
+    private boolean fill() throws IOException {
+        while (position == limit) {
+            if (finished) {
+                return false;
+            }
+            limit = readInput(buffer, 0);
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Reads up to a buffer of input and processes it, or finishes the message
+     * if the underlying stream has ended
+     * @return The number of bytes written to out, which may be 0 if the mode
+     * is holding the input back
+     */
+    private int readInput(byte[] out, int outOff) throws IOException {
+        int read = in.read(input, 0, input.length);
+        if (read < 0) {
+            finished = true;
+            return mode.doFinal(out, outOff);
+        }
+        return mode.update(input, 0, read, out, outOff);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+    }
+}
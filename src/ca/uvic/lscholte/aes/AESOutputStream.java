@@ -0,0 +1,218 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An output stream that encrypts or decrypts everything written to it with
+ * a {@link CTRMode} or {@link CBCMode} before passing it on to another
+ * stream.
+ *
+ * Small writes are gathered in a buffer, and the mode is only called once
+ * the buffer is full, so it always works on many blocks at a time. Writes of
+ * at least a buffer's worth skip the buffer. Each stream holds two arrays of
+ * about the buffer size and allocates nothing else while writing.
+ *
+ * The modes also use a little working memory that belongs to the thread
+ * rather than the stream: up to {@link #THREAD_SCRATCH_BYTES} bytes, kept
+ * from the first time the thread uses a cipher until the thread ends. When
+ * each stream runs on a virtual thread of its own, that memory is part of
+ * the cost of the stream, so the budget per stream is about twice the
+ * buffer size plus THREAD_SCRATCH_BYTES. Streams that share a pool of
+ * threads share its working memory too.
+ *
+ * The stream is guarded by a ReentrantLock rather than by synchronized, so a
+ * virtual thread that blocks writing to the underlying stream does not pin
+ * its carrier thread. The mode must not be used by anything else while the
+ * stream is open. Closing the stream finishes the message, writing any
+ * padding.
+ * @author lscholte
+ */
+public final class AESOutputStream extends FilterOutputStream {
+
+    /**
+     * The buffer size used when none is given
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16 << 10;
+
+    /**
+     * An upper bound on the working memory kept by each thread that uses a
+     * cipher, in bytes
+     */
+    public static final int THREAD_SCRATCH_BYTES = Scratch.BYTES;
+
+    private final StreamMode mode;
+    private final byte[] buffer;
+    private final byte[] output;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int count;
+    private boolean closed;
+
+    /**
+     * Wraps a stream in counter mode with the default buffer size
+     * @param out The stream that receives the output
+     * @param mode The counter mode used to process the data
+     */
+    public AESOutputStream(OutputStream out, CTRMode mode) {
+        this(out, mode, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Wraps a stream in counter mode
+     * @param out The stream that receives the output
+     * @param mode The counter mode used to process the data
+     * @param bufferSize The number of bytes to gather before processing them,
+     * which must be a positive multiple of 16
+     */
+    public AESOutputStream(OutputStream out, CTRMode mode, int bufferSize) {
+        this(out, StreamMode.of(mode), bufferSize);
+    }
+
+    /**
+     * Wraps a stream in CBC mode with the default buffer size
+     * @param out The stream that receives the output
+     * @param mode The CBC mode used to process the data
+     */
+    public AESOutputStream(OutputStream out, CBCMode mode) {
+        this(out, mode, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Wraps a stream in CBC mode
+     * @param out The stream that receives the output
+     * @param mode The CBC mode used to process the data
+     * @param bufferSize The number of bytes to gather before processing them,
+     * which must be a positive multiple of 16
+     */
+    public AESOutputStream(OutputStream out, CBCMode mode, int bufferSize) {
+        this(out, StreamMode.of(mode), bufferSize);
+    }
+
+    private AESOutputStream(OutputStream out, StreamMode mode, int bufferSize) {
+        super(out);
+        checkBufferSize(bufferSize);
+        this.mode = mode;
+        this.buffer = new byte[bufferSize];
+        this.output = new byte[bufferSize + StreamMode.OVERHEAD];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            buffer[count++] = (byte) b;
+            if (count == buffer.length) {
+                processBuffer();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || b.length - off < len) {
+            throw new IndexOutOfBoundsException();
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            while (len > 0) {
+                if (count == 0 && len >= buffer.length) {
+                    //Process straight from the caller's array
+                    process(b, off, buffer.length);
+                    off += buffer.length;
+                    len -= buffer.length;
+                    continue;
+                }
+
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buffer.length) {
+                    processBuffer();
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Processes everything written so far that the mode can process without
+     * more input, and flushes the underlying stream. CBC mode holds back
+     * partial blocks until they are filled or the stream is closed
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            processBuffer();
+            out.flush();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finishes the message and closes the underlying stream
+     * @throws IOException If the underlying stream fails, or if the message
+     * is not a valid length or has invalid padding for the mode
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                processBuffer();
+                int written = mode.doFinal(output, 0);
+                out.write(output, 0, written);
+                out.flush();
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void processBuffer() throws IOException {
+        if (count > 0) {
+            process(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void process(byte[] in, int inOff, int len) throws IOException {
+        int written = mode.update(in, inOff, len, output, 0);
+        out.write(output, 0, written);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+    }
+
+    static void checkBufferSize(int bufferSize) {
+        if (bufferSize <= 0 || bufferSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("The buffer size must be a positive multiple of " + BLOCK_SIZE);
+        }
+    }
+}
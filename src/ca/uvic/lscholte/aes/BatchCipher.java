@@ -0,0 +1,499 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encrypts and decrypts many small inputs asynchronously by gathering them
+ * into batches. Each input is a whole number of blocks, which are processed
+ * independently of each other as by {@link AESCipher#encryptBlocks}.
+ *
+ * Requests wait in a bounded queue until one of the worker threads takes
+ * them. A worker takes as many waiting requests as fit in one batch, copies
+ * them into a single buffer and processes the whole buffer with one call to
+ * the cipher, which lets the BITSLICED and VECTOR engines work on many blocks
+ * at once. When the queue is full, {@link #encrypt(byte[])} and
+ * {@link #decrypt(byte[])} block until there is room, so callers are slowed
+ * down to the rate the workers can keep up with; {@link #tryEncrypt(byte[])}
+ * and {@link #tryDecrypt(byte[])} fail instead.
+ *
+ * The returned futures are completed on the worker threads. Callers that do
+ * more than a little work with the result should use the async variants of
+ * the CompletableFuture methods so that the workers are not held up.
+ * @author lscholte
+ */
+public final class BatchCipher implements AutoCloseable {
+
+    /**
+     * The default largest number of blocks processed in one batch
+     */
+    static final int DEFAULT_BATCH_BLOCKS = 256;
+
+    /**
+     * The default largest number of requests waiting in the queue
+     */
+    static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    private final AESCipher cipher;
+    private final int maximumBatchBlocks;
+    private final BlockingQueue<Request> queue;
+    private final Thread[] workers;
+    private volatile boolean closed;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedBlocks = new LongAdder();
+    private final LongAccumulator largestBatch = new LongAccumulator(Math::max, 0);
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * Starts one worker per available processor, with the default queue
+     * capacity and batch size
+     * @param cipher The cipher used for every request
+     */
+    public BatchCipher(AESCipher cipher) {
+        this(cipher, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_BLOCKS);
+    }
+
+    /**
+     * Starts the worker threads
+     * @param cipher The cipher used for every request
+     * @param threads The number of worker threads
+     * @param queueCapacity The largest number of requests that may wait to
+     * be processed before callers are made to wait
+     * @param maximumBatchBlocks The largest number of blocks processed in one
+     * call to the cipher. A single request larger than this is processed on
+     * its own
+     */
+    public BatchCipher(AESCipher cipher, int threads, int queueCapacity, int maximumBatchBlocks) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("There must be at least 1 thread");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("The queue capacity must be at least 1");
+        }
+        if (maximumBatchBlocks < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1 block");
+        }
+        this.cipher = cipher;
+        this.maximumBatchBlocks = maximumBatchBlocks;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread(new Worker(), "aes-batch-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues blocks to be encrypted, waiting for room in the queue if it is
+     * full
+     * @param input An array of bytes whose length is a multiple of 16. It
+     * must not be changed until the result is complete
+     * @return A future that completes with the encrypted blocks
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting for room in the queue
+     */
+    public CompletableFuture<byte[]> encrypt(byte[] input) throws InterruptedException {
+        return submit(input, false, true);
+    }
+
+    /**
+     * Queues blocks to be decrypted, waiting for room in the queue if it is
+     * full
+     * @param input An array of bytes whose length is a multiple of 16. It
+     * must not be changed until the result is complete
+     * @return A future that completes with the decrypted blocks
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting for room in the queue
+     */
+    public CompletableFuture<byte[]> decrypt(byte[] input) throws InterruptedException {
+        return submit(input, true, true);
+    }
+
+    /**
+     * Queues blocks to be encrypted if there is room in the queue
+     * @param input An array of bytes whose length is a multiple of 16. It
+     * must not be changed until the result is complete
+     * @return A future that completes with the encrypted blocks, or that has
+     * failed with a RejectedExecutionException if the queue is full
+     */
+    public CompletableFuture<byte[]> tryEncrypt(byte[] input) {
+        return trySubmit(input, false);
+    }
+
+    /**
+     * Queues blocks to be decrypted if there is room in the queue
+     * @param input An array of bytes whose length is a multiple of 16. It
+     * must not be changed until the result is complete
+     * @return A future that completes with the decrypted blocks, or that has
+     * failed with a RejectedExecutionException if the queue is full
+     */
+    public CompletableFuture<byte[]> tryDecrypt(byte[] input) {
+        return trySubmit(input, true);
+    }
+
+    /**
+     * Stops accepting requests, waits for the workers to finish every request
+     * already queued and then stops them. If the thread is interrupted while
+     * waiting, it carries on waiting and its interrupt status is set again
+     * before returning
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        //Anything queued after the workers stopped is failed rather than
+        //left waiting forever
+        List<Request> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (Request request : remaining) {
+            request.result.completeExceptionally(new RejectedExecutionException("The batch cipher is closed"));
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The number of requests waiting to be processed
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of requests that have been processed
+     */
+    public long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of batches that have been processed
+     */
+    public long batches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return The mean number of blocks per batch, or 0 if no batch has been
+     * processed yet
+     */
+    public double averageBatchBlocks() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) batchedBlocks.sum() / count;
+    }
+
+    /**
+     * @return The largest number of blocks processed in a single batch
+     */
+    public long largestBatchBlocks() {
+        return largestBatch.get();
+    }
+
+    /**
+     * Estimates a percentile of the time from queueing a request to
+     * completing it, to within about 12%
+     * @param percentile The percentile, from 0 to 100
+     * @return The latency in nanoseconds, or 0 if no request has been
+     * processed yet
+     */
+    public long latencyPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100");
+        }
+        return latencies.percentile(percentile);
+    }
+
+    private CompletableFuture<byte[]> submit(byte[] input, boolean inverse, boolean wait) throws InterruptedException {
+        checkLength(input);
+        Request request = new Request(input, inverse);
+        if (closed) {
+            throw new RejectedExecutionException("The batch cipher is closed");
+        }
+
+        if (wait) {
+            queue.put(request);
+        }
+        else if (!queue.offer(request)) {
+            request.result.completeExceptionally(new RejectedExecutionException("The queue is full"));
+            return request.result;
+        }
+
+        //The workers may have stopped between the check and the put
+        if (closed && queue.remove(request)) {
+            throw new RejectedExecutionException("The batch cipher is closed");
+        }
+        return request.result;
+    }
+
+    private CompletableFuture<byte[]> trySubmit(byte[] input, boolean inverse) {
+        try {
+            return submit(input, inverse, false);
+        }
+        catch (InterruptedException e) {
+            //Only thrown while waiting, which trySubmit never does
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void checkLength(byte[] input) {
+        if (input.length % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("The input must be a multiple of " + BLOCK_SIZE + " bytes long");
+        }
+    }
+
+    /**
+     * Blocks queued by a caller, along with the future for their result
+     */
+    private static final class Request {
+
+        final byte[] input;
+        final boolean inverse;
+        final long queued = System.nanoTime();
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Request(byte[] input, boolean inverse) {
+            this.input = input;
+            this.inverse = inverse;
+        }
+
+        int blocks() {
+            return input.length / BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Takes batches of requests from the queue until the cipher is closed
+     * and the queue is empty
+     */
+    private final class Worker implements Runnable {
+
+        private final byte[] buffer = new byte[maximumBatchBlocks * BLOCK_SIZE];
+        private final List<Request> batch = new ArrayList<>();
+        private Request carried;
+
+        @Override
+        public void run() {
+            while (true) {
+                Request first = carried;
+                carried = null;
+                if (first == null && closed) {
+                    first = queue.poll();
+                    if (first == null) {
+                        return;
+                    }
+                }
+                else if (first == null) {
+                    first = take();
+                    if (first == null) {
+                        //Go round again, so that after close the queue is
+                        //drained rather than abandoned
+                        continue;
+                    }
+                }
+
+                if (first.blocks() >= maximumBatchBlocks) {
+                    processAlone(first);
+                    continue;
+                }
+                fill(first);
+                processBatch();
+            }
+        }
+
+        private Request take() {
+            try {
+                return queue.take();
+            }
+            catch (InterruptedException e) {
+                //Interrupted by close; run drains the queue next time round
+                return null;
+            }
+        }
+
+        /**
+         * Adds waiting requests to the batch until the next one would not fit
+         */
+        private void fill(Request first) {
+            batch.add(first);
+            int blocks = first.blocks();
+            Request next;
+            while ((next = queue.poll()) != null) {
+                if (blocks + next.blocks() > maximumBatchBlocks) {
+                    carried = next;
+                    break;
+                }
+                batch.add(next);
+                blocks += next.blocks();
+            }
+        }
+
+        private void processAlone(Request request) {
+            byte[] output = new byte[request.input.length];
+            try {
+                process(request.input, output, 0, request.blocks(), request.inverse);
+            }
+            catch (RuntimeException e) {
+                request.result.completeExceptionally(e);
+                return;
+            }
+            record(request.blocks(), 1);
+            complete(request, output);
+        }
+
+        private void processBatch() {
+            try {
+                int offset = 0;
+                for (Request request : batch) {
+                    System.arraycopy(request.input, 0, buffer, offset, request.input.length);
+                    offset += request.input.length;
+                }
+
+                //Process each run of requests in the same direction with one
+                //call to the cipher
+                int runOffset = 0;
+                offset = 0;
+                for (int i = 0; i < batch.size(); ++i) {
+                    Request request = batch.get(i);
+                    offset += request.input.length;
+                    if (i + 1 == batch.size() || batch.get(i + 1).inverse != request.inverse) {
+                        process(buffer, buffer, runOffset, (offset - runOffset) / BLOCK_SIZE, request.inverse);
+                        runOffset = offset;
+                    }
+                }
+                record(offset / BLOCK_SIZE, batch.size());
+
+                offset = 0;
+                for (Request request : batch) {
+                    byte[] output = new byte[request.input.length];
+                    System.arraycopy(buffer, offset, output, 0, output.length);
+                    offset += output.length;
+                    complete(request, output);
+                }
+            }
+            catch (RuntimeException e) {
+                for (Request request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+            finally {
+                batch.clear();
+            }
+        }
+
+        private void process(byte[] in, byte[] out, int offset, int blocks, boolean inverse) {
+            if (inverse) {
+                cipher.decryptBlocks(in, offset, out, offset, blocks);
+            }
+            else {
+                cipher.encryptBlocks(in, offset, out, offset, blocks);
+            }
+        }
+
+        private void record(int blocks, int count) {
+            batches.increment();
+            batchedBlocks.add(blocks);
+            largestBatch.accumulate(blocks);
+            requests.add(count);
+        }
+
+        private void complete(Request request, byte[] output) {
+            latencies.record(System.nanoTime() - request.queued);
+            request.result.complete(output);
+        }
+    }
+
+    /**
+     * Counts latencies in buckets whose width grows with their value, eight
+     * buckets per power of two, so that any percentile can be estimated
+     * without storing every sample
+     */
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKETS = 8;
+        private static final int SUB_BITS = 3;
+
+        private final LongAdder[] counts = new LongAdder[(64 - SUB_BITS) * SUB_BUCKETS];
+
+        LatencyHistogram() {
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            counts[bucket(Math.max(nanos, 0))].increment();
+        }
+
+        long percentile(double percentile) {
+            long[] snapshot = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; ++i) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(snapshot.length - 1);
+        }
+
+        /**
+         * @return The bucket for a value: values below 8 have a bucket each,
+         * and larger values are split by their top 4 bits
+         */
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return The largest value that falls in a bucket
+         */
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
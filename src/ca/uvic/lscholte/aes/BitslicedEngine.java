@@ -0,0 +1,571 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESConstants.NB;
+import static ca.uvic.lscholte.aes.AESConstants.NK;
+import static ca.uvic.lscholte.aes.AESConstants.NR;
+import java.util.Arrays;
+
+/**
+ * A constant-time AES-256 implementation that uses bitslicing. The state of
+ * four blocks is spread over eight longs so that each long holds one bit
+ * position of all 64 bytes, and SubBytes is computed by a fixed circuit of
+ * AND and XOR operations (the Boyar-Peralta circuit) instead of table
+ * lookups. No memory access and no branch depends on the key or the data,
+ * so this engine does not leak through cache timing.
+ *
+ * The layout follows the "ct64" implementation in BearSSL. Four blocks fill
+ * the 64-bit words exactly, so the batch methods process four blocks per
+ * pass; single blocks and leftover blocks are padded out to a full pass.
+ * @author lscholte
+ */
+final class BitslicedEngine implements AESEngine {
+
+    /**
+     * The number of blocks processed by one pass of the bitsliced rounds
+     */
+    static final int BLOCKS_PER_PASS = 4;
+
+    private static final int[] RCON = { 0x01, 0x02, 0x04, 0x08, 0x10, 0x20, 0x40 };
+
+    /**
+     * The round keys in bitsliced form, eight longs per round
+     */
+    private final long[] roundKeys;
+
+    /**
+     * @param schedule An expanded key to convert to bitsliced form
+     */
+    BitslicedEngine(KeySchedule schedule) {
+        int[] words = new int[NB * (NR + 1)];
+        for (int i = 0; i < words.length; ++i) {
+            words[i] = Integer.reverseBytes(schedule.encryptionWords[schedule.offset + i]);
+        }
+        roundKeys = bitsliceKeys(words);
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * Expands a key without any table lookups, so that key setup is
+     * constant-time as well
+     * @param key An array of bytes of length 32
+     */
+    BitslicedEngine(byte[] key) {
+        if (key.length != NK * NB) {
+            throw new IllegalArgumentException("Key must be exactly " + (NK * NB) + " bytes long");
+        }
+
+        //Words are little-endian here, so RotWord is a right rotation and
+        //Rcon goes in the lowest byte
+        int[] words = new int[NB * (NR + 1)];
+        for (int i = 0; i < NK; ++i) {
+            words[i] = littleEndian(key, i * 4);
+        }
+        int temp = words[NK - 1];
+        for (int i = NK; i < words.length; ++i) {
+            if (i % NK == 0) {
+                temp = subWord(Integer.rotateRight(temp, 8)) ^ RCON[i / NK - 1];
+            }
+            else if (i % NK == 4) {
+                temp = subWord(temp);
+            }
+            temp ^= words[i - NK];
+            words[i] = temp;
+        }
+        roundKeys = bitsliceKeys(words);
+        Arrays.fill(words, 0);
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        encryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        decryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    @Override
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        process(in, inOff, out, outOff, blocks, false);
+    }
+
+    @Override
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        process(in, inOff, out, outOff, blocks, true);
+    }
+
+    @Override
+    public void destroy() {
+        Arrays.fill(roundKeys, 0L);
+    }
+
+    private void process(byte[] in, int inOff, byte[] out, int outOff, int blocks, boolean inverse) {
+        Scratch scratch = Scratch.get();
+        long[] q = scratch.bitslicedState;
+        int[] w = scratch.bitslicedWords;
+
+        while (blocks > 0) {
+            int n = Math.min(blocks, BLOCKS_PER_PASS);
+            for (int i = 0; i < w.length; ++i) {
+                w[i] = i < n * NB ? littleEndian(in, inOff + i * 4) : 0;
+            }
+
+            for (int i = 0; i < BLOCKS_PER_PASS; ++i) {
+                interleaveIn(q, i, w, i * NB);
+            }
+            ortho(q);
+            if (inverse) {
+                decryptState(q);
+            }
+            else {
+                encryptState(q);
+            }
+            ortho(q);
+            for (int i = 0; i < BLOCKS_PER_PASS; ++i) {
+                interleaveOut(w, i * NB, q[i], q[i + 4]);
+            }
+
+            for (int i = 0; i < n * NB; ++i) {
+                toLittleEndian(w[i], out, outOff + i * 4);
+            }
+            inOff += n * NB * NB;
+            outOff += n * NB * NB;
+            blocks -= n;
+        }
+    }
+
+    private void encryptState(long[] q) {
+        addRoundKey(q, 0);
+        for (int round = 1; round < NR; ++round) {
+            sBox(q);
+            shiftRows(q);
+            mixColumns(q);
+            addRoundKey(q, round);
+        }
+        sBox(q);
+        shiftRows(q);
+        addRoundKey(q, NR);
+    }
+
+    private void decryptState(long[] q) {
+        addRoundKey(q, NR);
+        for (int round = NR - 1; round > 0; --round) {
+            inverseShiftRows(q);
+            inverseSBox(q);
+            addRoundKey(q, round);
+            inverseMixColumns(q);
+        }
+        inverseShiftRows(q);
+        inverseSBox(q);
+        addRoundKey(q, 0);
+    }
+
+    private void addRoundKey(long[] q, int round) {
+        int k = round * 8;
+        for (int i = 0; i < 8; ++i) {
+            q[i] ^= roundKeys[k + i];
+        }
+    }
+
+    /**
+     * Converts little-endian round key words to bitsliced form. Each round
+     * key is spread over eight longs and repeated for all four blocks
+     */
+    private static long[] bitsliceKeys(int[] words) {
+        long[] result = new long[8 * (NR + 1)];
+        long[] q = new long[8];
+
+        for (int round = 0; round <= NR; ++round) {
+            interleaveIn(q, 0, words, round * NB);
+            q[1] = q[0];
+            q[2] = q[0];
+            q[3] = q[0];
+            q[5] = q[4];
+            q[6] = q[4];
+            q[7] = q[4];
+            ortho(q);
+
+            //Every block sees the same key, so copy the bit for the first
+            //block into the positions of the other three
+            for (int i = 0; i < 8; ++i) {
+                long x = (q[i] >>> (i & 3)) & 0x1111111111111111L;
+                result[round * 8 + i] = (x << 4) - x;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the S-box to each byte of a little-endian word in constant time
+     */
+    private static int subWord(int word) {
+        long[] q = new long[8];
+        q[0] = word & 0xFFFFFFFFL;
+        ortho(q);
+        sBox(q);
+        ortho(q);
+        return (int) q[0];
+    }
+
+    /**
+     * Spreads one block, given as four little-endian words, over two longs
+     * so that it can then be transposed by {@link #ortho(long[])}
+     */
+    private static void interleaveIn(long[] q, int index, int[] w, int offset) {
+        long x0 = w[offset] & 0xFFFFFFFFL;
+        long x1 = w[offset + 1] & 0xFFFFFFFFL;
+        long x2 = w[offset + 2] & 0xFFFFFFFFL;
+        long x3 = w[offset + 3] & 0xFFFFFFFFL;
+        x0 |= x0 << 16;
+        x1 |= x1 << 16;
+        x2 |= x2 << 16;
+        x3 |= x3 << 16;
+        x0 &= 0x0000FFFF0000FFFFL;
+        x1 &= 0x0000FFFF0000FFFFL;
+        x2 &= 0x0000FFFF0000FFFFL;
+        x3 &= 0x0000FFFF0000FFFFL;
+        x0 |= x0 << 8;
+        x1 |= x1 << 8;
+        x2 |= x2 << 8;
+        x3 |= x3 << 8;
+        x0 &= 0x00FF00FF00FF00FFL;
+        x1 &= 0x00FF00FF00FF00FFL;
+        x2 &= 0x00FF00FF00FF00FFL;
+        x3 &= 0x00FF00FF00FF00FFL;
+        q[index] = x0 | (x2 << 8);
+        q[index + 4] = x1 | (x3 << 8);
+    }
+
+    /**
+     * The reverse of {@link #interleaveIn(long[], int, int[], int)}
+     */
+    private static void interleaveOut(int[] w, int offset, long q0, long q1) {
+        long x0 = q0 & 0x00FF00FF00FF00FFL;
+        long x1 = q1 & 0x00FF00FF00FF00FFL;
+        long x2 = (q0 >>> 8) & 0x00FF00FF00FF00FFL;
+        long x3 = (q1 >>> 8) & 0x00FF00FF00FF00FFL;
+        x0 |= x0 >>> 8;
+        x1 |= x1 >>> 8;
+        x2 |= x2 >>> 8;
+        x3 |= x3 >>> 8;
+        x0 &= 0x0000FFFF0000FFFFL;
+        x1 &= 0x0000FFFF0000FFFFL;
+        x2 &= 0x0000FFFF0000FFFFL;
+        x3 &= 0x0000FFFF0000FFFFL;
+        w[offset] = (int) x0 | (int) (x0 >>> 16);
+        w[offset + 1] = (int) x1 | (int) (x1 >>> 16);
+        w[offset + 2] = (int) x2 | (int) (x2 >>> 16);
+        w[offset + 3] = (int) x3 | (int) (x3 >>> 16);
+    }
+
+    /**
+     * Transposes the eight longs so that each one holds a single bit
+     * position of every byte. The transformation is its own inverse
+     */
+    private static void ortho(long[] q) {
+        swap(q, 0, 1, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+        swap(q, 2, 3, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+        swap(q, 4, 5, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+        swap(q, 6, 7, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+
+        swap(q, 0, 2, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+        swap(q, 1, 3, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+        swap(q, 4, 6, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+        swap(q, 5, 7, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+
+        swap(q, 0, 4, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+        swap(q, 1, 5, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+        swap(q, 2, 6, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+        swap(q, 3, 7, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+    }
+
+    private static void swap(long[] q, int x, int y, long low, long high, int shift) {
+        long a = q[x];
+        long b = q[y];
+        q[x] = (a & low) | ((b & low) << shift);
+        q[y] = ((a & high) >>> shift) | (b & high);
+    }
+
+    /**
+     * Applies the S-box to every byte of the bitsliced state using only AND,
+     * XOR and NOT. This is the circuit from "A depth-16 circuit for the AES
+     * S-box" by Boyar and Peralta
+     */
+    static void sBox(long[] q) {
+        long x0 = q[7];
+        long x1 = q[6];
+        long x2 = q[5];
+        long x3 = q[4];
+        long x4 = q[3];
+        long x5 = q[2];
+        long x6 = q[1];
+        long x7 = q[0];
+
+        //Top linear transformation
+        long y14 = x3 ^ x5;
+        long y13 = x0 ^ x6;
+        long y9 = x0 ^ x3;
+        long y8 = x0 ^ x5;
+        long t0 = x1 ^ x2;
+        long y1 = t0 ^ x7;
+        long y4 = y1 ^ x3;
+        long y12 = y13 ^ y14;
+        long y2 = y1 ^ x0;
+        long y5 = y1 ^ x6;
+        long y3 = y5 ^ y8;
+        long t1 = x4 ^ y12;
+        long y15 = t1 ^ x5;
+        long y20 = t1 ^ x1;
+        long y6 = y15 ^ x7;
+        long y10 = y15 ^ t0;
+        long y11 = y20 ^ y9;
+        long y7 = x7 ^ y11;
+        long y17 = y10 ^ y11;
+        long y19 = y10 ^ y8;
+        long y16 = t0 ^ y11;
+        long y21 = y13 ^ y16;
+        long y18 = x0 ^ y16;
+
+        //Non-linear section
+        long t2 = y12 & y15;
+        long t3 = y3 & y6;
+        long t4 = t3 ^ t2;
+        long t5 = y4 & x7;
+        long t6 = t5 ^ t2;
+        long t7 = y13 & y16;
+        long t8 = y5 & y1;
+        long t9 = t8 ^ t7;
+        long t10 = y2 & y7;
+        long t11 = t10 ^ t7;
+        long t12 = y9 & y11;
+        long t13 = y14 & y17;
+        long t14 = t13 ^ t12;
+        long t15 = y8 & y10;
+        long t16 = t15 ^ t12;
+        long t17 = t4 ^ t14;
+        long t18 = t6 ^ t16;
+        long t19 = t9 ^ t14;
+        long t20 = t11 ^ t16;
+        long t21 = t17 ^ y20;
+        long t22 = t18 ^ y19;
+        long t23 = t19 ^ y21;
+        long t24 = t20 ^ y18;
+
+        long t25 = t21 ^ t22;
+        long t26 = t21 & t23;
+        long t27 = t24 ^ t26;
+        long t28 = t25 & t27;
+        long t29 = t28 ^ t22;
+        long t30 = t23 ^ t24;
+        long t31 = t22 ^ t26;
+        long t32 = t31 & t30;
+        long t33 = t32 ^ t24;
+        long t34 = t23 ^ t33;
+        long t35 = t27 ^ t33;
+        long t36 = t24 & t35;
+        long t37 = t36 ^ t34;
+        long t38 = t27 ^ t36;
+        long t39 = t29 & t38;
+        long t40 = t25 ^ t39;
+
+        long t41 = t40 ^ t37;
+        long t42 = t29 ^ t33;
+        long t43 = t29 ^ t40;
+        long t44 = t33 ^ t37;
+        long t45 = t42 ^ t41;
+        long z0 = t44 & y15;
+        long z1 = t37 & y6;
+        long z2 = t33 & x7;
+        long z3 = t43 & y16;
+        long z4 = t40 & y1;
+        long z5 = t29 & y7;
+        long z6 = t42 & y11;
+        long z7 = t45 & y17;
+        long z8 = t41 & y10;
+        long z9 = t44 & y12;
+        long z10 = t37 & y3;
+        long z11 = t33 & y4;
+        long z12 = t43 & y13;
+        long z13 = t40 & y5;
+        long z14 = t29 & y2;
+        long z15 = t42 & y9;
+        long z16 = t45 & y14;
+        long z17 = t41 & y8;
+
+        //Bottom linear transformation
+        long t46 = z15 ^ z16;
+        long t47 = z10 ^ z11;
+        long t48 = z5 ^ z13;
+        long t49 = z9 ^ z10;
+        long t50 = z2 ^ z12;
+        long t51 = z2 ^ z5;
+        long t52 = z7 ^ z8;
+        long t53 = z0 ^ z3;
+        long t54 = z6 ^ z7;
+        long t55 = z16 ^ z17;
+        long t56 = z12 ^ t48;
+        long t57 = t50 ^ t53;
+        long t58 = z4 ^ t46;
+        long t59 = z3 ^ t54;
+        long t60 = t46 ^ t57;
+        long t61 = z14 ^ t57;
+        long t62 = t52 ^ t58;
+        long t63 = t49 ^ t58;
+        long t64 = z4 ^ t59;
+        long t65 = t61 ^ t62;
+        long t66 = z1 ^ t63;
+        long s0 = t59 ^ t63;
+        long s6 = t56 ^ ~t62;
+        long s7 = t48 ^ ~t60;
+        long t67 = t64 ^ t65;
+        long s3 = t53 ^ t66;
+        long s4 = t51 ^ t66;
+        long s5 = t47 ^ t65;
+        long s1 = t64 ^ ~s3;
+        long s2 = t55 ^ ~t67;
+
+        q[7] = s0;
+        q[6] = s1;
+        q[5] = s2;
+        q[4] = s3;
+        q[3] = s4;
+        q[2] = s5;
+        q[1] = s6;
+        q[0] = s7;
+    }
+
+    /**
+     * Applies the inverse S-box by undoing the affine transformation, using
+     * the forward S-box circuit for the field inversion (which is its own
+     * inverse), and applying the affine transformation again
+     */
+    static void inverseSBox(long[] q) {
+        inverseAffine(q);
+        sBox(q);
+        inverseAffine(q);
+    }
+
+    private static void inverseAffine(long[] q) {
+        long q0 = ~q[0];
+        long q1 = ~q[1];
+        long q2 = q[2];
+        long q3 = q[3];
+        long q4 = q[4];
+        long q5 = ~q[5];
+        long q6 = ~q[6];
+        long q7 = q[7];
+        q[7] = q1 ^ q4 ^ q6;
+        q[6] = q0 ^ q3 ^ q5;
+        q[5] = q7 ^ q2 ^ q4;
+        q[4] = q6 ^ q1 ^ q3;
+        q[3] = q5 ^ q0 ^ q2;
+        q[2] = q4 ^ q7 ^ q1;
+        q[1] = q3 ^ q6 ^ q0;
+        q[0] = q2 ^ q5 ^ q7;
+    }
+
+    private static void shiftRows(long[] q) {
+        for (int i = 0; i < 8; ++i) {
+            long x = q[i];
+            q[i] = (x & 0x000000000000FFFFL)
+                    | ((x & 0x00000000FFF00000L) >>> 4)
+                    | ((x & 0x00000000000F0000L) << 12)
+                    | ((x & 0x0000FF0000000000L) >>> 8)
+                    | ((x & 0x000000FF00000000L) << 8)
+                    | ((x & 0xF000000000000000L) >>> 12)
+                    | ((x & 0x0FFF000000000000L) << 4);
+        }
+    }
+
+    private static void inverseShiftRows(long[] q) {
+        for (int i = 0; i < 8; ++i) {
+            long x = q[i];
+            q[i] = (x & 0x000000000000FFFFL)
+                    | ((x & 0x000000000FFF0000L) << 4)
+                    | ((x & 0x00000000F0000000L) >>> 12)
+                    | ((x & 0x000000FF00000000L) << 8)
+                    | ((x & 0x0000FF0000000000L) >>> 8)
+                    | ((x & 0x000F000000000000L) << 12)
+                    | ((x & 0xFFF0000000000000L) >>> 4);
+        }
+    }
+
+    private static void mixColumns(long[] q) {
+        long q0 = q[0];
+        long q1 = q[1];
+        long q2 = q[2];
+        long q3 = q[3];
+        long q4 = q[4];
+        long q5 = q[5];
+        long q6 = q[6];
+        long q7 = q[7];
+        long r0 = Long.rotateRight(q0, 16);
+        long r1 = Long.rotateRight(q1, 16);
+        long r2 = Long.rotateRight(q2, 16);
+        long r3 = Long.rotateRight(q3, 16);
+        long r4 = Long.rotateRight(q4, 16);
+        long r5 = Long.rotateRight(q5, 16);
+        long r6 = Long.rotateRight(q6, 16);
+        long r7 = Long.rotateRight(q7, 16);
+
+        q[0] = q7 ^ r7 ^ r0 ^ rotate32(q0 ^ r0);
+        q[1] = q0 ^ r0 ^ q7 ^ r7 ^ r1 ^ rotate32(q1 ^ r1);
+        q[2] = q1 ^ r1 ^ r2 ^ rotate32(q2 ^ r2);
+        q[3] = q2 ^ r2 ^ q7 ^ r7 ^ r3 ^ rotate32(q3 ^ r3);
+        q[4] = q3 ^ r3 ^ q7 ^ r7 ^ r4 ^ rotate32(q4 ^ r4);
+        q[5] = q4 ^ r4 ^ r5 ^ rotate32(q5 ^ r5);
+        q[6] = q5 ^ r5 ^ r6 ^ rotate32(q6 ^ r6);
+        q[7] = q6 ^ r6 ^ r7 ^ rotate32(q7 ^ r7);
+    }
+
+    private static void inverseMixColumns(long[] q) {
+        long q0 = q[0];
+        long q1 = q[1];
+        long q2 = q[2];
+        long q3 = q[3];
+        long q4 = q[4];
+        long q5 = q[5];
+        long q6 = q[6];
+        long q7 = q[7];
+        long r0 = Long.rotateRight(q0, 16);
+        long r1 = Long.rotateRight(q1, 16);
+        long r2 = Long.rotateRight(q2, 16);
+        long r3 = Long.rotateRight(q3, 16);
+        long r4 = Long.rotateRight(q4, 16);
+        long r5 = Long.rotateRight(q5, 16);
+        long r6 = Long.rotateRight(q6, 16);
+        long r7 = Long.rotateRight(q7, 16);
+
+        q[0] = q5 ^ q6 ^ q7 ^ r0 ^ r5 ^ r7 ^ rotate32(q0 ^ q5 ^ q6 ^ r0 ^ r5);
+        q[1] = q0 ^ q5 ^ r0 ^ r1 ^ r5 ^ r6 ^ r7 ^ rotate32(q1 ^ q5 ^ q7 ^ r1 ^ r5 ^ r6);
+        q[2] = q0 ^ q1 ^ q6 ^ r1 ^ r2 ^ r6 ^ r7 ^ rotate32(q0 ^ q2 ^ q6 ^ r2 ^ r6 ^ r7);
+        q[3] = q0 ^ q1 ^ q2 ^ q5 ^ q6 ^ r0 ^ r2 ^ r3 ^ r5
+                ^ rotate32(q0 ^ q1 ^ q3 ^ q5 ^ q6 ^ q7 ^ r0 ^ r3 ^ r5 ^ r7);
+        q[4] = q1 ^ q2 ^ q3 ^ q5 ^ r1 ^ r3 ^ r4 ^ r5 ^ r6 ^ r7
+                ^ rotate32(q1 ^ q2 ^ q4 ^ q5 ^ q7 ^ r1 ^ r4 ^ r5 ^ r6);
+        q[5] = q2 ^ q3 ^ q4 ^ q6 ^ r2 ^ r4 ^ r5 ^ r6 ^ r7
+                ^ rotate32(q2 ^ q3 ^ q5 ^ q6 ^ r2 ^ r5 ^ r6 ^ r7);
+        q[6] = q3 ^ q4 ^ q5 ^ q7 ^ r3 ^ r5 ^ r6 ^ r7
+                ^ rotate32(q3 ^ q4 ^ q6 ^ q7 ^ r3 ^ r6 ^ r7);
+        q[7] = q4 ^ q5 ^ q6 ^ r4 ^ r6 ^ r7 ^ rotate32(q4 ^ q5 ^ q7 ^ r4 ^ r7);
+    }
+
+    private static long rotate32(long x) {
+        return (x << 32) | (x >>> 32);
+    }
+
+    private static int littleEndian(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | ((bytes[offset + 1] & 0xFF) << 8)
+                | ((bytes[offset + 2] & 0xFF) << 16)
+                | ((bytes[offset + 3] & 0xFF) << 24);
+    }
+
+    private static void toLittleEndian(int word, byte[] bytes, int offset) {
+        bytes[offset] = (byte) word;
+        bytes[offset + 1] = (byte) (word >>> 8);
+        bytes[offset + 2] = (byte) (word >>> 16);
+        bytes[offset + 3] = (byte) (word >>> 24);
+    }
+}
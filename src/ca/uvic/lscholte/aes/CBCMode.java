@@ -0,0 +1,408 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+
+/**
+ * Encrypts and decrypts data using AES-256 in cipher block chaining (CBC)
+ * mode, as described in NIST SP 800-38A, with optional PKCS#7 padding.
+ *
+ * Data is passed to {@link #update(byte[], int, int, byte[], int)} in pieces
+ * of any size and the message is completed by {@link #doFinal(byte[], int)}.
+ * Partial blocks are buffered between calls. When decrypting with padding,
+ * the last whole block is also held back, since it may turn out to be the
+ * padded final block.
+ *
+ * Encryption is inherently sequential. Each plaintext block of decryption
+ * only depends on two ciphertext blocks, so large inputs are decrypted in
+ * parallel on a {@link ForkJoinPool}.
+ *
+ * Each instance encrypts or decrypts a single message. Instances are not safe
+ * for use by multiple threads at once.
+ * @author lscholte
+ */
+public final class CBCMode {
+
+    /**
+     * How the last block of a message is padded
+     */
+    public enum Padding {
+        /**
+         * Appends between 1 and 16 bytes, each equal to the number of bytes
+         * appended, so that messages of any length can be encrypted
+         */
+        PKCS7,
+
+        /**
+         * No padding. Messages must be a multiple of 16 bytes long
+         */
+        NONE
+    }
+
+    /**
+     * The number of blocks handed to a single task when decrypting in parallel
+     */
+    static final int BLOCKS_PER_TASK = 4096;
+
+    /**
+     * The number of blocks passed to the cipher at once when decrypting, which
+     * is as many as fit in the thread's scratch buffer
+     */
+    private static final int BLOCKS_PER_BATCH = Scratch.KEYSTREAM_BLOCKS;
+
+    private final AESCipher cipher;
+    private final boolean encrypting;
+    private final Padding padding;
+    private final ForkJoinPool pool;
+
+    /**
+     * The previous ciphertext block, starting with the IV
+     */
+    private final byte[] chain = new byte[BLOCK_SIZE];
+
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int bufferedLength;
+    private boolean finished;
+
+    /**
+     * Initializes CBC mode with PKCS#7 padding, using the common ForkJoinPool
+     * to decrypt large inputs
+     * @param cipher The cipher to use
+     * @param iv The 16-byte initialization vector
+     * @param encrypting True to encrypt, false to decrypt
+     */
+    public CBCMode(AESCipher cipher, byte[] iv, boolean encrypting) {
+        this(cipher, iv, encrypting, Padding.PKCS7);
+    }
+
+    /**
+     * Initializes CBC mode using the common ForkJoinPool to decrypt large
+     * inputs
+     * @param cipher The cipher to use
+     * @param iv The 16-byte initialization vector
+     * @param encrypting True to encrypt, false to decrypt
+     * @param padding How the last block is padded
+     */
+    public CBCMode(AESCipher cipher, byte[] iv, boolean encrypting, Padding padding) {
+        this(cipher, iv, encrypting, padding, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes CBC mode
+     * @param cipher The cipher to use
+     * @param iv The 16-byte initialization vector
+     * @param encrypting True to encrypt, false to decrypt
+     * @param padding How the last block is padded
+     * @param pool The pool used to decrypt large inputs in parallel
+     */
+    public CBCMode(AESCipher cipher, byte[] iv, boolean encrypting, Padding padding, ForkJoinPool pool) {
+        if (iv.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("The IV must be " + BLOCK_SIZE + " bytes long");
+        }
+        this.cipher = cipher;
+        this.encrypting = encrypting;
+        this.padding = padding;
+        this.pool = pool;
+        System.arraycopy(iv, 0, chain, 0, BLOCK_SIZE);
+    }
+
+    /**
+     * Returns the largest number of bytes that the next call to update and
+     * doFinal together can write
+     * @param inputLength The number of input bytes that will be passed
+     * @return The maximum length of the output
+     */
+    public int getOutputSize(int inputLength) {
+        int total = bufferedLength + inputLength;
+        if (encrypting && padding == Padding.PKCS7) {
+            return (total / BLOCK_SIZE + 1) * BLOCK_SIZE;
+        }
+        return total - total % BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypts or decrypts the input as a continuation of all previous calls.
+     * Only whole blocks are written; the rest of the input is kept for the
+     * next call. To work in place, pass the same array with the output offset
+     * trailing the input offset by the number of bytes held back from earlier
+     * calls. Otherwise the output must not overlap the input
+     * @param in The array containing the input
+     * @param inOff The offset of the input
+     * @param len The number of bytes to process
+     * @param out The array that receives the output
+     * @param outOff The offset at which to write the output
+     * @return The number of bytes written to out
+     */
+    public int update(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+        int written = updateBlocks(in, inOff, len, out, outOff);
+        Instrumentation.endBulk(span, cipher.counters, "CBC", !encrypting, len);
+        return written;
+    }
+
+    private int updateBlocks(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        checkNotFinished();
+        if (len < 0 || inOff < 0 || in.length - inOff < len) {
+            throw new IllegalArgumentException("The input must contain " + len + " bytes");
+        }
+
+        int total = bufferedLength + len;
+        int blocks = total / BLOCK_SIZE;
+        if (!encrypting && padding == Padding.PKCS7 && total > 0 && total % BLOCK_SIZE == 0) {
+            //Hold back the last block until doFinal can remove its padding
+            --blocks;
+        }
+        checkOutput(out, outOff, blocks * BLOCK_SIZE);
+
+        int written = 0;
+        if (blocks > 0 && bufferedLength > 0) {
+            int fill = BLOCK_SIZE - bufferedLength;
+            System.arraycopy(in, inOff, buffer, bufferedLength, fill);
+            inOff += fill;
+            len -= fill;
+            bufferedLength = 0;
+            processBuffer(out, outOff);
+            written = BLOCK_SIZE;
+            --blocks;
+        }
+
+        if (blocks > 0) {
+            if (encrypting) {
+                encryptBlocks(in, inOff, out, outOff + written, blocks);
+            }
+            else {
+                decryptBlocks(in, inOff, out, outOff + written, blocks);
+            }
+            inOff += blocks * BLOCK_SIZE;
+            len -= blocks * BLOCK_SIZE;
+            written += blocks * BLOCK_SIZE;
+        }
+
+        System.arraycopy(in, inOff, buffer, bufferedLength, len);
+        bufferedLength += len;
+        return written;
+    }
+
+    /**
+     * Encrypts or decrypts the input as a continuation of all previous calls
+     * @param input The data to process
+     * @return The whole blocks of output that are ready
+     */
+    public byte[] update(byte[] input) {
+        byte[] output = new byte[getOutputSize(input.length)];
+        int written = update(input, 0, input.length, output, 0);
+        return written == output.length ? output : Arrays.copyOf(output, written);
+    }
+
+    /**
+     * Finishes the message. When encrypting with padding, the padded final
+     * block is written. When decrypting with padding, the held back block is
+     * decrypted and its padding removed
+     * @param out The array that receives any remaining output
+     * @param outOff The offset at which to write
+     * @return The number of bytes written to out
+     * @throws IllegalBlockSizeException If the message is not a whole number
+     * of blocks and cannot be padded
+     * @throws BadPaddingException If decrypting and the padding is invalid
+     */
+    public int doFinal(byte[] out, int outOff) throws IllegalBlockSizeException, BadPaddingException {
+        checkNotFinished();
+        finished = true;
+
+        if (padding == Padding.NONE) {
+            if (bufferedLength != 0) {
+                Instrumentation.error(cipher.counters);
+                throw new IllegalBlockSizeException("The input must be a multiple of " + BLOCK_SIZE + " bytes long");
+            }
+            return 0;
+        }
+
+        if (encrypting) {
+            checkOutput(out, outOff, BLOCK_SIZE);
+            byte pad = (byte) (BLOCK_SIZE - bufferedLength);
+            Arrays.fill(buffer, bufferedLength, BLOCK_SIZE, pad);
+            processBuffer(out, outOff);
+            return BLOCK_SIZE;
+        }
+
+        if (bufferedLength != BLOCK_SIZE) {
+            Instrumentation.error(cipher.counters);
+            throw new IllegalBlockSizeException("The input must be a non-empty multiple of " + BLOCK_SIZE + " bytes long");
+        }
+        byte[] block = new byte[BLOCK_SIZE];
+        processBuffer(block, 0);
+
+        //Check every padding byte regardless of where the first mismatch is
+        int pad = block[BLOCK_SIZE - 1] & 0xFF;
+        int bad = pad == 0 || pad > BLOCK_SIZE ? 1 : 0;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            boolean inPadding = i >= BLOCK_SIZE - pad;
+            bad |= inPadding ? (block[i] & 0xFF) ^ pad : 0;
+        }
+        if (bad != 0) {
+            Instrumentation.error(cipher.counters);
+            throw new BadPaddingException("The padding is invalid");
+        }
+
+        int length = BLOCK_SIZE - pad;
+        checkOutput(out, outOff, length);
+        System.arraycopy(block, 0, out, outOff, length);
+        return length;
+    }
+
+    /**
+     * Encrypts or decrypts the rest of the message in a single call
+     * @param input The remaining input
+     * @return The rest of the output
+     * @throws IllegalBlockSizeException If the message is not a whole number
+     * of blocks and cannot be padded
+     * @throws BadPaddingException If decrypting and the padding is invalid
+     */
+    public byte[] doFinal(byte[] input) throws IllegalBlockSizeException, BadPaddingException {
+        byte[] output = new byte[getOutputSize(input.length)];
+        int written = doFinal(input, 0, input.length, output, 0);
+        return written == output.length ? output : Arrays.copyOf(output, written);
+    }
+
+    /**
+     * Encrypts or decrypts the rest of the message in a single call without
+     * allocating the output
+     * @param in The array containing the remaining input
+     * @param inOff The offset of the input
+     * @param len The number of bytes of input
+     * @param out The array that receives the output, which needs room for
+     * {@link #getOutputSize(int)} bytes
+     * @param outOff The offset at which to write the output
+     * @return The number of bytes written to out
+     * @throws IllegalBlockSizeException If the message is not a whole number
+     * of blocks and cannot be padded
+     * @throws BadPaddingException If decrypting and the padding is invalid
+     */
+    public int doFinal(byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws IllegalBlockSizeException, BadPaddingException {
+        int written = update(in, inOff, len, out, outOff);
+        return written + doFinal(out, outOff + written);
+    }
+
+    /**
+     * Encrypts or decrypts the full block in the buffer
+     */
+    private void processBuffer(byte[] out, int outOff) {
+        if (encrypting) {
+            encryptBlocks(buffer, 0, out, outOff, 1);
+        }
+        else {
+            decryptBlocks(buffer, 0, out, outOff, 1);
+        }
+    }
+
+    private void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        for (int i = 0; i < blocks; ++i) {
+            for (int j = 0; j < BLOCK_SIZE; ++j) {
+                chain[j] ^= in[inOff + j];
+            }
+            cipher.encryptBlock(chain, 0);
+            System.arraycopy(chain, 0, out, outOff, BLOCK_SIZE);
+            inOff += BLOCK_SIZE;
+            outOff += BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Decrypts whole blocks, in parallel if there are enough of them to be
+     * worth it, and moves the chain on to the last of them
+     */
+    private void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        byte[] previous = chain.clone();
+        System.arraycopy(in, inOff + (blocks - 1) * BLOCK_SIZE, chain, 0, BLOCK_SIZE);
+
+        if (blocks >= 2 * BLOCKS_PER_TASK && pool.getParallelism() > 1) {
+            pool.invoke(new DecryptTask(previous, blocks, in, inOff, out, outOff));
+        }
+        else {
+            decryptRange(previous, blocks, in, inOff, out, outOff);
+        }
+    }
+
+    /**
+     * Decrypts a range of blocks on the calling thread. The range is worked
+     * through from the end so that decrypting in place never overwrites a
+     * ciphertext block that is still needed
+     * @param previous The ciphertext block before the range
+     */
+    private void decryptRange(byte[] previous, int blocks, byte[] in, int inOff, byte[] out, int outOff) {
+        byte[] batch = Scratch.get().keystream;
+
+        for (int end = blocks; end > 0; ) {
+            int start = Math.max(0, end - BLOCKS_PER_BATCH);
+            int n = end - start;
+            cipher.decryptBlocks(in, inOff + start * BLOCK_SIZE, batch, 0, n);
+            for (int i = n * BLOCK_SIZE - 1; i >= 0; --i) {
+                int position = start * BLOCK_SIZE + i;
+                byte mask = position < BLOCK_SIZE ?
+                        previous[position] :
+                        in[inOff + position - BLOCK_SIZE];
+                out[outOff + position] = (byte) (batch[i] ^ mask);
+            }
+            end = start;
+        }
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("This message has already been finished");
+        }
+    }
+
+    private static void checkOutput(byte[] out, int outOff, int length) {
+        if (outOff < 0 || out.length - outOff < length) {
+            throw new IllegalArgumentException("The output must have room for " + length + " bytes");
+        }
+    }
+
+    /**
+     * Splits a range of blocks in half until each piece is small enough to
+     * decrypt on one thread
+     */
+    @SuppressWarnings("serial")
+    private final class DecryptTask extends RecursiveAction {
+
+        private final byte[] previous;
+        private final int blocks;
+        private final byte[] in;
+        private final int inOff;
+        private final byte[] out;
+        private final int outOff;
+
+        DecryptTask(byte[] previous, int blocks, byte[] in, int inOff, byte[] out, int outOff) {
+            this.previous = previous;
+            this.blocks = blocks;
+            this.in = in;
+            this.inOff = inOff;
+            this.out = out;
+            this.outOff = outOff;
+        }
+
+        @Override
+        protected void compute() {
+            if (blocks <= BLOCKS_PER_TASK) {
+                decryptRange(previous, blocks, in, inOff, out, outOff);
+                return;
+            }
+            int half = blocks / 2;
+            int offset = half * BLOCK_SIZE;
+
+            //Copy the block before the second half now, because decrypting
+            //the first half in place may overwrite it
+            byte[] middle = Arrays.copyOfRange(in, inOff + offset - BLOCK_SIZE, inOff + offset);
+            invokeAll(
+                    new DecryptTask(previous, half, in, inOff, out, outOff),
+                    new DecryptTask(middle, blocks - half, in, inOff + offset, out, outOff + offset)
+            );
+        }
+    }
+}
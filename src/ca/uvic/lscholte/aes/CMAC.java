@@ -0,0 +1,314 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Computes the AES-256 CMAC of messages, as described in NIST SP 800-38B.
+ *
+ * The two subkeys are derived from the cipher once, when the instance is
+ * created, and are kept for every message the instance authenticates.
+ * {@link #copy()} gives another instance with the same subkeys without
+ * deriving them again. Data is passed to
+ * {@link #update(byte[], int, int)} in pieces of any size; whole blocks are
+ * read straight from the input, and only the last block of the message,
+ * which needs the subkeys, is held back between calls.
+ * {@link #doFinal(byte[], int)} writes the MAC and starts a new message.
+ *
+ * {@link #encryptThenMac(CTRMode, byte[], int, int, byte[], int)} and
+ * {@link #decryptAndVerify(CTRMode, byte[], int, int, byte[], int)} encrypt
+ * or decrypt with counter mode and authenticate the ciphertext in a single
+ * pass, a few blocks at a time, so the data is only read from memory once.
+ *
+ * Instances are not safe for use by multiple threads at once.
+ * @author lscholte
+ */
+public final class CMAC {
+
+    /**
+     * The length of a MAC in bytes
+     */
+    public static final int MAC_LENGTH = BLOCK_SIZE;
+
+    /**
+     * The number of bytes encrypted or decrypted with counter mode before
+     * they are authenticated, small enough to still be in the cache
+     */
+    private static final int CHUNK_SIZE = Scratch.KEYSTREAM_BLOCKS * BLOCK_SIZE;
+
+    /**
+     * The constant R_128 from section 5.3 of SP 800-38B
+     */
+    private static final long RB = 0x87;
+
+    private final AESCipher cipher;
+    private final long k1High;
+    private final long k1Low;
+    private final long k2High;
+    private final long k2Low;
+
+    private long stateHigh;
+    private long stateLow;
+
+    /**
+     * The working block passed to the cipher
+     */
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    /**
+     * The last, possibly partial, block of the data so far
+     */
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int bufferLength;
+
+    /**
+     * Initializes CMAC, deriving the subkeys
+     * @param cipher The cipher to use
+     */
+    public CMAC(AESCipher cipher) {
+        this.cipher = cipher;
+
+        //Section 6.1: L is the encryption of the zero block, K1 is L times x
+        //and K2 is K1 times x
+        cipher.encryptBlock(block, 0, block, 0);
+        long lHigh = Pack.toLong(block, 0);
+        long lLow = Pack.toLong(block, 8);
+        this.k1High = (lHigh << 1) | (lLow >>> 63);
+        this.k1Low = (lLow << 1) ^ (lHigh < 0 ? RB : 0);
+        this.k2High = (k1High << 1) | (k1Low >>> 63);
+        this.k2Low = (k1Low << 1) ^ (k1High < 0 ? RB : 0);
+        Arrays.fill(block, (byte) 0);
+    }
+
+    private CMAC(CMAC other) {
+        this.cipher = other.cipher;
+        this.k1High = other.k1High;
+        this.k1Low = other.k1Low;
+        this.k2High = other.k2High;
+        this.k2Low = other.k2Low;
+        this.stateHigh = other.stateHigh;
+        this.stateLow = other.stateLow;
+        this.bufferLength = other.bufferLength;
+        System.arraycopy(other.buffer, 0, buffer, 0, BLOCK_SIZE);
+    }
+
+    /**
+     * Returns an independent instance with the same subkeys and the same data
+     * so far. Copying an instance that has no data yet is the cheap way to
+     * authenticate messages under the same key on several threads
+     * @return The copy
+     */
+    public CMAC copy() {
+        return new CMAC(this);
+    }
+
+    /**
+     * Adds data to the message
+     * @param in The array containing the data
+     * @param offset The offset of the data
+     * @param length The number of bytes to add
+     */
+    public void update(byte[] in, int offset, int length) {
+        if (length < 0 || offset < 0 || in.length - offset < length) {
+            throw new IllegalArgumentException("The input must contain " + length + " bytes");
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+        absorb(in, offset, length);
+        Instrumentation.endBulk(span, cipher.counters, "CMAC", false, length);
+    }
+
+    /**
+     * Adds data to the message
+     * @param input The data to add
+     */
+    public void update(byte[] input) {
+        update(input, 0, input.length);
+    }
+
+    /**
+     * Finishes the message and writes its MAC. The instance is then ready for
+     * a new message
+     * @param out The array that receives the MAC
+     * @param outOff The offset at which to write
+     * @return The number of bytes written, which is always MAC_LENGTH
+     */
+    public int doFinal(byte[] out, int outOff) {
+        if (outOff < 0 || out.length - outOff < MAC_LENGTH) {
+            throw new IllegalArgumentException("The output must have room for " + MAC_LENGTH + " bytes");
+        }
+
+        //Section 6.2: a complete last block is masked with K1, and a
+        //partial one is padded with a single one bit and zeros and masked
+        //with K2
+        long high;
+        long low;
+        if (bufferLength == BLOCK_SIZE) {
+            high = k1High;
+            low = k1Low;
+        }
+        else {
+            buffer[bufferLength] = (byte) 0x80;
+            Arrays.fill(buffer, bufferLength + 1, BLOCK_SIZE, (byte) 0);
+            high = k2High;
+            low = k2Low;
+        }
+        processBlock(Pack.toLong(buffer, 0) ^ high, Pack.toLong(buffer, 8) ^ low);
+        Pack.fromLong(stateHigh, out, outOff);
+        Pack.fromLong(stateLow, out, outOff + 8);
+
+        reset();
+        return MAC_LENGTH;
+    }
+
+    /**
+     * Finishes the message. The instance is then ready for a new message
+     * @return The MAC
+     */
+    public byte[] doFinal() {
+        byte[] mac = new byte[MAC_LENGTH];
+        doFinal(mac, 0);
+        return mac;
+    }
+
+    /**
+     * Computes the MAC of a whole message, after any data already passed to
+     * update
+     * @param input The message
+     * @return The MAC
+     */
+    public byte[] mac(byte[] input) {
+        update(input);
+        return doFinal();
+    }
+
+    /**
+     * Discards the data so far and starts a new message with the same
+     * subkeys
+     */
+    public void reset() {
+        stateHigh = 0;
+        stateLow = 0;
+        bufferLength = 0;
+        Arrays.fill(buffer, (byte) 0);
+        Arrays.fill(block, (byte) 0);
+    }
+
+    /**
+     * Encrypts with counter mode and computes the MAC of the ciphertext in a
+     * single pass, then starts a new message. Any data already passed to
+     * update, such as a header, is authenticated ahead of the ciphertext.
+     * The input and output may be the same region of the same array
+     * @param ctr The counter mode instance that encrypts, which should use a
+     * different key from this instance
+     * @param in The array containing the plaintext
+     * @param inOff The offset of the plaintext
+     * @param len The length of the plaintext
+     * @param out The array that receives the ciphertext followed by the MAC
+     * @param outOff The offset at which to write
+     * @return The number of bytes written, which is len + MAC_LENGTH
+     */
+    public int encryptThenMac(CTRMode ctr, byte[] in, int inOff, int len, byte[] out, int outOff) {
+        if (outOff < 0 || out.length - outOff < len + MAC_LENGTH) {
+            throw new IllegalArgumentException("The output must have room for " + (len + MAC_LENGTH) + " bytes");
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+
+        for (int done = 0; done < len; done += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, len - done);
+            ctr.transform(in, inOff + done, n, out, outOff + done);
+            absorb(out, outOff + done, n);
+        }
+        doFinal(out, outOff + len);
+
+        Instrumentation.endBulk(span, cipher.counters, "CTR-CMAC", false, len);
+        return len + MAC_LENGTH;
+    }
+
+    /**
+     * Checks the MAC of a message produced by
+     * {@link #encryptThenMac(CTRMode, byte[], int, int, byte[], int)} and
+     * decrypts it in a single pass, then starts a new message. Any data
+     * already passed to update is authenticated ahead of the ciphertext. The
+     * input and output may be the same region of the same array
+     * @param ctr The counter mode instance that decrypts
+     * @param in The array containing the ciphertext followed by the MAC
+     * @param inOff The offset of the ciphertext
+     * @param len The length of the ciphertext and MAC together
+     * @param out The array that receives the plaintext
+     * @param outOff The offset at which to write
+     * @return The number of bytes written, which is len - MAC_LENGTH
+     * @throws AEADBadTagException If the MAC does not match the data, in
+     * which case the plaintext written to out is overwritten with zeros
+     */
+    public int decryptAndVerify(CTRMode ctr, byte[] in, int inOff, int len, byte[] out, int outOff) throws AEADBadTagException {
+        if (len < MAC_LENGTH) {
+            Instrumentation.error(cipher.counters);
+            throw new AEADBadTagException("The input is too short to contain a MAC");
+        }
+        int textLength = len - MAC_LENGTH;
+        if (outOff < 0 || out.length - outOff < textLength) {
+            throw new IllegalArgumentException("The output must have room for " + textLength + " bytes");
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+
+        //Keep the MAC aside in case the output overwrites it
+        byte[] expected = Arrays.copyOfRange(in, inOff + textLength, inOff + len);
+        for (int done = 0; done < textLength; done += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, textLength - done);
+            absorb(in, inOff + done, n);
+            ctr.transform(in, inOff + done, n, out, outOff + done);
+        }
+        byte[] mac = doFinal();
+
+        Instrumentation.endBulk(span, cipher.counters, "CTR-CMAC", true, textLength);
+        if (!MessageDigest.isEqual(mac, expected)) {
+            Arrays.fill(out, outOff, outOff + textLength, (byte) 0);
+            Instrumentation.error(cipher.counters);
+            throw new AEADBadTagException("The MAC does not match the data");
+        }
+        return textLength;
+    }
+
+    /**
+     * Does the work of update without counting it. Every block but the last
+     * is processed straight from the input; the last is held back, since
+     * only doFinal knows which subkey it needs
+     */
+    private void absorb(byte[] in, int offset, int length) {
+        if (bufferLength + length <= BLOCK_SIZE) {
+            System.arraycopy(in, offset, buffer, bufferLength, length);
+            bufferLength += length;
+            return;
+        }
+
+        //More data follows the held back block, so it is not the last one
+        if (bufferLength > 0) {
+            int fill = BLOCK_SIZE - bufferLength;
+            System.arraycopy(in, offset, buffer, bufferLength, fill);
+            offset += fill;
+            length -= fill;
+            processBlock(Pack.toLong(buffer, 0), Pack.toLong(buffer, 8));
+        }
+
+        while (length > BLOCK_SIZE) {
+            processBlock(Pack.toLong(in, offset), Pack.toLong(in, offset + 8));
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+        System.arraycopy(in, offset, buffer, 0, length);
+        bufferLength = length;
+    }
+
+    /**
+     * Chains one block into the state
+     */
+    private void processBlock(long high, long low) {
+        Pack.fromLong(stateHigh ^ high, block, 0);
+        Pack.fromLong(stateLow ^ low, block, 8);
+        cipher.encryptBlock(block, 0, block, 0);
+        stateHigh = Pack.toLong(block, 0);
+        stateLow = Pack.toLong(block, 8);
+    }
+}
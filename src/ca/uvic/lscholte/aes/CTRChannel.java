@@ -0,0 +1,196 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A seekable channel that encrypts everything written to an underlying
+ * channel, and decrypts everything read from it, using AES-256 in counter
+ * mode. The byte at position p of the underlying channel is combined with
+ * byte p of the keystream, so the contents are the same as {@link CTRMode}
+ * would give for the whole channel.
+ *
+ * Since every keystream block can be computed from its index alone, a read
+ * or write only generates the keystream for the blocks it covers. Reading a
+ * few bytes at the end of a very large file costs the same as reading them at
+ * the start.
+ *
+ * The keystream depends only on the key, the IV and the position, so
+ * writing to a position that already holds ciphertext encrypts the new data
+ * under the same keystream as the old. Anyone who sees the channel both
+ * before and after the write learns the XOR of the old and new plaintext,
+ * and often both. The channel therefore keeps data confidential only from
+ * an attacker who sees a single snapshot of it. It provides no integrity
+ * either: flipping a bit of the ciphertext flips the same bit of the
+ * plaintext, and nothing detects it. Write each region once, or use a
+ * fresh IV for the whole channel when its contents change, and
+ * authenticate the data separately if it may be tampered with.
+ *
+ * Regions that are skipped over by writing past the end of the channel are
+ * not encrypted, and read back as keystream. Instances are not safe for use
+ * by multiple threads at once.
+ * @author lscholte
+ */
+public final class CTRChannel implements SeekableByteChannel {
+
+    /**
+     * The largest number of bytes transferred to or from the underlying
+     * channel at a time
+     */
+    static final int CHUNK_SIZE = 64 << 10;
+
+    private final SeekableByteChannel channel;
+    private final CTRMode ctr;
+    private final Instrumentation.Counters counters;
+
+    private final byte[] data = new byte[CHUNK_SIZE];
+    private final byte[] keystream = new byte[CHUNK_SIZE + BLOCK_SIZE];
+    private long position;
+
+    /**
+     * Wraps a channel. Its current position is ignored, and this channel
+     * starts at position 0
+     * @param channel The channel holding the ciphertext. It must not be in
+     * append mode, since every write has to be encrypted for its position
+     * @param cipher The cipher used to generate the keystream
+     * @param iv The 16-byte initial counter block
+     */
+    public CTRChannel(SeekableByteChannel channel, AESCipher cipher, byte[] iv) {
+        this.channel = channel;
+        this.ctr = new CTRMode(cipher, iv);
+        this.counters = cipher.counters;
+    }
+
+    /**
+     * Opens or creates a file as an encrypted channel
+     * @param path The file holding the ciphertext
+     * @param cipher The cipher used to generate the keystream
+     * @param iv The 16-byte initial counter block
+     * @param options How to open the file, as for
+     * {@link Files#newByteChannel(Path, OpenOption...)}. APPEND is not
+     * supported
+     * @return The encrypted channel
+     * @throws IOException If the file cannot be opened
+     */
+    public static CTRChannel open(Path path, AESCipher cipher, byte[] iv, OpenOption... options) throws IOException {
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.APPEND) {
+                throw new IllegalArgumentException("APPEND is not supported, since writes are encrypted for their position");
+            }
+        }
+        return new CTRChannel(Files.newByteChannel(path, options), cipher, iv);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int length = Math.min(dst.remaining(), CHUNK_SIZE);
+            channel.position(position);
+            int read = channel.read(ByteBuffer.wrap(data, 0, length));
+            if (read <= 0) {
+                return total == 0 ? read : total;
+            }
+
+            apply(position, read);
+            dst.put(data, 0, read);
+            position += read;
+            total += read;
+            if (read < length) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        int total = 0;
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), CHUNK_SIZE);
+            src.get(data, 0, length);
+            apply(position, length);
+
+            ByteBuffer chunk = ByteBuffer.wrap(data, 0, length);
+            channel.position(position);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            position += length;
+            total += length;
+        }
+        return total;
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public CTRChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("The position must not be negative");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public CTRChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        position = Math.min(position, size);
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Combines the first bytes of the data buffer with the keystream for the
+     * blocks they cover, and no others
+     * @param start The position of the first byte
+     * @param length The number of bytes
+     */
+    private void apply(long start, int length) {
+        Instrumentation.Span span = Instrumentation.beginBulk(counters);
+        long firstBlock = start / BLOCK_SIZE;
+        int skip = (int) (start % BLOCK_SIZE);
+        int blocks = (skip + length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        ctr.keystream(firstBlock, blocks, keystream, 0);
+        for (int i = 0; i < length; ++i) {
+            data[i] ^= keystream[skip + i];
+        }
+        Instrumentation.endBulk(span, counters, "CTR", false, length);
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts and decrypts data of any length using AES-256 in counter (CTR)
+ * mode, as described in NIST SP 800-38A. The whole 16-byte counter block is
+ * treated as a big-endian integer that is incremented once per block.
+ *
+ * Since every keystream block depends only on its counter, large inputs are
+ * split into ranges of counter blocks that are processed in parallel on a
+ * {@link ForkJoinPool}. The output is the same as processing the input
+ * sequentially.
+ *
+ * An instance keeps track of its position in the keystream, so data can be
+ * passed to {@link #update(byte[], int, int, byte[], int)} in pieces of any
+ * size. Instances are not safe for use by multiple threads at once.
+ * @author lscholte
+ */
+public final class CTRMode {
+
+    /**
+     * Which part of the counter block is incremented, and how
+     */
+    enum Counter {
+        /**
+         * The whole block as a big-endian integer, as SP 800-38A describes
+         */
+        BIG_ENDIAN_128,
+
+        /**
+         * The last 32 bits as a big-endian integer, wrapping around without
+         * a carry, as GCM requires
+         */
+        BIG_ENDIAN_32,
+
+        /**
+         * The first 32 bits as a little-endian integer, wrapping around
+         * without a carry, as GCM-SIV requires
+         */
+        LITTLE_ENDIAN_32
+    }
+
+    /**
+     * The number of blocks handed to a single task when processing in parallel
+     */
+    static final int BLOCKS_PER_TASK = 4096;
+
+    /**
+     * The number of counter blocks encrypted together in one call to the
+     * cipher, so that engines which work on several blocks at once get
+     * enough of them
+     */
+    private static final int BLOCKS_PER_BATCH = Scratch.KEYSTREAM_BLOCKS;
+
+    private final AESCipher cipher;
+    private final ForkJoinPool pool;
+    private final long initialHigh;
+    private final long initialLow;
+    private final Counter increment;
+
+    private final byte[] counter = new byte[BLOCK_SIZE];
+    private final byte[] keystream = new byte[BLOCK_SIZE];
+    private long blockIndex;
+    private int keystreamOffset = BLOCK_SIZE;
+
+    /**
+     * Initializes counter mode using the common ForkJoinPool for large inputs
+     * @param cipher The cipher used to generate the keystream
+     * @param iv The 16-byte initial counter block
+     */
+    public CTRMode(AESCipher cipher, byte[] iv) {
+        this(cipher, iv, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes counter mode
+     * @param cipher The cipher used to generate the keystream
+     * @param iv The 16-byte initial counter block
+     * @param pool The pool used to process large inputs in parallel
+     */
+    public CTRMode(AESCipher cipher, byte[] iv, ForkJoinPool pool) {
+        this(cipher, iv, pool, Counter.BIG_ENDIAN_128);
+    }
+
+    /**
+     * Initializes counter mode
+     * @param cipher The cipher used to generate the keystream
+     * @param iv The 16-byte initial counter block
+     * @param pool The pool used to process large inputs in parallel
+     * @param increment Which part of the counter block is incremented
+     */
+    CTRMode(AESCipher cipher, byte[] iv, ForkJoinPool pool, Counter increment) {
+        if (iv.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("The IV must be " + BLOCK_SIZE + " bytes long");
+        }
+        this.cipher = cipher;
+        this.pool = pool;
+        this.initialHigh = Pack.toLong(iv, 0);
+        this.initialLow = Pack.toLong(iv, 8);
+        this.increment = increment;
+    }
+
+    /**
+     * Encrypts or decrypts the input as a continuation of all previous calls.
+     * The input and output may be the same region of the same array
+     * @param in The array containing the input
+     * @param inOff The offset of the input
+     * @param len The number of bytes to process
+     * @param out The array that receives the output
+     * @param outOff The offset at which to write the output
+     */
+    public void update(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+        transform(in, inOff, len, out, outOff);
+        Instrumentation.endBulk(span, cipher.counters, "CTR", false, len);
+    }
+
+    /**
+     * Does the work of update without counting it, for modes that are
+     * built on counter mode and count their own calls
+     */
+    void transform(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        if (len < 0 || inOff < 0 || outOff < 0 || in.length - inOff < len || out.length - outOff < len) {
+            throw new IllegalArgumentException("The input and output must contain " + len + " bytes");
+        }
+
+        //Use up the rest of a keystream block left over from the previous call
+        while (len > 0 && keystreamOffset < BLOCK_SIZE) {
+            out[outOff++] = (byte) (in[inOff++] ^ keystream[keystreamOffset++]);
+            --len;
+        }
+
+        int blocks = len / BLOCK_SIZE;
+        if (blocks > 0) {
+            process(blockIndex, blocks, in, inOff, out, outOff);
+            blockIndex += blocks;
+            inOff += blocks * BLOCK_SIZE;
+            outOff += blocks * BLOCK_SIZE;
+            len -= blocks * BLOCK_SIZE;
+        }
+
+        if (len > 0) {
+            counterBlock(blockIndex++, counter);
+            cipher.encryptBlock(counter, 0, keystream, 0);
+            for (keystreamOffset = 0; keystreamOffset < len; ++keystreamOffset) {
+                out[outOff + keystreamOffset] = (byte) (in[inOff + keystreamOffset] ^ keystream[keystreamOffset]);
+            }
+        }
+    }
+
+    /**
+     * Encrypts or decrypts the input as a continuation of all previous calls
+     * @param input The data to process
+     * @return The processed data, which is the same length as the input
+     */
+    public byte[] update(byte[] input) {
+        byte[] output = new byte[input.length];
+        update(input, 0, input.length, output, 0);
+        return output;
+    }
+
+    /**
+     * Moves to an arbitrary position in the keystream so that the next call
+     * to update continues from that byte offset
+     * @param position The number of bytes from the start of the keystream
+     */
+    public void seek(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("The position must not be negative");
+        }
+        blockIndex = position / BLOCK_SIZE;
+        keystreamOffset = BLOCK_SIZE;
+        int skip = (int) (position % BLOCK_SIZE);
+        if (skip > 0) {
+            counterBlock(blockIndex++, counter);
+            cipher.encryptBlock(counter, 0, keystream, 0);
+            keystreamOffset = skip;
+        }
+    }
+
+    /**
+     * Encrypts or decrypts whole blocks, in parallel if there are enough of
+     * them to be worth it
+     */
+    private void process(long firstBlock, int blocks, byte[] in, int inOff, byte[] out, int outOff) {
+        if (blocks >= 2 * BLOCKS_PER_TASK && pool.getParallelism() > 1) {
+            pool.invoke(new CTRTask(firstBlock, blocks, in, inOff, out, outOff));
+        }
+        else {
+            processBlocks(firstBlock, blocks, in, inOff, out, outOff);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts a range of whole blocks on the calling thread
+     */
+    private void processBlocks(long firstBlock, int blocks, byte[] in, int inOff, byte[] out, int outOff) {
+        byte[] batch = Scratch.get().keystream;
+
+        while (blocks > 0) {
+            int n = Math.min(blocks, BLOCKS_PER_BATCH);
+            keystream(firstBlock, n, batch, 0);
+            for (int j = 0; j < n * BLOCK_SIZE; ++j) {
+                out[outOff + j] = (byte) (in[inOff + j] ^ batch[j]);
+            }
+            firstBlock += n;
+            blocks -= n;
+            inOff += n * BLOCK_SIZE;
+            outOff += n * BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Writes raw keystream for a range of blocks without touching the
+     * position of this instance. This may be called from several threads at
+     * once
+     * @param firstBlock The index of the first keystream block
+     * @param blocks The number of blocks to generate
+     * @param out The array that receives the keystream
+     * @param outOff The offset at which to write
+     */
+    void keystream(long firstBlock, int blocks, byte[] out, int outOff) {
+        for (int i = 0; i < blocks; ++i) {
+            counterBlock(firstBlock + i, out, outOff + i * BLOCK_SIZE);
+        }
+        cipher.encryptBlocks(out, outOff, out, outOff, blocks);
+    }
+
+    /**
+     * Computes the counter block for the given block index by adding the
+     * index to the initial counter block
+     * @param index The number of blocks since the start of the keystream
+     * @param counter The array that receives the 16-byte counter block
+     */
+    private void counterBlock(long index, byte[] counter) {
+        counterBlock(index, counter, 0);
+    }
+
+    private void counterBlock(long index, byte[] counter, int offset) {
+        long low = initialLow;
+        long high = initialHigh;
+        switch (increment) {
+            case BIG_ENDIAN_32:
+                low = (initialLow & 0xFFFFFFFF00000000L) | ((initialLow + index) & 0xFFFFFFFFL);
+                break;
+            case LITTLE_ENDIAN_32:
+                int first = Integer.reverseBytes((int) (initialHigh >>> 32)) + (int) index;
+                high = ((long) Integer.reverseBytes(first) << 32) | (initialHigh & 0xFFFFFFFFL);
+                break;
+            default:
+                low = initialLow + index;
+                if (Long.compareUnsigned(low, initialLow) < 0) {
+                    ++high;
+                }
+        }
+        Pack.fromLong(high, counter, offset);
+        Pack.fromLong(low, counter, offset + 8);
+    }
+
+    /**
+     * Splits a range of blocks in half until each piece is small enough to
+     * process on one thread
+     */
+    @SuppressWarnings("serial")
+    private final class CTRTask extends RecursiveAction {
+
+        private final long firstBlock;
+        private final int blocks;
+        private final byte[] in;
+        private final int inOff;
+        private final byte[] out;
+        private final int outOff;
+
+        CTRTask(long firstBlock, int blocks, byte[] in, int inOff, byte[] out, int outOff) {
+            this.firstBlock = firstBlock;
+            this.blocks = blocks;
+            this.in = in;
+            this.inOff = inOff;
+            this.out = out;
+            this.outOff = outOff;
+        }
+
+        @Override
+        protected void compute() {
+            if (blocks <= BLOCKS_PER_TASK) {
+                processBlocks(firstBlock, blocks, in, inOff, out, outOff);
+                return;
+            }
+            int half = blocks / 2;
+            int offset = half * BLOCK_SIZE;
+            invokeAll(
+                    new CTRTask(firstBlock, half, in, inOff, out, outOff),
+                    new CTRTask(firstBlock + half, blocks - half, in, inOff + offset, out, outOff + offset)
+            );
+        }
+    }
+}
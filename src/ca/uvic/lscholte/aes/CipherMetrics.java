@@ -0,0 +1,54 @@
+package ca.uvic.lscholte.aes;
+
+/**
+ * Counts of the work done by a cipher and the modes built on it, or by every
+ * cipher in the process. The counts only include work done while
+ * {@link Instrumentation} was enabled
+ * @author lscholte
+ */
+public interface CipherMetrics {
+
+    /**
+     * @return A number identifying the cipher, which matches the cipherId
+     * field of its flight recorder events, or 0 for the process-wide totals
+     */
+    long id();
+
+    /**
+     * @return The number of 16-byte blocks passed through the encryption
+     * transformation, including keystream blocks for counter based modes
+     */
+    long blocksEncrypted();
+
+    /**
+     * @return The number of 16-byte blocks passed through the decryption
+     * transformation
+     */
+    long blocksDecrypted();
+
+    /**
+     * @return The number of bytes of input passed to the modes
+     */
+    long bytesProcessed();
+
+    /**
+     * @return The time spent inside the modes, in nanoseconds
+     */
+    long bulkNanos();
+
+    /**
+     * @return The number of keys expanded
+     */
+    long keyExpansions();
+
+    /**
+     * @return The time spent expanding keys, in nanoseconds
+     */
+    long keySetupNanos();
+
+    /**
+     * @return The number of messages rejected for invalid padding, length or
+     * authentication tag
+     */
+    long errors();
+}
@@ -0,0 +1,27 @@
+package ca.uvic.lscholte.aes;
+
+/**
+ * The process-wide {@link CipherMetrics} as seen through JMX, registered by
+ * {@link Instrumentation#registerMBean()}
+ * @author lscholte
+ */
+public interface CipherMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getBlocksEncrypted();
+
+    long getBlocksDecrypted();
+
+    long getBytesProcessed();
+
+    long getBulkNanos();
+
+    long getKeyExpansions();
+
+    long getKeySetupNanos();
+
+    long getErrors();
+}
@@ -0,0 +1,298 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts and decrypts whole files using AES-256 in counter mode. The source
+ * and destination are memory mapped, and the keystream is combined with the
+ * source directly into the destination mapping, so file data is never
+ * copied onto the heap.
+ *
+ * Only counter mode is supported. It needs no padding, so the output is the
+ * same size as the input, and any window of the file can be processed
+ * without the ones before it. Use {@link CBCMode} or the other modes on
+ * data read into memory when a different mode is needed.
+ *
+ * Files are processed in windows of a fixed size so that only a bounded part
+ * of each file is mapped at a time, and each window is unmapped as soon as
+ * it is done. Each window uses its own range of counter blocks, so windows
+ * are processed in parallel on a {@link ForkJoinPool}. The output is the
+ * same as {@link CTRMode} would give for the whole file. The source and
+ * destination may be the same file, which is then processed in place.
+ * @author lscholte
+ */
+public final class FileCipher {
+
+    /**
+     * The default number of bytes mapped by a single task
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 32 << 20;
+
+    /**
+     * The number of keystream bytes generated at a time within a window
+     */
+    static final int CHUNK_SIZE = 64 << 10;
+
+    private final AESCipher cipher;
+    private final ForkJoinPool pool;
+    private final int windowSize;
+
+    /**
+     * Initializes a file cipher using the common ForkJoinPool and the
+     * default window size
+     * @param cipher The cipher used to generate the keystream
+     */
+    public FileCipher(AESCipher cipher) {
+        this(cipher, ForkJoinPool.commonPool(), DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Initializes a file cipher
+     * @param cipher The cipher used to generate the keystream
+     * @param pool The pool that processes windows in parallel
+     * @param windowSize The number of bytes mapped by a single task, which
+     * must be a positive multiple of 16
+     */
+    public FileCipher(AESCipher cipher, ForkJoinPool pool, int windowSize) {
+        if (windowSize <= 0 || windowSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("The window size must be a positive multiple of " + BLOCK_SIZE);
+        }
+        this.cipher = cipher;
+        this.pool = pool;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Encrypts a file in counter mode. The destination is created, or
+     * replaced if it exists, and ends up the same size as the source. If the
+     * destination is the source itself, the file is encrypted in place
+     * @param source The file to encrypt
+     * @param destination The file that receives the ciphertext
+     * @param iv The 16-byte initial counter block
+     * @throws IOException If either file cannot be read, written or mapped
+     */
+    public void encrypt(Path source, Path destination, byte[] iv) throws IOException {
+        process(source, destination, iv);
+    }
+
+    /**
+     * Decrypts a file in counter mode. The destination is created, or
+     * replaced if it exists, and ends up the same size as the source. If the
+     * destination is the source itself, the file is decrypted in place
+     * @param source The file to decrypt
+     * @param destination The file that receives the plaintext
+     * @param iv The 16-byte initial counter block used to encrypt it
+     * @throws IOException If either file cannot be read, written or mapped
+     */
+    public void decrypt(Path source, Path destination, byte[] iv) throws IOException {
+        process(source, destination, iv);
+    }
+
+    /**
+     * Counter mode encryption and decryption are the same operation
+     */
+    private void process(Path source, Path destination, byte[] iv) throws IOException {
+        CTRMode ctr = new CTRMode(cipher, iv, pool);
+
+        //Truncating the destination would destroy the source, so the same
+        //file is opened once and processed in place
+        if (Files.exists(destination) && Files.isSameFile(source, destination)) {
+            try (FileChannel file = FileChannel.open(source,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                process(ctr, file, file);
+            }
+            return;
+        }
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+            process(ctr, in, out);
+        }
+    }
+
+    /**
+     * Processes the whole of one channel into another, which may be the same
+     * channel
+     */
+    private void process(CTRMode ctr, FileChannel in, FileChannel out) throws IOException {
+        long length = in.size();
+        if (length == 0) {
+            return;
+        }
+
+        //Extend the destination up front so that windows can be mapped in
+        //any order
+        if (out != in) {
+            out.write(ByteBuffer.allocate(1), length - 1);
+        }
+
+        List<WindowTask> tasks = new ArrayList<>();
+        for (long position = 0; position < length; position += windowSize) {
+            tasks.add(new WindowTask(ctr, in, out, position, (int) Math.min(windowSize, length - position)));
+        }
+
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+        try {
+            if (tasks.size() == 1) {
+                tasks.get(0).processWindow();
+            }
+            else {
+                @SuppressWarnings("serial")
+                RecursiveAction all = new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                };
+                pool.invoke(all);
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Instrumentation.endBulk(span, cipher.counters, "CTR", false, length);
+    }
+
+    /**
+     * Encrypts or decrypts one mapped window of the file
+     */
+    @SuppressWarnings("serial")
+    private static final class WindowTask extends RecursiveAction {
+
+        private final CTRMode ctr;
+        private final FileChannel in;
+        private final FileChannel out;
+        private final long position;
+        private final int length;
+
+        WindowTask(CTRMode ctr, FileChannel in, FileChannel out, long position, int length) {
+            this.ctr = ctr;
+            this.in = in;
+            this.out = out;
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                processWindow();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void processWindow() throws IOException {
+            MappedByteBuffer destination = out.map(FileChannel.MapMode.READ_WRITE, position, length);
+            MappedByteBuffer source = destination;
+            try {
+                if (in != out) {
+                    source = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                }
+                process(source, destination);
+            }
+            finally {
+                Unmapper.unmap(destination);
+                if (source != destination) {
+                    Unmapper.unmap(source);
+                }
+            }
+        }
+
+        private void process(ByteBuffer source, ByteBuffer destination) {
+            byte[] keystream = new byte[CHUNK_SIZE];
+            ByteBuffer keystreamBuffer = ByteBuffer.wrap(keystream);
+            long firstBlock = position / BLOCK_SIZE;
+
+            for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+                int chunk = Math.min(CHUNK_SIZE, length - offset);
+                int blocks = (chunk + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                ctr.keystream(firstBlock + offset / BLOCK_SIZE, blocks, keystream, 0);
+
+                //Combine eight bytes at a time while there are enough left
+                int i = 0;
+                for (; i + 8 <= chunk; i += 8) {
+                    destination.putLong(offset + i, source.getLong(offset + i) ^ keystreamBuffer.getLong(i));
+                }
+                for (; i < chunk; ++i) {
+                    destination.put(offset + i, (byte) (source.get(offset + i) ^ keystream[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases mapped windows as soon as they are finished with, rather than
+     * when the garbage collector gets to the buffers. There is no public API
+     * for this, so it goes through sun.misc.Unsafe.invokeCleaner, which
+     * exists from Java 9. When that is not available the windows are left to
+     * the garbage collector
+     */
+    private static final class Unmapper {
+
+        private static final Object UNSAFE = findUnsafe();
+        private static final Method INVOKE_CLEANER = findInvokeCleaner();
+
+        private Unmapper() { }
+
+        /**
+         * Unmaps a buffer, which must not be used afterwards
+         * @param buffer A buffer returned by FileChannel.map
+         */
+        static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                //The mapping is still released when the buffer is collected
+            }
+        }
+
+        private static Object findUnsafe() {
+            try {
+                Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return field.get(null);
+            }
+            catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                return null;
+            }
+        }
+
+        private static Method findInvokeCleaner() {
+            if (UNSAFE == null) {
+                return null;
+            }
+            try {
+                return UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                //Java 8 has no invokeCleaner
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ca.uvic.lscholte.aes;
+
+/**
+ * Emits the JDK Flight Recorder events of {@link Instrumentation}.
+ *
+ * The implementation needs the jdk.jfr module and is compiled from its own
+ * source root, so that the library itself builds and runs without it.
+ * Instrumentation loads it by name and skips the events when it is not
+ * available.
+ * @author lscholte
+ */
+interface FlightRecorder {
+
+    /**
+     * Starts a key setup event
+     * @return The event to pass to endKeySetup, or null if no recording has
+     * the event enabled
+     */
+    Object beginKeySetup();
+
+    void endKeySetup(Object event, long cipherId, String engine);
+
+    /**
+     * Starts a bulk operation event
+     * @return The event to pass to endBulk, or null if no recording has the
+     * event enabled
+     */
+    Object beginBulk();
+
+    void endBulk(Object event, long cipherId, String mode, boolean decrypting, long bytes);
+}
@@ -0,0 +1,269 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Authenticated encryption using AES-256 in Galois/Counter Mode (GCM), as
+ * described in NIST SP 800-38D, with a 16-byte authentication tag.
+ *
+ * Additional authenticated data (AAD) is passed to {@link #updateAAD} before
+ * any text, and the text itself is passed to
+ * {@link #update(byte[], int, int, byte[], int)} in pieces of any size. When
+ * encrypting, {@link #doFinal(byte[], int)} writes the tag after the
+ * ciphertext. When decrypting, the tag is expected at the end of the
+ * ciphertext, so the last 16 bytes seen are always held back until
+ * doFinal checks them.
+ *
+ * Each instance encrypts or decrypts a single message of at most
+ * {@link #MAX_TEXT_LENGTH} bytes. Instances are not safe for use by multiple
+ * threads at once.
+ * @author lscholte
+ */
+public final class GCMMode {
+
+    /**
+     * The number of bytes in an authentication tag
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The largest number of bytes of text in one message. Section 5.2.1.1 of
+     * SP 800-38D limits the plaintext to 2^39 - 256 bits, which is
+     * 2^32 - 2 blocks, so that the 32-bit counter never wraps around to the
+     * block used for the tag
+     */
+    public static final long MAX_TEXT_LENGTH = ((1L << 32) - 2) * BLOCK_SIZE;
+
+    private final boolean encrypting;
+    private final Instrumentation.Counters counters;
+    private final GHash ghash;
+    private final CTRMode ctr;
+    private final byte[] tagMask = new byte[BLOCK_SIZE];
+
+    private final byte[] held = new byte[TAG_LENGTH];
+    private int heldLength;
+
+    private long aadLength;
+    private long textLength;
+    private boolean textStarted;
+    private boolean finished;
+
+    /**
+     * Initializes GCM for one message using the common ForkJoinPool for the
+     * counter mode part of large inputs
+     * @param cipher The cipher to use
+     * @param iv The initialization vector, which should be 12 bytes long
+     * and must never be reused with the same key
+     * @param encrypting True to encrypt, false to decrypt
+     */
+    public GCMMode(AESCipher cipher, byte[] iv, boolean encrypting) {
+        this(cipher, iv, encrypting, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes GCM for one message
+     * @param cipher The cipher to use
+     * @param iv The initialization vector, which should be 12 bytes long
+     * and must never be reused with the same key
+     * @param encrypting True to encrypt, false to decrypt
+     * @param pool The pool used for the counter mode part of large inputs
+     */
+    public GCMMode(AESCipher cipher, byte[] iv, boolean encrypting, ForkJoinPool pool) {
+        if (iv.length == 0) {
+            throw new IllegalArgumentException("The IV must not be empty");
+        }
+        this.encrypting = encrypting;
+        this.counters = cipher.counters;
+
+        byte[] h = new byte[BLOCK_SIZE];
+        cipher.encryptBlock(h, 0);
+        ghash = new GHash(h);
+
+        byte[] j0 = new byte[BLOCK_SIZE];
+        if (iv.length == 12) {
+            System.arraycopy(iv, 0, j0, 0, iv.length);
+            j0[BLOCK_SIZE - 1] = 1;
+        }
+        else {
+            ghash.update(iv, 0, iv.length);
+            ghash.pad();
+            ghash.processBlock(0, (long) iv.length * 8);
+            ghash.digest(j0, 0);
+            ghash.reset();
+        }
+        cipher.encryptBlock(j0, 0, tagMask, 0);
+
+        //The text is encrypted starting from the counter block after J0
+        ctr = new CTRMode(cipher, j0, pool, CTRMode.Counter.BIG_ENDIAN_32);
+        ctr.seek(BLOCK_SIZE);
+    }
+
+    /**
+     * Adds data that is authenticated but not encrypted. This must be called
+     * before any text is processed
+     * @param aad The array containing the data
+     * @param offset The offset of the data
+     * @param length The number of bytes to add
+     */
+    public void updateAAD(byte[] aad, int offset, int length) {
+        checkNotFinished();
+        if (textStarted) {
+            throw new IllegalStateException("AAD must be supplied before the text");
+        }
+        if (length < 0 || offset < 0 || aad.length - offset < length) {
+            throw new IllegalArgumentException("The AAD must contain " + length + " bytes");
+        }
+        ghash.update(aad, offset, length);
+        aadLength += length;
+    }
+
+    /**
+     * Adds data that is authenticated but not encrypted. This must be called
+     * before any text is processed
+     * @param aad The data to add
+     */
+    public void updateAAD(byte[] aad) {
+        updateAAD(aad, 0, aad.length);
+    }
+
+    /**
+     * Encrypts or decrypts the input as a continuation of all previous calls.
+     * When encrypting, the output is the same length as the input and may be
+     * the same region of the same array. When decrypting, the output lags the
+     * input by 16 bytes and must not overlap it
+     * @param in The array containing the input
+     * @param inOff The offset of the input
+     * @param len The number of bytes to process
+     * @param out The array that receives the output
+     * @param outOff The offset at which to write the output
+     * @return The number of bytes written to out
+     * @throws IllegalStateException If the message would be longer than
+     * MAX_TEXT_LENGTH bytes
+     */
+    public int update(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        Instrumentation.Span span = Instrumentation.beginBulk(counters);
+        int written = updateText(in, inOff, len, out, outOff);
+        Instrumentation.endBulk(span, counters, "GCM", !encrypting, len);
+        return written;
+    }
+
+    private int updateText(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        checkNotFinished();
+        if (len < 0 || inOff < 0 || in.length - inOff < len) {
+            throw new IllegalArgumentException("The input must contain " + len + " bytes");
+        }
+        if (!textStarted) {
+            ghash.pad();
+            textStarted = true;
+        }
+
+        if (encrypting) {
+            checkOutput(out, outOff, len);
+            checkTextLength(len);
+            ctr.transform(in, inOff, len, out, outOff);
+            ghash.update(out, outOff, len);
+            textLength += len;
+            return len;
+        }
+
+        int release = Math.max(0, heldLength + len - TAG_LENGTH);
+        checkOutput(out, outOff, release);
+        checkTextLength(release);
+
+        //Release the oldest held back bytes first, then bytes from the input
+        int fromHeld = Math.min(heldLength, release);
+        if (fromHeld > 0) {
+            ghash.update(held, 0, fromHeld);
+            ctr.transform(held, 0, fromHeld, out, outOff);
+            System.arraycopy(held, fromHeld, held, 0, heldLength - fromHeld);
+            heldLength -= fromHeld;
+        }
+        int fromInput = release - fromHeld;
+        if (fromInput > 0) {
+            ghash.update(in, inOff, fromInput);
+            ctr.transform(in, inOff, fromInput, out, outOff + fromHeld);
+        }
+
+        System.arraycopy(in, inOff + fromInput, held, heldLength, len - fromInput);
+        heldLength += len - fromInput;
+        textLength += release;
+        return release;
+    }
+
+    /**
+     * Finishes the message. When encrypting, the authentication tag is
+     * written. When decrypting, the held back tag is checked
+     * @param out The array that receives any remaining output
+     * @param outOff The offset at which to write
+     * @return The number of bytes written to out
+     * @throws AEADBadTagException If decrypting and the tag does not match
+     * the data
+     */
+    public int doFinal(byte[] out, int outOff) throws AEADBadTagException {
+        checkNotFinished();
+        finished = true;
+
+        ghash.pad();
+        ghash.processBlock(aadLength * 8, textLength * 8);
+        byte[] tag = new byte[TAG_LENGTH];
+        ghash.digest(tag, 0);
+        for (int i = 0; i < TAG_LENGTH; ++i) {
+            tag[i] ^= tagMask[i];
+        }
+
+        if (encrypting) {
+            checkOutput(out, outOff, TAG_LENGTH);
+            System.arraycopy(tag, 0, out, outOff, TAG_LENGTH);
+            return TAG_LENGTH;
+        }
+
+        if (heldLength < TAG_LENGTH) {
+            Instrumentation.error(counters);
+            throw new AEADBadTagException("The input is too short to contain a tag");
+        }
+        if (!MessageDigest.isEqual(tag, held)) {
+            Instrumentation.error(counters);
+            throw new AEADBadTagException("The tag does not match the data");
+        }
+        return 0;
+    }
+
+    /**
+     * Encrypts or decrypts the rest of the message in a single call
+     * @param input The remaining input. When decrypting, this must end with
+     * the tag
+     * @return The output, followed by the tag if encrypting
+     * @throws AEADBadTagException If decrypting and the tag does not match
+     * the data
+     */
+    public byte[] doFinal(byte[] input) throws AEADBadTagException {
+        int outputLength = encrypting ?
+                input.length + TAG_LENGTH :
+                Math.max(0, heldLength + input.length - TAG_LENGTH);
+        byte[] output = new byte[outputLength];
+        int written = update(input, 0, input.length, output, 0);
+        doFinal(output, written);
+        return output;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("This message has already been finished");
+        }
+    }
+
+    private void checkTextLength(int len) {
+        if (len > MAX_TEXT_LENGTH - textLength) {
+            throw new IllegalStateException("A message must not be longer than " + MAX_TEXT_LENGTH + " bytes");
+        }
+    }
+
+    private static void checkOutput(byte[] out, int outOff, int length) {
+        if (outOff < 0 || out.length - outOff < length) {
+            throw new IllegalArgumentException("The output must have room for " + length + " bytes");
+        }
+    }
+}
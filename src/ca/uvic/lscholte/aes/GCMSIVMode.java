@@ -0,0 +1,327 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Encrypts and authenticates messages using AES-256-GCM-SIV, as described in
+ * RFC 8452. Unlike GCM, reusing a nonce does not reveal the authentication
+ * key or the keystream of other messages; it only reveals whether two
+ * messages with the same nonce and AAD were identical.
+ *
+ * For every message, the cipher holding the key-generating key derives a
+ * message authentication key and a message encryption key from the nonce.
+ * The encryption key is expanded into a schedule belonging to the calling
+ * thread, used without instrumentation since the work is already counted
+ * against the key-generating cipher, and zeroed before the call returns,
+ * along with any round keys the engine copied from it. The tag is the
+ * encryption of the POLYVAL hash of the AAD and the plaintext, and the
+ * plaintext is encrypted in counter mode starting from the tag. The tag
+ * depends on the whole plaintext, so each message is processed in a single
+ * call rather than in pieces. The counter mode part of large messages is
+ * split across a {@link ForkJoinPool}, the same as {@link CTRMode}.
+ *
+ * Instances hold no state between calls and are safe for use by multiple
+ * threads at once.
+ * @author lscholte
+ */
+public final class GCMSIVMode {
+
+    /**
+     * The length of a nonce in bytes
+     */
+    public static final int NONCE_LENGTH = 12;
+
+    /**
+     * The length of the authentication tag in bytes
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The largest number of bytes of plaintext in one message, from section
+     * 6 of RFC 8452
+     */
+    public static final long MAX_TEXT_LENGTH = 1L << 36;
+
+    /**
+     * The largest number of bytes of AAD for one message, from section 6 of
+     * RFC 8452
+     */
+    public static final long MAX_AAD_LENGTH = 1L << 36;
+
+    /**
+     * The number of key derivation blocks: two for the authentication key and
+     * four for the encryption key, each contributing its first 8 bytes
+     */
+    private static final int DERIVATION_BLOCKS = 6;
+
+    private final AESCipher cipher;
+    private final AESCipher.Engine engine;
+    private final ForkJoinPool pool;
+
+    /**
+     * Initializes GCM-SIV using the table engine for the message encryption
+     * keys and the common ForkJoinPool for the counter mode part of large
+     * messages
+     * @param cipher The cipher holding the key-generating key
+     */
+    public GCMSIVMode(AESCipher cipher) {
+        this(cipher, AESCipher.Engine.TABLE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes GCM-SIV
+     * @param cipher The cipher holding the key-generating key
+     * @param engine The implementation used for the message encryption keys
+     * @param pool The pool used for the counter mode part of large messages
+     */
+    public GCMSIVMode(AESCipher cipher, AESCipher.Engine engine, ForkJoinPool pool) {
+        this.cipher = cipher;
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    /**
+     * Encrypts and authenticates a message. The input and output may be the
+     * same region of the same array
+     * @param nonce The 12-byte nonce
+     * @param aad The data that is authenticated but not encrypted
+     * @param in The array containing the plaintext
+     * @param inOff The offset of the plaintext
+     * @param len The length of the plaintext
+     * @param out The array that receives the ciphertext followed by the tag
+     * @param outOff The offset at which to write
+     * @return The number of bytes written, which is len + TAG_LENGTH
+     */
+    public int encrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff) {
+        checkNonce(nonce);
+        if (len < 0 || inOff < 0 || in.length - inOff < len) {
+            throw new IllegalArgumentException("The input must contain " + len + " bytes");
+        }
+        checkLengths(aad, len);
+        if (outOff < 0 || out.length - outOff < len + TAG_LENGTH) {
+            throw new IllegalArgumentException("The output must have room for " + (len + TAG_LENGTH) + " bytes");
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+
+        byte[] keys = deriveKeys(nonce);
+        Scratch scratch = Scratch.get();
+        int[] words = acquireMessageKey(scratch);
+        AESCipher encryption = null;
+        try {
+            encryption = encryptionCipher(keys, words);
+            byte[] tag = tag(keys, encryption, nonce, aad, in, inOff, len);
+            Arrays.fill(keys, (byte) 0);
+
+            counterMode(encryption, tag).transform(in, inOff, len, out, outOff);
+            System.arraycopy(tag, 0, out, outOff + len, TAG_LENGTH);
+        }
+        finally {
+            Arrays.fill(keys, (byte) 0);
+            releaseMessageKey(scratch, words, encryption);
+        }
+
+        Instrumentation.endBulk(span, cipher.counters, "GCM-SIV", false, len);
+        return len + TAG_LENGTH;
+    }
+
+    /**
+     * Encrypts and authenticates a message
+     * @param nonce The 12-byte nonce
+     * @param aad The data that is authenticated but not encrypted
+     * @param plaintext The data to encrypt
+     * @return The ciphertext followed by the tag
+     */
+    public byte[] encrypt(byte[] nonce, byte[] aad, byte[] plaintext) {
+        byte[] output = new byte[plaintext.length + TAG_LENGTH];
+        encrypt(nonce, aad, plaintext, 0, plaintext.length, output, 0);
+        return output;
+    }
+
+    /**
+     * Decrypts a message and checks its tag. The input and output may be the
+     * same region of the same array
+     * @param nonce The 12-byte nonce the message was encrypted with
+     * @param aad The data that was authenticated but not encrypted
+     * @param in The array containing the ciphertext followed by the tag
+     * @param inOff The offset of the ciphertext
+     * @param len The length of the ciphertext and tag together
+     * @param out The array that receives the plaintext
+     * @param outOff The offset at which to write
+     * @return The number of bytes written, which is len - TAG_LENGTH
+     * @throws AEADBadTagException If the tag does not match the data, in
+     * which case the plaintext written to out is overwritten with zeros
+     */
+    public int decrypt(byte[] nonce, byte[] aad, byte[] in, int inOff, int len, byte[] out, int outOff) throws AEADBadTagException {
+        checkNonce(nonce);
+        if (len < 0 || inOff < 0 || in.length - inOff < len) {
+            throw new IllegalArgumentException("The input must contain " + len + " bytes");
+        }
+        if (len < TAG_LENGTH) {
+            Instrumentation.error(cipher.counters);
+            throw new AEADBadTagException("The input is too short to contain a tag");
+        }
+        int textLength = len - TAG_LENGTH;
+        checkLengths(aad, textLength);
+        if (outOff < 0 || out.length - outOff < textLength) {
+            throw new IllegalArgumentException("The output must have room for " + textLength + " bytes");
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+
+        //Keep the tag aside in case the output overwrites it
+        byte[] tag = Arrays.copyOfRange(in, inOff + textLength, inOff + len);
+        byte[] keys = deriveKeys(nonce);
+        Scratch scratch = Scratch.get();
+        int[] words = acquireMessageKey(scratch);
+        AESCipher encryption = null;
+        byte[] expected;
+        try {
+            encryption = encryptionCipher(keys, words);
+            counterMode(encryption, tag).transform(in, inOff, textLength, out, outOff);
+            expected = tag(keys, encryption, nonce, aad, out, outOff, textLength);
+        }
+        finally {
+            Arrays.fill(keys, (byte) 0);
+            releaseMessageKey(scratch, words, encryption);
+        }
+
+        Instrumentation.endBulk(span, cipher.counters, "GCM-SIV", true, textLength);
+        if (!MessageDigest.isEqual(tag, expected)) {
+            Arrays.fill(out, outOff, outOff + textLength, (byte) 0);
+            Instrumentation.error(cipher.counters);
+            throw new AEADBadTagException("The tag does not match the data");
+        }
+        return textLength;
+    }
+
+    /**
+     * Decrypts a message and checks its tag
+     * @param nonce The 12-byte nonce the message was encrypted with
+     * @param aad The data that was authenticated but not encrypted
+     * @param ciphertext The ciphertext followed by the tag
+     * @return The plaintext
+     * @throws AEADBadTagException If the tag does not match the data
+     */
+    public byte[] decrypt(byte[] nonce, byte[] aad, byte[] ciphertext) throws AEADBadTagException {
+        if (ciphertext.length < TAG_LENGTH) {
+            Instrumentation.error(cipher.counters);
+            throw new AEADBadTagException("The input is too short to contain a tag");
+        }
+        byte[] output = new byte[ciphertext.length - TAG_LENGTH];
+        decrypt(nonce, aad, ciphertext, 0, ciphertext.length, output, 0);
+        return output;
+    }
+
+    private static void checkNonce(byte[] nonce) {
+        if (nonce.length != NONCE_LENGTH) {
+            throw new IllegalArgumentException("The nonce must be " + NONCE_LENGTH + " bytes long");
+        }
+    }
+
+    private static void checkLengths(byte[] aad, long textLength) {
+        if (textLength > MAX_TEXT_LENGTH) {
+            throw new IllegalArgumentException("The plaintext must not be longer than " + MAX_TEXT_LENGTH + " bytes");
+        }
+        if (aad.length > MAX_AAD_LENGTH) {
+            throw new IllegalArgumentException("The AAD must not be longer than " + MAX_AAD_LENGTH + " bytes");
+        }
+    }
+
+    /**
+     * Derives the message keys as in section 4 of RFC 8452: block i is a
+     * little-endian 32-bit i followed by the nonce, and the first 8 bytes of
+     * the encryption of each block are kept. All six blocks are encrypted in
+     * one call
+     * @return The 16-byte authentication key followed by the 32-byte
+     * encryption key
+     */
+    private byte[] deriveKeys(byte[] nonce) {
+        byte[] blocks = new byte[DERIVATION_BLOCKS * BLOCK_SIZE];
+        for (int i = 0; i < DERIVATION_BLOCKS; ++i) {
+            blocks[i * BLOCK_SIZE] = (byte) i;
+            System.arraycopy(nonce, 0, blocks, i * BLOCK_SIZE + 4, NONCE_LENGTH);
+        }
+        cipher.encryptBlocks(blocks, 0, blocks, 0, DERIVATION_BLOCKS);
+
+        byte[] keys = new byte[DERIVATION_BLOCKS * BLOCK_SIZE / 2];
+        for (int i = 0; i < DERIVATION_BLOCKS; ++i) {
+            System.arraycopy(blocks, i * BLOCK_SIZE, keys, i * BLOCK_SIZE / 2, BLOCK_SIZE / 2);
+        }
+        Arrays.fill(blocks, (byte) 0);
+        return keys;
+    }
+
+    /**
+     * Expands the message encryption key into the given words. The message
+     * key is only ever used to encrypt, so no decryption schedule is
+     * generated and the encryption words stand in for it
+     */
+    private AESCipher encryptionCipher(byte[] keys, int[] words) {
+        KeyExpansion.expandKey(keys, BLOCK_SIZE, words, 0);
+        return AESCipher.uninstrumented(new KeySchedule(words, words, 0), engine);
+    }
+
+    /**
+     * @return The message key schedule of this thread, or a new array if
+     * this thread is already in the middle of another message
+     */
+    private static int[] acquireMessageKey(Scratch scratch) {
+        if (scratch.messageKeyInUse) {
+            return new int[KeySchedule.WORDS];
+        }
+        if (scratch.messageKey == null) {
+            scratch.messageKey = new int[KeySchedule.WORDS];
+        }
+        scratch.messageKeyInUse = true;
+        return scratch.messageKey;
+    }
+
+    /**
+     * Zeroes the message key and the round keys the engine made from it
+     * @param encryption The cipher built from the words, or null if building
+     * it failed
+     */
+    private static void releaseMessageKey(Scratch scratch, int[] words, AESCipher encryption) {
+        if (encryption != null) {
+            encryption.destroy();
+        }
+        Arrays.fill(words, 0);
+        if (words == scratch.messageKey) {
+            scratch.messageKeyInUse = false;
+        }
+    }
+
+    /**
+     * Computes the tag: the POLYVAL of the padded AAD, the padded plaintext
+     * and the length block, with the nonce XORed into the first 12 bytes and
+     * the top bit cleared, encrypted with the message encryption key
+     */
+    private static byte[] tag(byte[] keys, AESCipher encryption, byte[] nonce, byte[] aad, byte[] text, int offset, int length) {
+        Polyval polyval = new Polyval(keys, 0);
+        polyval.update(aad, 0, aad.length);
+        polyval.update(text, offset, length);
+        polyval.processLengths((long) aad.length * 8, (long) length * 8);
+
+        byte[] tag = new byte[TAG_LENGTH];
+        polyval.digest(tag, 0);
+        for (int i = 0; i < NONCE_LENGTH; ++i) {
+            tag[i] ^= nonce[i];
+        }
+        tag[TAG_LENGTH - 1] &= 0x7F;
+        encryption.encryptBlock(tag, 0, tag, 0);
+        return tag;
+    }
+
+    /**
+     * Counter mode starting from the tag with its top bit set, incrementing
+     * the first 32 bits as a little-endian integer
+     */
+    private CTRMode counterMode(AESCipher encryption, byte[] tag) {
+        byte[] counter = tag.clone();
+        counter[TAG_LENGTH - 1] |= (byte) 0x80;
+        return new CTRMode(encryption, counter, pool, CTRMode.Counter.LITTLE_ENDIAN_32);
+    }
+}
@@ -0,0 +1,178 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+
+/**
+ * The GHASH function used by GCM, as described in NIST SP 800-38D.
+ *
+ * Multiplication by the hash key H in GF(2^128) uses the 4-bit tables from
+ * Shoup's method: the multiples of H by every 4-bit value are computed once,
+ * and each product then needs 32 table lookups instead of 128 conditional
+ * shifts and XORs. Field elements are held as two longs with the first byte
+ * of the block in the most significant position of the high long.
+ * @author lscholte
+ */
+final class GHash {
+
+    /**
+     * The reduction to apply when four bits are shifted out of the low end
+     * of an element, indexed by those four bits and positioned in the top 16
+     * bits of the high long
+     */
+    private static final long[] LAST4 = {
+        0x0000L, 0x1C20L, 0x3840L, 0x2460L,
+        0x7080L, 0x6CA0L, 0x48C0L, 0x54E0L,
+        0xE100L, 0xFD20L, 0xD940L, 0xC560L,
+        0x9180L, 0x8DA0L, 0xA9C0L, 0xB5E0L
+    };
+
+    private final long[] tableHigh = new long[16];
+    private final long[] tableLow = new long[16];
+
+    private long stateHigh;
+    private long stateLow;
+
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int bufferLength;
+
+    /**
+     * Builds the multiplication tables for a hash key
+     * @param h The 16-byte hash key
+     */
+    GHash(byte[] h) {
+        this(Pack.toLong(h, 0), Pack.toLong(h, 8));
+    }
+
+    /**
+     * Builds the multiplication tables for a hash key
+     * @param hHigh The first 8 bytes of the hash key
+     * @param hLow The last 8 bytes of the hash key
+     */
+    GHash(long hHigh, long hLow) {
+        //The bit order in GCM is reflected, so index 8 (the high bit of a
+        //nibble) holds H itself and each halving of the index multiplies by x
+        long vh = hHigh;
+        long vl = hLow;
+        tableHigh[8] = vh;
+        tableLow[8] = vl;
+        for (int i = 4; i > 0; i >>>= 1) {
+            long reduce = (vl & 1) != 0 ? 0xE100000000000000L : 0;
+            vl = (vh << 63) | (vl >>> 1);
+            vh = (vh >>> 1) ^ reduce;
+            tableHigh[i] = vh;
+            tableLow[i] = vl;
+        }
+
+        //Every other entry is a sum of the entries for its set bits
+        for (int i = 2; i <= 8; i <<= 1) {
+            for (int j = 1; j < i; ++j) {
+                tableHigh[i + j] = tableHigh[i] ^ tableHigh[j];
+                tableLow[i + j] = tableLow[i] ^ tableLow[j];
+            }
+        }
+    }
+
+    /**
+     * Absorbs data into the hash. Data that does not fill a whole block is
+     * buffered until more data arrives or {@link #pad()} is called
+     * @param in The array containing the data
+     * @param offset The offset of the data
+     * @param length The number of bytes to absorb
+     */
+    void update(byte[] in, int offset, int length) {
+        if (bufferLength > 0) {
+            while (length > 0 && bufferLength < BLOCK_SIZE) {
+                buffer[bufferLength++] = in[offset++];
+                --length;
+            }
+            if (bufferLength < BLOCK_SIZE) {
+                return;
+            }
+            processBlock(Pack.toLong(buffer, 0), Pack.toLong(buffer, 8));
+            bufferLength = 0;
+        }
+
+        while (length >= BLOCK_SIZE) {
+            processBlock(Pack.toLong(in, offset), Pack.toLong(in, offset + 8));
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+
+        System.arraycopy(in, offset, buffer, 0, length);
+        bufferLength = length;
+    }
+
+    /**
+     * Completes a partial block with zeros and absorbs it
+     */
+    void pad() {
+        if (bufferLength > 0) {
+            for (int i = bufferLength; i < BLOCK_SIZE; ++i) {
+                buffer[i] = 0;
+            }
+            processBlock(Pack.toLong(buffer, 0), Pack.toLong(buffer, 8));
+            bufferLength = 0;
+        }
+    }
+
+    /**
+     * Absorbs a single block given as two longs. Any partial block must have
+     * been padded first
+     * @param high The first 8 bytes of the block
+     * @param low The last 8 bytes of the block
+     */
+    void processBlock(long high, long low) {
+        stateHigh ^= high;
+        stateLow ^= low;
+        multiplyState();
+    }
+
+    /**
+     * Writes the current value of the hash
+     * @param out The array that receives the 16-byte value
+     * @param offset The offset at which to write
+     */
+    void digest(byte[] out, int offset) {
+        Pack.fromLong(stateHigh, out, offset);
+        Pack.fromLong(stateLow, out, offset + 8);
+    }
+
+    /**
+     * Clears the hash so it can be reused with the same key
+     */
+    void reset() {
+        stateHigh = 0;
+        stateLow = 0;
+        bufferLength = 0;
+    }
+
+    /**
+     * Replaces the state with the product of the state and H, working
+     * through the state a nibble at a time from the last byte to the first
+     */
+    private void multiplyState() {
+        long zh = 0;
+        long zl = 0;
+        for (int i = 15; i >= 0; --i) {
+            int b = i >= 8 ?
+                    (int) (stateLow >>> ((15 - i) * 8)) & 0xFF :
+                    (int) (stateHigh >>> ((7 - i) * 8)) & 0xFF;
+
+            if (i != 15) {
+                long rem = LAST4[(int) zl & 0x0F];
+                zl = (zh << 60) | (zl >>> 4);
+                zh = (zh >>> 4) ^ (rem << 48);
+            }
+            zh ^= tableHigh[b & 0x0F];
+            zl ^= tableLow[b & 0x0F];
+
+            long rem = LAST4[(int) zl & 0x0F];
+            zl = (zh << 60) | (zl >>> 4);
+            zh = (zh >>> 4) ^ (rem << 48);
+            zh ^= tableHigh[b >>> 4];
+            zl ^= tableLow[b >>> 4];
+        }
+        stateHigh = zh;
+        stateLow = zl;
+    }
+}
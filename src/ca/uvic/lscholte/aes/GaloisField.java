@@ -1,24 +1,81 @@
 package ca.uvic.lscholte.aes;
 
 /**
- * A class for doing arithmetic in a Galois Field
+ * A class for doing arithmetic in a Galois Field.
+ *
+ * General products are computed with logarithm and exponent tables for the
+ * generator 0x03, and the constants used by MixColumns and InvMixColumns
+ * have their own tables of products.
  * @author lscholte
  */
 public class GaloisField {
-    
+
     /**
-     * Algorithm detailed at http://www.samiam.org/galois.html
+     * EXP[i] is 0x03 raised to the power i. The table holds two periods so
+     * that the sum of two logarithms can be used as an index directly
+     */
+    private static final byte[] EXP = new byte[510];
+
+    /**
+     * LOG[x] is the power of 0x03 that equals x. LOG[0] is unused
+     */
+    private static final int[] LOG = new int[256];
+
+    private static final byte[] MUL2 = new byte[256];
+    private static final byte[] MUL3 = new byte[256];
+    private static final byte[] MUL9 = new byte[256];
+    private static final byte[] MUL11 = new byte[256];
+    private static final byte[] MUL13 = new byte[256];
+    private static final byte[] MUL14 = new byte[256];
+
+    static {
+        byte x = 1;
+        for (int i = 0; i < 255; ++i) {
+            EXP[i] = x;
+            EXP[i + 255] = x;
+            LOG[x & 0xFF] = i;
+            x = multiplyLoop(x, (byte) 3);
+        }
+
+        for (int i = 0; i < 256; ++i) {
+            byte b = (byte) i;
+            MUL2[i] = multiplyLoop(b, (byte) 2);
+            MUL3[i] = multiplyLoop(b, (byte) 3);
+            MUL9[i] = multiplyLoop(b, (byte) 9);
+            MUL11[i] = multiplyLoop(b, (byte) 11);
+            MUL13[i] = multiplyLoop(b, (byte) 13);
+            MUL14[i] = multiplyLoop(b, (byte) 14);
+        }
+    }
+
+    /**
+     * Multiplies two bytes using the logarithm and exponent tables
      * @param a The first byte
      * @param b The second byte
      * @return product of bytes a and b
      */
     static byte multiply(byte a, byte b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a & 0xFF] + LOG[b & 0xFF]];
+    }
+
+    /**
+     * Multiplies two bytes without any tables. This is used to build the
+     * tables, and as a reference to check them against.
+     * Algorithm detailed at http://www.samiam.org/galois.html
+     * @param a The first byte
+     * @param b The second byte
+     * @return product of bytes a and b
+     */
+    static byte multiplyLoop(byte a, byte b) {
         byte product = 0;
         for (int i = 0; i < 8; ++i) {
            if ((b & 0x01) != 0) { //Check if the low bit of byte b is set to 1
               product ^= a;
            }
-           boolean highBitA = (a & 0x80) != 0; //Check if the high bit of byte a is set to 1 
+           boolean highBitA = (a & 0x80) != 0; //Check if the high bit of byte a is set to 1
            a <<= 1;
            if (highBitA) {
               a ^= 0x1b;
@@ -27,17 +84,86 @@ public class GaloisField {
         }
         return product;
     }
-    
+
+    /**
+     * @param a A byte
+     * @return The product of a and 2, also known as xtime(a)
+     */
+    static byte mul2(byte a) {
+        return MUL2[a & 0xFF];
+    }
+
     /**
-     * Adds several bytes. Addition is simply an XOR operation
-     * @param bytes The bytes to add together
-     * @return The sum of all the bytes
+     * @param a A byte
+     * @return The product of a and 3
      */
-    static byte add(byte... bytes) {
-        byte result = 0;
-        for (byte b : bytes) {
-            result ^= b;
-        }
-        return result;
+    static byte mul3(byte a) {
+        return MUL3[a & 0xFF];
+    }
+
+    /**
+     * @param a A byte
+     * @return The product of a and 9
+     */
+    static byte mul9(byte a) {
+        return MUL9[a & 0xFF];
+    }
+
+    /**
+     * @param a A byte
+     * @return The product of a and 11
+     */
+    static byte mul11(byte a) {
+        return MUL11[a & 0xFF];
+    }
+
+    /**
+     * @param a A byte
+     * @return The product of a and 13
+     */
+    static byte mul13(byte a) {
+        return MUL13[a & 0xFF];
+    }
+
+    /**
+     * @param a A byte
+     * @return The product of a and 14
+     */
+    static byte mul14(byte a) {
+        return MUL14[a & 0xFF];
+    }
+
+    /**
+     * Adds two bytes. Addition is simply an XOR operation
+     * @param a The first byte
+     * @param b The second byte
+     * @return The sum of the bytes
+     */
+    static byte add(byte a, byte b) {
+        return (byte) (a ^ b);
+    }
+
+    /**
+     * Adds three bytes. Addition is simply an XOR operation
+     * @param a The first byte
+     * @param b The second byte
+     * @param c The third byte
+     * @return The sum of the bytes
+     */
+    static byte add(byte a, byte b, byte c) {
+        return (byte) (a ^ b ^ c);
+    }
+
+    /**
+     * Adds four bytes, such as the four terms of one row of the MixColumns
+     * matrix product. Addition is simply an XOR operation
+     * @param a The first byte
+     * @param b The second byte
+     * @param c The third byte
+     * @param d The fourth byte
+     * @return The sum of the bytes
+     */
+    static byte add(byte a, byte b, byte c, byte d) {
+        return (byte) (a ^ b ^ c ^ d);
     }
 }
@@ -0,0 +1,151 @@
+package ca.uvic.lscholte.aes;
+
+/**
+ * A table-driven hexadecimal encoder and decoder. Decoding accepts upper and
+ * lower case digits, and encoding produces upper case digits.
+ *
+ * Every method has a variant that writes into a caller-provided array so
+ * that many blocks can be converted without intermediate allocations.
+ * @author lscholte
+ */
+public final class Hex {
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The value of each hexadecimal digit indexed by its character, or -1 if
+     * the character is not a hexadecimal digit
+     */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; ++i) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; ++i) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; ++i) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private Hex() { }
+
+    /**
+     * Converts a string of hexadecimal digits to bytes
+     * @param hex A sequence of hexadecimal digits of even length
+     * @return The decoded bytes
+     */
+    public static byte[] decode(CharSequence hex) {
+        checkEven(hex.length());
+        byte[] result = new byte[hex.length() / 2];
+        decode(hex, 0, hex.length(), result, 0);
+        return result;
+    }
+
+    /**
+     * Converts part of a sequence of hexadecimal digits to bytes
+     * @param hex The sequence containing the digits
+     * @param start The index of the first digit
+     * @param end The index after the last digit
+     * @param out The array that receives the decoded bytes
+     * @param outOff The offset at which to write
+     * @return The number of bytes written, which is half the number of digits
+     */
+    public static int decode(CharSequence hex, int start, int end, byte[] out, int outOff) {
+        int length = end - start;
+        checkRange(hex.length(), start, length);
+        checkEven(length);
+        checkRange(out.length, outOff, length / 2);
+
+        for (int i = start; i < end; i += 2) {
+            out[outOff++] = (byte) ((value(hex.charAt(i)) << 4) | value(hex.charAt(i + 1)));
+        }
+        return length / 2;
+    }
+
+    /**
+     * Converts part of an array of hexadecimal digits to bytes
+     * @param hex The array containing the digits
+     * @param offset The index of the first digit
+     * @param length The number of digits, which must be even
+     * @param out The array that receives the decoded bytes
+     * @param outOff The offset at which to write
+     * @return The number of bytes written, which is half the number of digits
+     */
+    public static int decode(char[] hex, int offset, int length, byte[] out, int outOff) {
+        checkRange(hex.length, offset, length);
+        checkEven(length);
+        checkRange(out.length, outOff, length / 2);
+
+        for (int i = offset; i < offset + length; i += 2) {
+            out[outOff++] = (byte) ((value(hex[i]) << 4) | value(hex[i + 1]));
+        }
+        return length / 2;
+    }
+
+    /**
+     * Converts bytes to a string of upper case hexadecimal digits
+     * @param bytes The bytes to convert
+     * @return A string twice as long as the array
+     */
+    public static String encode(byte[] bytes) {
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Converts part of an array of bytes to a string of upper case
+     * hexadecimal digits
+     * @param bytes The array containing the bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes to convert
+     * @return A string of length 2*length
+     */
+    public static String encode(byte[] bytes, int offset, int length) {
+        char[] result = new char[length * 2];
+        encode(bytes, offset, length, result, 0);
+        return new String(result);
+    }
+
+    /**
+     * Converts part of an array of bytes to upper case hexadecimal digits
+     * @param bytes The array containing the bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes to convert
+     * @param out The array that receives the digits
+     * @param outOff The offset at which to write
+     * @return The number of characters written, which is 2*length
+     */
+    public static int encode(byte[] bytes, int offset, int length, char[] out, int outOff) {
+        checkRange(bytes.length, offset, length);
+        checkRange(out.length, outOff, length * 2);
+
+        for (int i = offset; i < offset + length; ++i) {
+            out[outOff++] = DIGITS[(bytes[i] >>> 4) & 0x0F];
+            out[outOff++] = DIGITS[bytes[i] & 0x0F];
+        }
+        return length * 2;
+    }
+
+    private static int value(char c) {
+        int value = c < VALUES.length ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("'" + c + "' is not a hexadecimal digit");
+        }
+        return value;
+    }
+
+    private static void checkEven(int length) {
+        if (length % 2 != 0) {
+            throw new IllegalArgumentException("Hexadecimal input must have an even number of digits");
+        }
+    }
+
+    private static void checkRange(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || arrayLength - offset < length) {
+            throw new IllegalArgumentException("The range at offset " + offset + " of length " + length + " is out of bounds");
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package ca.uvic.lscholte.aes;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Optional counters and JDK Flight Recorder events for ciphers and modes.
+ *
+ * Instrumentation is off unless the system property
+ * {@value #PROPERTY} is true or {@link #setEnabled(boolean)} is called. Each
+ * cipher decides whether it is instrumented when it is created; ciphers
+ * created while instrumentation is off skip it entirely, at the cost of one
+ * null check per call. Instrumented ciphers count blocks, bytes, key setup
+ * and errors in LongAdders, both for the cipher itself ({@link
+ * AESCipher#metrics()}) and for the whole process ({@link #totals()}), and
+ * emit ca.uvic.lscholte.aes.KeySetup and ca.uvic.lscholte.aes.BulkOperation
+ * events when a flight recording has them enabled. The events need the
+ * jdk.jfr module and the classes from the jfr source root; when either is
+ * missing the counters still work and no events are emitted.
+ * @author lscholte
+ */
+public final class Instrumentation {
+
+    /**
+     * The system property that turns instrumentation on at startup
+     */
+    public static final String PROPERTY = "ca.uvic.lscholte.aes.instrumentation";
+
+    /**
+     * The name under which {@link #registerMBean()} registers the totals
+     */
+    public static final String OBJECT_NAME = "ca.uvic.lscholte.aes:type=CipherMetrics";
+
+    private static final Counters TOTALS = new Counters(0, null);
+    private static final Counters NONE = new Counters(0, null);
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+
+    private Instrumentation() { }
+
+    /**
+     * Turns instrumentation on or off for ciphers created from now on.
+     * Existing ciphers keep the setting they were created with
+     * @param enabled True to instrument new ciphers
+     */
+    public static void setEnabled(boolean enabled) {
+        Instrumentation.enabled = enabled;
+    }
+
+    /**
+     * @return True if new ciphers are instrumented
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The counts for every instrumented cipher in the process
+     */
+    public static CipherMetrics totals() {
+        return TOTALS;
+    }
+
+    /**
+     * Registers the totals with the platform MBean server under
+     * {@value #OBJECT_NAME}, unless they are already registered
+     * @return The name of the MBean
+     * @throws JMException If the MBean cannot be registered
+     */
+    public static ObjectName registerMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        synchronized (Instrumentation.class) {
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new TotalsMXBean(), name);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return New counters for a cipher, or null if instrumentation is off
+     */
+    static Counters newCounters() {
+        return enabled ? new Counters(IDS.incrementAndGet(), TOTALS) : null;
+    }
+
+    /**
+     * @return The process-wide counters for work not tied to a cipher, or
+     * null if instrumentation is off
+     */
+    static Counters sharedCounters() {
+        return enabled ? TOTALS : null;
+    }
+
+    /**
+     * @return The counts of a cipher, which are all zero if it is not
+     * instrumented
+     */
+    static CipherMetrics metrics(Counters counters) {
+        return counters == null ? NONE : counters;
+    }
+
+    /**
+     * Starts timing a key setup
+     * @return The span to pass to endKeySetup, or null if not instrumented
+     */
+    static Span beginKeySetup(Counters counters) {
+        if (counters == null) {
+            return null;
+        }
+        FlightRecorder recorder = FlightRecorderHolder.RECORDER;
+        return new Span(recorder != null ? recorder.beginKeySetup() : null);
+    }
+
+    static void endKeySetup(Span span, Counters counters, String engine) {
+        if (span == null) {
+            return;
+        }
+        counters.keySetup(System.nanoTime() - span.start);
+        if (span.event != null) {
+            FlightRecorderHolder.RECORDER.endKeySetup(span.event, counters.id, engine);
+        }
+    }
+
+    /**
+     * Starts timing a call into a mode
+     * @return The span to pass to endBulk, or null if not instrumented
+     */
+    static Span beginBulk(Counters counters) {
+        if (counters == null) {
+            return null;
+        }
+        FlightRecorder recorder = FlightRecorderHolder.RECORDER;
+        return new Span(recorder != null ? recorder.beginBulk() : null);
+    }
+
+    static void endBulk(Span span, Counters counters, String mode, boolean decrypting, long bytes) {
+        if (span == null) {
+            return;
+        }
+        counters.bulk(bytes, System.nanoTime() - span.start);
+        if (span.event != null) {
+            FlightRecorderHolder.RECORDER.endBulk(span.event, counters.id, mode, decrypting, bytes);
+        }
+    }
+
+    static void error(Counters counters) {
+        if (counters != null) {
+            counters.error();
+        }
+    }
+
+    /**
+     * Loads the flight recorder events the first time an instrumented cipher
+     * needs them, so that uninstrumented ciphers never touch jdk.jfr
+     */
+    private static final class FlightRecorderHolder {
+
+        /**
+         * The events, or null if they could not be loaded
+         */
+        static final FlightRecorder RECORDER = findFlightRecorder();
+
+        private static FlightRecorder findFlightRecorder() {
+            try {
+                return Class.forName("ca.uvic.lscholte.aes.FlightRecorderEvents")
+                        .asSubclass(FlightRecorder.class)
+                        .getDeclaredConstructor()
+                        .newInstance();
+            }
+            catch (ReflectiveOperationException | LinkageError e) {
+                //Either the jfr source root was not compiled in, or the
+                //jdk.jfr module is not present at runtime
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The start of a timed operation, and its flight recorder event if one
+     * is being recorded
+     */
+    static final class Span {
+
+        final long start = System.nanoTime();
+        final Object event;
+
+        Span(Object event) {
+            this.event = event;
+        }
+    }
+
+    /**
+     * The counts for one cipher, which also add to a parent
+     */
+    static final class Counters implements CipherMetrics {
+
+        final long id;
+        private final Counters parent;
+
+        private final LongAdder blocksEncrypted = new LongAdder();
+        private final LongAdder blocksDecrypted = new LongAdder();
+        private final LongAdder bytesProcessed = new LongAdder();
+        private final LongAdder bulkNanos = new LongAdder();
+        private final LongAdder keyExpansions = new LongAdder();
+        private final LongAdder keySetupNanos = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        Counters(long id, Counters parent) {
+            this.id = id;
+            this.parent = parent;
+        }
+
+        void encrypted(long blocks) {
+            blocksEncrypted.add(blocks);
+            if (parent != null) {
+                parent.encrypted(blocks);
+            }
+        }
+
+        void decrypted(long blocks) {
+            blocksDecrypted.add(blocks);
+            if (parent != null) {
+                parent.decrypted(blocks);
+            }
+        }
+
+        void bulk(long bytes, long nanos) {
+            bytesProcessed.add(bytes);
+            bulkNanos.add(nanos);
+            if (parent != null) {
+                parent.bulk(bytes, nanos);
+            }
+        }
+
+        void keySetup(long nanos) {
+            keyExpansions.increment();
+            keySetupNanos.add(nanos);
+            if (parent != null) {
+                parent.keySetup(nanos);
+            }
+        }
+
+        void error() {
+            errors.increment();
+            if (parent != null) {
+                parent.error();
+            }
+        }
+
+        @Override
+        public long id() {
+            return id;
+        }
+
+        @Override
+        public long blocksEncrypted() {
+            return blocksEncrypted.sum();
+        }
+
+        @Override
+        public long blocksDecrypted() {
+            return blocksDecrypted.sum();
+        }
+
+        @Override
+        public long bytesProcessed() {
+            return bytesProcessed.sum();
+        }
+
+        @Override
+        public long bulkNanos() {
+            return bulkNanos.sum();
+        }
+
+        @Override
+        public long keyExpansions() {
+            return keyExpansions.sum();
+        }
+
+        @Override
+        public long keySetupNanos() {
+            return keySetupNanos.sum();
+        }
+
+        @Override
+        public long errors() {
+            return errors.sum();
+        }
+    }
+
+    /**
+     * Exposes the totals as JMX attributes
+     */
+    private static final class TotalsMXBean implements CipherMetricsMXBean {
+
+        @Override
+        public boolean isEnabled() {
+            return Instrumentation.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            Instrumentation.setEnabled(enabled);
+        }
+
+        @Override
+        public long getBlocksEncrypted() {
+            return TOTALS.blocksEncrypted();
+        }
+
+        @Override
+        public long getBlocksDecrypted() {
+            return TOTALS.blocksDecrypted();
+        }
+
+        @Override
+        public long getBytesProcessed() {
+            return TOTALS.bytesProcessed();
+        }
+
+        @Override
+        public long getBulkNanos() {
+            return TOTALS.bulkNanos();
+        }
+
+        @Override
+        public long getKeyExpansions() {
+            return TOTALS.keyExpansions();
+        }
+
+        @Override
+        public long getKeySetupNanos() {
+            return TOTALS.keySetupNanos();
+        }
+
+        @Override
+        public long getErrors() {
+            return TOTALS.errors();
+        }
+    }
+}
@@ -3,126 +3,120 @@ package ca.uvic.lscholte.aes;
 import static ca.uvic.lscholte.aes.AESConstants.NB;
 import static ca.uvic.lscholte.aes.AESConstants.NK;
 import static ca.uvic.lscholte.aes.AESConstants.NR;
-import static ca.uvic.lscholte.aes.AESConstants.S;
-import java.util.Arrays;
+import static ca.uvic.lscholte.aes.TableEngine.SBOX;
+import static ca.uvic.lscholte.aes.TableEngine.TD0;
+import static ca.uvic.lscholte.aes.TableEngine.TD1;
+import static ca.uvic.lscholte.aes.TableEngine.TD2;
+import static ca.uvic.lscholte.aes.TableEngine.TD3;
 
 /**
- * A set of methods relating to key expansion that are needed for the AES-256 cipher
+ * A set of methods relating to key expansion that are needed for the AES-256 cipher.
+ *
+ * The expanded key is a flat array of NB*(NR+1) words, where each word holds
+ * four consecutive key bytes with the first in the most significant
+ * position. Word i is column i%NB of round key i/NB.
  * @author lscholte
  */
 public final class KeyExpansion {
-    
+
+    /**
+     * The round constants used by every NK-th word, already shifted into the
+     * most significant byte. Entry i is x^(i-1) in GF(2^8)
+     */
+    private static final int[] RCON = {
+        0x00000000, 0x01000000, 0x02000000, 0x04000000,
+        0x08000000, 0x10000000, 0x20000000, 0x40000000
+    };
+
     private KeyExpansion() { }
-     
-    static byte[][] formatKey(byte[] key) {
+
+    /**
+     * Generates the encryption key schedule as described in section 5.2 of
+     * FIPS-197. Nothing is allocated apart from the result
+     * @param key An array of bytes of length 32
+     * @return An array of NB*(NR+1) words
+     */
+    static int[] expandKey(byte[] key) {
         if (key.length != NK * NB) {
             throw new IllegalArgumentException("Key must be exactly " + (NK * NB) + " bytes long");
         }
-        
-        byte[][] formattedKey = new byte[NK][NB];
-        
-        for (int i = 0; i < NK; ++i) {
-            for (int j = 0; j < NB; ++j) {
-                formattedKey[i][j] = key[i*NB + j];
-            }
-        }
-        return formattedKey;
+
+        int[] words = new int[NB * (NR + 1)];
+        expandKey(key, 0, words, 0);
+        return words;
     }
-    
+
     /**
-     * Generates an array of round keys where a single round key is a 2D array
-     * of bytes
-     * @param key The starting key to use when generating the round keys
-     * @return An array of round keys
+     * Generates the encryption key schedule into part of a larger array
+     * @param key The array containing the 32-byte key
+     * @param keyOff The offset of the key
+     * @param words The array that receives the NB*(NR+1) words
+     * @param wordsOff The index at which to write the first word
      */
-    static final byte[][][] generateRoundKeys(byte[][] key) {
-        final int numWords = NB * (NR + 1);
-        
-        byte[][] expandedKey = new byte[numWords][4];
-        
+    static void expandKey(byte[] key, int keyOff, int[] words, int wordsOff) {
         for (int i = 0; i < NK; ++i) {
-            expandedKey[i] = key[i];
+            words[wordsOff + i] = TableEngine.toWord(key, keyOff + i * 4);
         }
 
-        for (int i = NK; i < numWords; ++i) {
-            byte[] temp = expandedKey[i-1];
+        for (int i = NK; i < NB * (NR + 1); ++i) {
+            int temp = words[wordsOff + i-1];
             if (i % NK == 0) {
-                temp = sub(rotate(temp));
-                temp[0] ^= rcon(i/NK);
+                temp = subWord(Integer.rotateLeft(temp, 8)) ^ RCON[i/NK];
             }
             else if (i % NK == 4) {
-                temp = sub(temp);
+                temp = subWord(temp);
             }
-            for (int j = 0; j < NB; ++j) {
-                expandedKey[i][j] = (byte) (expandedKey[i-NK][j] ^ temp[j]);
-            }
-        }
-        
-        byte[][][] result = new byte[NR+1][NB][NB];
-        
-        for (int i = 0; i < NR+1; ++i) {
-            result[i] = transpose(Arrays.copyOfRange(expandedKey, i * NB, (i+1) * NB));
+            words[wordsOff + i] = words[wordsOff + i-NK] ^ temp;
         }
-        
-        return result;
     }
-    
-    private static byte[] rotate(byte[] word) {
-        byte[] rotatedWord = new byte[word.length];
-        
-        for (int i = 0; i < word.length; ++i) {
-            int shiftedI = (i + word.length + 1) % word.length;
-            rotatedWord[i] = word[shiftedI];
-        }
-        return rotatedWord;
-    }
-    
-    private static byte[] sub(byte[] word) {
-        byte[] subbedWord = new byte[word.length];
-        
-        for (int i = 0; i < word.length; ++i) {
-            
-            //Java seems to have an annoying feature where shifting operates on
-            //ints instead of bytes, so byte operands are automatically cast to
-            //ints. And since bytes are signed, the casting operation will keep
-            //the sign. For example, casting 0x80 to an int will result in
-            //0xFFFFFF80. I don't want the sign to be copied over, so I need
-            //to mask the int value such that the first 24 bits are 0
-            
-            byte b = word[i];
-            int x = ((int) b & 0xFF) >>> 4;
-            int y = b & 0x0F;
-            subbedWord[i] = (byte) S[x][y];
-        }
-        return subbedWord;
-    }
-    
-    private static byte rcon(int in) {
-        if(in == 0) {
-            return 0;
-        }        
-        
-        byte c = 1;
-        for (int i = 0; i < in - 1; ++i) {
-            c = GaloisField.multiply(c, (byte) 2);
-        }
-        
-        return c;
+
+    /**
+     * Generates the key schedule for the "equivalent inverse cipher" described
+     * in section 5.3.5 of FIPS-197. The round keys are in reverse order, and
+     * every round key except the first and last has InvMixColumns applied to
+     * it, so that decryption does not have to transform the round keys again
+     * for every block
+     * @param words The schedule produced by {@link #expandKey(byte[])}
+     * @return An array of NB*(NR+1) words
+     */
+    static int[] generateDecryptionWords(int[] words) {
+        int[] result = new int[words.length];
+        generateDecryptionWords(words, 0, result, 0);
+        return result;
     }
-    
+
     /**
-     * This is purely intended to transform a 2D array so that the words fit
-     * into the columns instead of the rows
-     * @param words Must be an NBxNB 2D array
-     * @return The transpose of the 2D array
+     * Generates the decryption key schedule into part of a larger array
+     * @param words The array containing the encryption schedule
+     * @param wordsOff The index of the first word of the encryption schedule
+     * @param result The array that receives the NB*(NR+1) words
+     * @param resultOff The index at which to write the first word
      */
-    private static byte[][] transpose(byte[][] words) {
-        byte[][] transpose = new byte[NB][NB];
-        for (int i = 0; i < NB; ++i) {
-            for (int j = 0; j < NB; ++j) {
-                transpose[j][i] = words[i][j];
+    static void generateDecryptionWords(int[] words, int wordsOff, int[] result, int resultOff) {
+        for (int round = 0; round <= NR; ++round) {
+            for (int c = 0; c < NB; ++c) {
+                int w = words[wordsOff + (NR - round)*NB + c];
+                result[resultOff + round*NB + c] = round == 0 || round == NR ? w : inverseMixColumn(w);
             }
         }
-        return transpose;
+    }
+
+    /**
+     * Applies InvMixColumns to a single column. The decryption tables combine
+     * the inverse S-box with InvMixColumns, so looking each byte up through
+     * the S-box first leaves only InvMixColumns
+     */
+    private static int inverseMixColumn(int w) {
+        return TD0[SBOX[w >>> 24]]
+                ^ TD1[SBOX[(w >>> 16) & 0xFF]]
+                ^ TD2[SBOX[(w >>> 8) & 0xFF]]
+                ^ TD3[SBOX[w & 0xFF]];
+    }
+
+    private static int subWord(int w) {
+        return SBOX[w >>> 24] << 24
+                | SBOX[(w >>> 16) & 0xFF] << 16
+                | SBOX[(w >>> 8) & 0xFF] << 8
+                | SBOX[w & 0xFF];
     }
 }
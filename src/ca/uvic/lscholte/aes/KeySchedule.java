@@ -0,0 +1,102 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESConstants.NB;
+import static ca.uvic.lscholte.aes.AESConstants.NR;
+import java.util.Arrays;
+
+/**
+ * The expanded encryption and decryption round keys for a single AES-256 key.
+ *
+ * Each round key is stored as four words, one per column, with the byte
+ * from row 0 in the most significant position. The decryption schedule
+ * holds the round keys in reverse order, with InvMixColumns applied to every
+ * key except the first and last, as produced by
+ * {@link KeyExpansion#generateDecryptionWords(int[])}.
+ *
+ * The words of a schedule start at an offset into its arrays, so that a
+ * {@link KeyScheduleArena} can hand out schedules for many keys that share
+ * the same pair of arrays.
+ *
+ * A schedule never changes after it is expanded, except when a
+ * {@link KeyScheduleCache} zeroes it once it has been evicted and its last
+ * lease released, or when {@link GCMSIVMode} zeroes a message key at the end
+ * of a call, and may be shared freely between threads and between
+ * ciphers. Building an {@link AESCipher} from a shared schedule costs no key
+ * expansion.
+ * @author lscholte
+ */
+public final class KeySchedule {
+
+    /**
+     * The number of words in the schedule for one key
+     */
+    static final int WORDS = NB * (NR + 1);
+
+    final int[] encryptionWords;
+    final int[] decryptionWords;
+    final int offset;
+
+    /**
+     * @param encryptionWords The array holding the encryption schedule
+     * @param decryptionWords The array holding the decryption schedule
+     * @param offset The index of the first word of this schedule in both
+     * arrays
+     */
+    KeySchedule(int[] encryptionWords, int[] decryptionWords, int offset) {
+        this.encryptionWords = encryptionWords;
+        this.decryptionWords = decryptionWords;
+        this.offset = offset;
+    }
+
+    /**
+     * Expands a 32-byte (256-bit) key
+     * @param key An array of bytes of length 32
+     * @return The expanded key
+     */
+    public static KeySchedule expand(byte[] key) {
+        int[] encryptionWords = KeyExpansion.expandKey(key);
+        return new KeySchedule(encryptionWords, KeyExpansion.generateDecryptionWords(encryptionWords), 0);
+    }
+
+    /**
+     * Converts the encryption schedule into the 2D round keys used by
+     * {@link AESAlgorithms}
+     * @return An array of NR+1 round keys, each an NBxNB state
+     */
+    byte[][][] toRoundKeys() {
+        return toRoundKeys(encryptionWords, offset, false);
+    }
+
+    /**
+     * Converts the decryption schedule into the 2D round keys used by
+     * {@link AESAlgorithms}
+     * @return An array of NR+1 round keys indexed by round in the same order
+     * as {@link #toRoundKeys()}
+     */
+    byte[][][] toDecryptionRoundKeys() {
+        return toRoundKeys(decryptionWords, offset, true);
+    }
+
+    private static byte[][][] toRoundKeys(int[] words, int offset, boolean reverse) {
+        byte[][][] roundKeys = new byte[NR + 1][NB][NB];
+        for (int round = 0; round <= NR; ++round) {
+            byte[][] roundKey = roundKeys[reverse ? NR - round : round];
+            for (int c = 0; c < NB; ++c) {
+                int w = words[offset + round*NB + c];
+                for (int row = 0; row < NB; ++row) {
+                    roundKey[row][c] = (byte) (w >>> (24 - 8*row));
+                }
+            }
+        }
+        return roundKeys;
+    }
+
+    /**
+     * Overwrites the round keys with zeros. Any cipher still using this
+     * schedule will produce garbage afterwards
+     */
+    void destroy() {
+        Arrays.fill(encryptionWords, offset, offset + WORDS, 0);
+        Arrays.fill(decryptionWords, offset, offset + WORDS, 0);
+    }
+}
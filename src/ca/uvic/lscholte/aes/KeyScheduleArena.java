@@ -0,0 +1,231 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.KeySchedule.WORDS;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The expanded keys for many AES-256 keys, packed one after another into a
+ * single pair of int arrays.
+ *
+ * Expanding a batch of keys into an arena costs two allocations no matter
+ * how many keys there are, and large batches are split across a
+ * {@link ForkJoinPool}. Each key is then reached through a
+ * {@link KeySchedule} that points into the arena instead of owning arrays
+ * of its own, so handing out a schedule or a table-based cipher for a key
+ * expands nothing.
+ *
+ * Like a single schedule, an arena never changes after it is expanded except
+ * when it is destroyed, and may be shared freely between threads.
+ * @author lscholte
+ */
+public final class KeyScheduleArena {
+
+    /**
+     * The number of keys that are expanded on one thread before the work is
+     * worth splitting
+     */
+    static final int KEYS_PER_TASK = 1024;
+
+    private static final int KEY_SIZE = 32;
+
+    private final int[] encryptionWords;
+    private final int[] decryptionWords;
+    private final int size;
+
+    private KeyScheduleArena(int size) {
+        if ((long) size * WORDS > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("An arena can hold at most " + (Integer.MAX_VALUE / WORDS) + " keys");
+        }
+        this.size = size;
+        this.encryptionWords = new int[size * WORDS];
+        this.decryptionWords = new int[size * WORDS];
+    }
+
+    /**
+     * Expands keys stored one after another in an array, using the common
+     * ForkJoinPool for large batches
+     * @param keys The array containing the keys
+     * @param offset The offset of the first key
+     * @param count The number of 32-byte keys to expand
+     * @return An arena holding the expanded keys in the same order
+     */
+    public static KeyScheduleArena expand(byte[] keys, int offset, int count) {
+        return expand(keys, offset, count, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Expands keys stored one after another in an array
+     * @param keys The array containing the keys
+     * @param offset The offset of the first key
+     * @param count The number of 32-byte keys to expand
+     * @param pool The pool used to expand large batches in parallel
+     * @return An arena holding the expanded keys in the same order
+     */
+    public static KeyScheduleArena expand(byte[] keys, int offset, int count, ForkJoinPool pool) {
+        if (count < 0 || offset < 0 || offset > keys.length || (long) count * KEY_SIZE > keys.length - offset) {
+            throw new IllegalArgumentException("The array does not hold " + count + " keys at offset " + offset);
+        }
+        KeyScheduleArena arena = new KeyScheduleArena(count);
+        arena.process(keys, offset, null, count, pool);
+        return arena;
+    }
+
+    /**
+     * Expands every key remaining in a buffer, using the common ForkJoinPool
+     * for large batches. The position of the buffer is advanced past the keys
+     * @param keys A buffer whose remaining bytes are a multiple of 32
+     * @return An arena holding the expanded keys in the same order
+     */
+    public static KeyScheduleArena expand(ByteBuffer keys) {
+        return expand(keys, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Expands every key remaining in a buffer. The position of the buffer is
+     * advanced past the keys
+     * @param keys A buffer whose remaining bytes are a multiple of 32
+     * @param pool The pool used to expand large batches in parallel
+     * @return An arena holding the expanded keys in the same order
+     */
+    public static KeyScheduleArena expand(ByteBuffer keys, ForkJoinPool pool) {
+        if (keys.remaining() % KEY_SIZE != 0) {
+            throw new IllegalArgumentException("The buffer must hold a multiple of " + KEY_SIZE + " bytes");
+        }
+        int count = keys.remaining() / KEY_SIZE;
+        KeyScheduleArena arena = new KeyScheduleArena(count);
+        if (keys.hasArray()) {
+            arena.process(keys.array(), keys.arrayOffset() + keys.position(), null, count, pool);
+        }
+        else {
+            arena.process(null, keys.position(), keys.duplicate(), count, pool);
+        }
+        keys.position(keys.limit());
+        return arena;
+    }
+
+    /**
+     * @return The number of keys in the arena
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the expanded form of one key. The schedule shares the arrays of
+     * the arena, so it is zeroed when the arena is destroyed
+     * @param index The position of the key in the batch it was expanded from
+     * @return The expanded key
+     */
+    public KeySchedule get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is outside an arena of " + size + " keys");
+        }
+        return new KeySchedule(encryptionWords, decryptionWords, index * WORDS);
+    }
+
+    /**
+     * Returns a cipher for one key that uses the table engine, which reads
+     * the round keys straight from the arena
+     * @param index The position of the key in the batch it was expanded from
+     * @return A cipher that uses the key
+     */
+    public AESCipher cipher(int index) {
+        return new AESCipher(get(index), AESCipher.Engine.TABLE);
+    }
+
+    /**
+     * Returns a cipher for one key
+     * @param index The position of the key in the batch it was expanded from
+     * @param engine The implementation to use
+     * @return A cipher that uses the key
+     */
+    public AESCipher cipher(int index, AESCipher.Engine engine) {
+        return new AESCipher(get(index), engine);
+    }
+
+    /**
+     * Overwrites every round key in the arena with zeros. Schedules and table
+     * ciphers taken from the arena must not be used afterwards
+     */
+    public void destroy() {
+        Arrays.fill(encryptionWords, 0);
+        Arrays.fill(decryptionWords, 0);
+    }
+
+    /**
+     * Expands every key, in parallel if there are enough of them to be worth
+     * it. The keys are read either from an array or, when keys is null, from
+     * a buffer
+     */
+    private void process(byte[] keys, int offset, ByteBuffer buffer, int count, ForkJoinPool pool) {
+        Instrumentation.Counters counters = Instrumentation.sharedCounters();
+        Instrumentation.Span span = Instrumentation.beginKeySetup(counters);
+        if (count >= 2 * KEYS_PER_TASK && pool.getParallelism() > 1) {
+            pool.invoke(new ExpandTask(keys, offset, buffer, 0, count));
+        }
+        else {
+            expandRange(keys, offset, buffer, 0, count);
+        }
+        Instrumentation.endKeySetup(span, counters, "KeyScheduleArena");
+    }
+
+    /**
+     * Expands a range of keys on the calling thread. Keys in an array are
+     * expanded in place; keys in a buffer are copied out one at a time
+     */
+    private void expandRange(byte[] keys, int offset, ByteBuffer buffer, int first, int count) {
+        byte[] key = buffer == null ? keys : new byte[KEY_SIZE];
+        for (int i = first; i < first + count; ++i) {
+            int keyOff = offset + i * KEY_SIZE;
+            if (buffer != null) {
+                for (int j = 0; j < KEY_SIZE; ++j) {
+                    key[j] = buffer.get(keyOff + j);
+                }
+                keyOff = 0;
+            }
+            KeyExpansion.expandKey(key, keyOff, encryptionWords, i * WORDS);
+            KeyExpansion.generateDecryptionWords(encryptionWords, i * WORDS, decryptionWords, i * WORDS);
+        }
+        if (buffer != null) {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Splits a range of keys in half until each piece is small enough to
+     * expand on one thread
+     */
+    @SuppressWarnings("serial")
+    private final class ExpandTask extends RecursiveAction {
+
+        private final byte[] keys;
+        private final int offset;
+        private final ByteBuffer buffer;
+        private final int first;
+        private final int count;
+
+        ExpandTask(byte[] keys, int offset, ByteBuffer buffer, int first, int count) {
+            this.keys = keys;
+            this.offset = offset;
+            this.buffer = buffer;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= KEYS_PER_TASK) {
+                expandRange(keys, offset, buffer, first, count);
+                return;
+            }
+            int half = count / 2;
+            invokeAll(
+                    new ExpandTask(keys, offset, buffer, first, half),
+                    new ExpandTask(keys, offset, buffer, first + half, count - half)
+            );
+        }
+    }
+}
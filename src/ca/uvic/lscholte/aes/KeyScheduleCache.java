@@ -0,0 +1,266 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe cache of expanded keys with a bounded size. When the cache is
+ * full, the least recently used key is evicted.
+ *
+ * Schedules are handed out as {@link Lease leases}. A schedule is overwritten
+ * with zeros once it has been evicted and every lease on it has been
+ * released, so a cipher obtained from a lease keeps working for as long as
+ * the lease is held, even if other keys push its key out of the cache in the
+ * meantime. Leases are meant to be held for one operation and released with
+ * try-with-resources:
+ *
+ * <pre>
+ * try (KeyScheduleCache.Lease lease = cache.acquire(key)) {
+ *     lease.cipher().encryptBlocks(in, 0, out, 0, blocks);
+ * }
+ * </pre>
+ * @author lscholte
+ */
+public final class KeyScheduleCache {
+
+    private final int maximumSize;
+    private final Map<Key, Entry> schedules;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Initializes an empty cache
+     * @param maximumSize The largest number of keys to keep at once
+     */
+    public KeyScheduleCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be at least 1");
+        }
+        this.maximumSize = maximumSize;
+        this.schedules = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() <= KeyScheduleCache.this.maximumSize) {
+                    return false;
+                }
+                evict(eldest);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Leases the expanded form of a key, expanding it if it is not already
+     * in the cache. The schedule is not zeroed while the lease is held
+     * @param key An array of bytes of length 32. The array is copied, so the
+     * caller may clear it afterwards
+     * @return The lease, which must be closed when the operation is done
+     */
+    public Lease acquire(byte[] key) {
+        if (key.length != 32) {
+            throw new IllegalArgumentException("The key must be 32 bytes long");
+        }
+        Key lookup = new Key(key);
+
+        synchronized (schedules) {
+            Entry entry = schedules.get(lookup);
+            if (entry != null) {
+                hits.increment();
+                return new Lease(entry);
+            }
+        }
+
+        //Expand outside the lock so that a miss does not hold up hits on
+        //other keys
+        misses.increment();
+        Instrumentation.Counters counters = Instrumentation.sharedCounters();
+        Instrumentation.Span span = Instrumentation.beginKeySetup(counters);
+        KeySchedule expanded = KeySchedule.expand(key);
+        Instrumentation.endKeySetup(span, counters, "KeyScheduleCache");
+        Key stored = new Key(key.clone());
+
+        synchronized (schedules) {
+            Entry existing = schedules.get(stored);
+            if (existing != null) {
+                //Another thread expanded the same key first
+                expanded.destroy();
+                stored.destroy();
+                return new Lease(existing);
+            }
+            Entry entry = new Entry(stored, expanded);
+            Lease lease = new Lease(entry);
+            schedules.put(stored, entry);
+            return lease;
+        }
+    }
+
+    /**
+     * Removes every key from the cache. Each schedule is zeroed now, or when
+     * its last lease is released
+     */
+    public void clear() {
+        synchronized (schedules) {
+            Iterator<Map.Entry<Key, Entry>> iterator = schedules.entrySet().iterator();
+            while (iterator.hasNext()) {
+                evict(iterator.next());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of keys currently in the cache
+     */
+    public int size() {
+        synchronized (schedules) {
+            return schedules.size();
+        }
+    }
+
+    /**
+     * @return The largest number of keys the cache keeps at once
+     */
+    public int maximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return The number of lookups that found the key already expanded
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to expand the key
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of keys removed to make room for others, or by clear
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Marks an entry as evicted, which must be done while holding the lock.
+     * The key bytes are no longer needed for lookups and are zeroed at once
+     */
+    private void evict(Map.Entry<Key, Entry> mapping) {
+        Entry entry = mapping.getValue();
+        entry.key.destroy();
+        entry.evicted = true;
+        if (entry.leases == 0) {
+            entry.schedule.destroy();
+        }
+        evictions.increment();
+    }
+
+    /**
+     * Holds a schedule for the duration of an operation. The schedule and any
+     * cipher built from it must not be used after the lease is closed.
+     * Closing a lease more than once has no further effect
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final Entry entry;
+        private boolean released;
+
+        /**
+         * Must be created while holding the lock
+         */
+        private Lease(Entry entry) {
+            this.entry = entry;
+            ++entry.leases;
+        }
+
+        /**
+         * @return The expanded key
+         */
+        public KeySchedule schedule() {
+            synchronized (schedules) {
+                if (released) {
+                    throw new IllegalStateException("This lease has already been released");
+                }
+                return entry.schedule;
+            }
+        }
+
+        /**
+         * @return A new cipher that uses the leased schedule
+         */
+        public AESCipher cipher() {
+            return new AESCipher(schedule());
+        }
+
+        /**
+         * Releases the lease, zeroing the schedule if it has been evicted and
+         * this was the last lease on it
+         */
+        @Override
+        public void close() {
+            synchronized (schedules) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (--entry.leases == 0 && entry.evicted) {
+                    entry.schedule.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached schedule and the number of leases held on it, both guarded by
+     * the lock on the map
+     */
+    private static final class Entry {
+
+        final Key key;
+        final KeySchedule schedule;
+        int leases;
+        boolean evicted;
+
+        Entry(Key key, KeySchedule schedule) {
+            this.key = key;
+            this.schedule = schedule;
+        }
+    }
+
+    /**
+     * Wraps the key bytes so they can be compared by value in a map
+     */
+    private static final class Key {
+
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        void destroy() {
+            Arrays.fill(bytes, (byte) 0);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(bytes, ((Key) other).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
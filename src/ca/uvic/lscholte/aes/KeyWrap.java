@@ -0,0 +1,381 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Wraps and unwraps keys under an AES-256 key-encryption key, using either
+ * the AES Key Wrap algorithm of RFC 3394 (KW) or the padded variant of
+ * RFC 5649 (KWP), both also described in NIST SP 800-38F.
+ *
+ * Keys are wrapped and unwrapped in place in the caller's buffer, so the
+ * only memory touched apart from the buffer is one block of per-thread
+ * scratch space. {@link #unwrapAll(byte[], int, int, int)} unwraps a whole
+ * run of wrapped keys of the same length. It steps through up to
+ * {@value #KEYS_PER_STEP} keys side by side, so that every call into the
+ * cipher decrypts a batch of blocks, and large runs are split across a
+ * {@link ForkJoinPool}.
+ *
+ * Instances hold no mutable state and may be shared between threads.
+ * @author lscholte
+ */
+public final class KeyWrap {
+
+    /**
+     * The key wrap algorithm
+     */
+    public enum Variant {
+        /**
+         * RFC 3394. Keys must be a multiple of 8 bytes long, and at least 16
+         */
+        KW,
+
+        /**
+         * RFC 5649, which pads the key with zeros and records its length, so
+         * that keys of any length from 1 byte can be wrapped
+         */
+        KWP
+    }
+
+    /**
+     * The number of keys unwrapped side by side on one thread
+     */
+    static final int KEYS_PER_STEP = 32;
+
+    /**
+     * The number of keys handed to a single task when unwrapping in parallel
+     */
+    static final int KEYS_PER_TASK = 1024;
+
+    /**
+     * The algorithm works on 64-bit halves of a block
+     */
+    private static final int SEMIBLOCK = BLOCK_SIZE / 2;
+
+    private static final long KW_IV = 0xA6A6A6A6A6A6A6A6L;
+    private static final int KWP_IV = 0xA65959A6;
+
+    private final AESCipher cipher;
+    private final Variant variant;
+    private final ForkJoinPool pool;
+
+    /**
+     * Initializes key wrapping using the common ForkJoinPool to unwrap large
+     * batches
+     * @param cipher The cipher holding the key-encryption key
+     * @param variant The key wrap algorithm
+     */
+    public KeyWrap(AESCipher cipher, Variant variant) {
+        this(cipher, variant, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes key wrapping
+     * @param cipher The cipher holding the key-encryption key
+     * @param variant The key wrap algorithm
+     * @param pool The pool used to unwrap large batches in parallel
+     */
+    public KeyWrap(AESCipher cipher, Variant variant, ForkJoinPool pool) {
+        this.cipher = cipher;
+        this.variant = variant;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the length of a wrapped key
+     * @param length The length of the key
+     * @return The number of bytes written by wrap
+     */
+    public int getWrappedSize(int length) {
+        if (variant == Variant.KW) {
+            if (length < 2 * SEMIBLOCK || length % SEMIBLOCK != 0) {
+                throw new IllegalArgumentException("The key must be a multiple of " + SEMIBLOCK + " bytes, and at least " + (2 * SEMIBLOCK));
+            }
+            return length + SEMIBLOCK;
+        }
+        if (length < 1 || length > Integer.MAX_VALUE - 2 * SEMIBLOCK) {
+            throw new IllegalArgumentException("The key must not be empty");
+        }
+        return (length + SEMIBLOCK - 1) / SEMIBLOCK * SEMIBLOCK + SEMIBLOCK;
+    }
+
+    /**
+     * Wraps a key in place. The wrapped key is longer than the key, so the
+     * buffer must have room for {@link #getWrappedSize(int)} bytes from the
+     * offset
+     * @param buffer The array containing the key
+     * @param offset The offset of the key, which is also where the wrapped
+     * key is written
+     * @param length The length of the key
+     * @return The length of the wrapped key
+     */
+    public int wrap(byte[] buffer, int offset, int length) {
+        int wrappedLength = getWrappedSize(length);
+        if (offset < 0 || offset > buffer.length - wrappedLength) {
+            throw new IllegalArgumentException("The buffer must have room for " + wrappedLength + " bytes");
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+
+        System.arraycopy(buffer, offset, buffer, offset + SEMIBLOCK, length);
+        Arrays.fill(buffer, offset + SEMIBLOCK + length, offset + wrappedLength, (byte) 0);
+        if (variant == Variant.KW) {
+            Pack.fromLong(KW_IV, buffer, offset);
+        }
+        else {
+            Pack.fromLong((long) KWP_IV << 32 | length, buffer, offset);
+        }
+
+        int n = wrappedLength / SEMIBLOCK - 1;
+        if (n == 1) {
+            //RFC 5649 encrypts a single padded semiblock as one block
+            cipher.encryptBlock(buffer, offset, buffer, offset);
+        }
+        else {
+            wrapSemiblocks(buffer, offset, n);
+        }
+
+        Instrumentation.endBulk(span, cipher.counters, variant.name(), false, length);
+        return wrappedLength;
+    }
+
+    /**
+     * Wraps a key into a new array
+     * @param key The key
+     * @return The wrapped key
+     */
+    public byte[] wrap(byte[] key) {
+        byte[] buffer = Arrays.copyOf(key, getWrappedSize(key.length));
+        wrap(buffer, 0, key.length);
+        return buffer;
+    }
+
+    /**
+     * Unwraps a key in place. The key is written from the offset, and the
+     * rest of the wrapped key is overwritten with zeros
+     * @param buffer The array containing the wrapped key
+     * @param offset The offset of the wrapped key
+     * @param length The length of the wrapped key
+     * @return The length of the key
+     * @throws AEADBadTagException If the integrity check fails, in which
+     * case the whole wrapped key is overwritten with zeros
+     */
+    public int unwrap(byte[] buffer, int offset, int length) throws AEADBadTagException {
+        checkWrappedLength(length);
+        if (offset < 0 || offset > buffer.length - length) {
+            throw new IllegalArgumentException("The buffer must contain " + length + " bytes");
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+
+        unwrapSemiblocks(buffer, offset, length, 1, Scratch.get().keyWrap);
+        int keyLength = finish(buffer, offset, length);
+
+        Instrumentation.endBulk(span, cipher.counters, variant.name(), true, length);
+        if (keyLength < 0) {
+            Instrumentation.error(cipher.counters);
+            throw new AEADBadTagException("The integrity check failed");
+        }
+        return keyLength;
+    }
+
+    /**
+     * Unwraps a key into a new array
+     * @param wrapped The wrapped key, which is left unchanged
+     * @return The key
+     * @throws AEADBadTagException If the integrity check fails
+     */
+    public byte[] unwrap(byte[] wrapped) throws AEADBadTagException {
+        byte[] buffer = wrapped.clone();
+        int length = unwrap(buffer, 0, buffer.length);
+        byte[] key = Arrays.copyOf(buffer, length);
+        Arrays.fill(buffer, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Unwraps a run of wrapped keys of the same length in place, in parallel
+     * if there are enough of them to be worth it. Each key is written at the
+     * start of the slot its wrapped key occupied, and the rest of the slot is
+     * overwritten with zeros.
+     *
+     * A key that fails the integrity check does not stop the others from
+     * being unwrapped. Its slot is overwritten with zeros and its length is
+     * reported as -1
+     * @param buffer The array containing the wrapped keys one after another
+     * @param offset The offset of the first wrapped key
+     * @param wrappedLength The length of each wrapped key
+     * @param count The number of wrapped keys
+     * @return The length of each key, or -1 for each key that failed the
+     * integrity check
+     */
+    public int[] unwrapAll(byte[] buffer, int offset, int wrappedLength, int count) {
+        checkWrappedLength(wrappedLength);
+        if (count < 0 || offset < 0 || (long) offset + (long) wrappedLength * count > buffer.length) {
+            throw new IllegalArgumentException("The buffer does not hold " + count + " wrapped keys at offset " + offset);
+        }
+        Instrumentation.Span span = Instrumentation.beginBulk(cipher.counters);
+
+        int[] lengths = new int[count];
+        if (count >= 2 * KEYS_PER_TASK && pool.getParallelism() > 1) {
+            pool.invoke(new UnwrapTask(buffer, offset, wrappedLength, 0, count, lengths));
+        }
+        else {
+            unwrapRange(buffer, offset, wrappedLength, 0, count, lengths);
+        }
+
+        Instrumentation.endBulk(span, cipher.counters, variant.name(), true, (long) wrappedLength * count);
+        return lengths;
+    }
+
+    private void checkWrappedLength(int length) {
+        int minimum = variant == Variant.KW ? 3 * SEMIBLOCK : 2 * SEMIBLOCK;
+        if (length < minimum || length % SEMIBLOCK != 0) {
+            throw new IllegalArgumentException("A wrapped key must be a multiple of " + SEMIBLOCK + " bytes, and at least " + minimum);
+        }
+    }
+
+    /**
+     * The wrapping process W of RFC 3394 section 2.2.1, in its indexed form.
+     * The integrity register A is kept in the first semiblock of the buffer
+     * and the n registers R[1] to R[n] follow it
+     */
+    private void wrapSemiblocks(byte[] buffer, int offset, int n) {
+        byte[] block = Scratch.get().keyWrap;
+        for (int j = 0; j <= 5; ++j) {
+            for (int i = 1; i <= n; ++i) {
+                int r = offset + i * SEMIBLOCK;
+                System.arraycopy(buffer, offset, block, 0, SEMIBLOCK);
+                System.arraycopy(buffer, r, block, SEMIBLOCK, SEMIBLOCK);
+                cipher.encryptBlock(block, 0, block, 0);
+                Pack.fromLong(Pack.toLong(block, 0) ^ ((long) n * j + i), buffer, offset);
+                System.arraycopy(block, SEMIBLOCK, buffer, r, SEMIBLOCK);
+            }
+        }
+    }
+
+    /**
+     * The unwrapping process W^-1 of RFC 3394 section 2.2.2, applied to
+     * several wrapped keys side by side so that each step decrypts one block
+     * of every key in a single call. Each wrapped key keeps its integrity
+     * register in its first semiblock, as in {@link #wrapSemiblocks}
+     * @param count The number of wrapped keys, at most KEYS_PER_STEP
+     * @param blocks Scratch space for count blocks
+     */
+    private void unwrapSemiblocks(byte[] buffer, int offset, int wrappedLength, int count, byte[] blocks) {
+        int n = wrappedLength / SEMIBLOCK - 1;
+        if (n == 1) {
+            //The wrapped keys are one block each and lie next to one another
+            cipher.decryptBlocks(buffer, offset, buffer, offset, count);
+            return;
+        }
+
+        for (int j = 5; j >= 0; --j) {
+            for (int i = n; i >= 1; --i) {
+                long t = (long) n * j + i;
+                for (int k = 0; k < count; ++k) {
+                    int a = offset + k * wrappedLength;
+                    Pack.fromLong(Pack.toLong(buffer, a) ^ t, blocks, k * BLOCK_SIZE);
+                    System.arraycopy(buffer, a + i * SEMIBLOCK, blocks, k * BLOCK_SIZE + SEMIBLOCK, SEMIBLOCK);
+                }
+                cipher.decryptBlocks(blocks, 0, blocks, 0, count);
+                for (int k = 0; k < count; ++k) {
+                    int a = offset + k * wrappedLength;
+                    System.arraycopy(blocks, k * BLOCK_SIZE, buffer, a, SEMIBLOCK);
+                    System.arraycopy(blocks, k * BLOCK_SIZE + SEMIBLOCK, buffer, a + i * SEMIBLOCK, SEMIBLOCK);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the integrity register of an unwrapped key and moves the key to
+     * the start of its slot
+     * @return The length of the key, or -1 if the check failed
+     */
+    private int finish(byte[] buffer, int offset, int wrappedLength) {
+        long a = Pack.toLong(buffer, offset);
+        int available = wrappedLength - SEMIBLOCK;
+        int length;
+        boolean valid;
+        if (variant == Variant.KW) {
+            length = available;
+            valid = a == KW_IV;
+        }
+        else {
+            //RFC 5649 section 3: the length must leave fewer than eight
+            //bytes of padding, and the padding must be zeros
+            long mli = a & 0xFFFFFFFFL;
+            length = (int) Math.min(mli, available);
+            int padding = 0;
+            for (int i = offset + SEMIBLOCK + length; i < offset + wrappedLength; ++i) {
+                padding |= buffer[i];
+            }
+            valid = (int) (a >>> 32) == KWP_IV && mli <= available && mli > available - SEMIBLOCK && padding == 0;
+        }
+
+        if (!valid) {
+            Arrays.fill(buffer, offset, offset + wrappedLength, (byte) 0);
+            return -1;
+        }
+        System.arraycopy(buffer, offset + SEMIBLOCK, buffer, offset, length);
+        Arrays.fill(buffer, offset + length, offset + wrappedLength, (byte) 0);
+        return length;
+    }
+
+    /**
+     * Unwraps a range of wrapped keys on the calling thread
+     */
+    private void unwrapRange(byte[] buffer, int offset, int wrappedLength, int first, int count, int[] lengths) {
+        byte[] blocks = Scratch.get().keyWrap;
+        for (int start = first; start < first + count; start += KEYS_PER_STEP) {
+            int n = Math.min(KEYS_PER_STEP, first + count - start);
+            int keyOff = offset + start * wrappedLength;
+            unwrapSemiblocks(buffer, keyOff, wrappedLength, n, blocks);
+            for (int k = 0; k < n; ++k) {
+                lengths[start + k] = finish(buffer, keyOff + k * wrappedLength, wrappedLength);
+                if (lengths[start + k] < 0) {
+                    Instrumentation.error(cipher.counters);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a range of wrapped keys in half until each piece is small
+     * enough to unwrap on one thread
+     */
+    @SuppressWarnings("serial")
+    private final class UnwrapTask extends RecursiveAction {
+
+        private final byte[] buffer;
+        private final int offset;
+        private final int wrappedLength;
+        private final int first;
+        private final int count;
+        private final int[] lengths;
+
+        UnwrapTask(byte[] buffer, int offset, int wrappedLength, int first, int count, int[] lengths) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.wrappedLength = wrappedLength;
+            this.first = first;
+            this.count = count;
+            this.lengths = lengths;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= KEYS_PER_TASK) {
+                unwrapRange(buffer, offset, wrappedLength, first, count, lengths);
+                return;
+            }
+            int half = count / 2;
+            invokeAll(
+                    new UnwrapTask(buffer, offset, wrappedLength, first, half, lengths),
+                    new UnwrapTask(buffer, offset, wrappedLength, first + half, count - half, lengths)
+            );
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ca.uvic.lscholte.aes;
+
+/**
+ * Methods for converting between arrays of bytes and longs
+ * @author lscholte
+ */
+final class Pack {
+
+    private Pack() { }
+
+    /**
+     * Reads a big-endian long from an array of bytes
+     * @param bytes The array to read from
+     * @param offset The offset of the first byte
+     * @return The long made up of the 8 bytes at the offset
+     */
+    static long toLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; ++i) {
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Writes a long into an array of bytes in big-endian order
+     * @param value The long to write
+     * @param bytes The array to write to
+     * @param offset The offset at which to write the first byte
+     */
+    static void fromLong(long value, byte[] bytes, int offset) {
+        for (int i = 7; i >= 0; --i) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Reads a little-endian long from an array of bytes
+     * @param bytes The array to read from
+     * @param offset The offset of the first byte
+     * @return The long made up of the 8 bytes at the offset
+     */
+    static long toLongLittleEndian(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 7; i >= 0; --i) {
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Writes a long into an array of bytes in little-endian order
+     * @param value The long to write
+     * @param bytes The array to write to
+     * @param offset The offset at which to write the first byte
+     */
+    static void fromLongLittleEndian(long value, byte[] bytes, int offset) {
+        for (int i = 0; i < 8; ++i) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+
+/**
+ * The POLYVAL function used by GCM-SIV, as described in RFC 8452.
+ *
+ * POLYVAL is GHASH with the bytes of every block reversed, which appendix A
+ * of the RFC expresses as
+ * POLYVAL(H, X) = ByteReverse(GHASH(mulX_GHASH(ByteReverse(H)), ByteReverse(X))).
+ * This class applies that identity to {@link GHash}, so POLYVAL gets the same
+ * 4-bit multiplication tables. Reversing a block costs nothing extra, since it
+ * only means reading each half little-endian instead of big-endian.
+ * @author lscholte
+ */
+final class Polyval {
+
+    private final GHash ghash;
+
+    /**
+     * Builds the multiplication tables for a hash key
+     * @param h The array containing the 16-byte hash key
+     * @param offset The offset of the key
+     */
+    Polyval(byte[] h, int offset) {
+        long high = Pack.toLongLittleEndian(h, offset + 8);
+        long low = Pack.toLongLittleEndian(h, offset);
+
+        //mulX_GHASH: multiplying by x in the reflected bit order of GHASH is
+        //a shift to the right
+        long reduce = (low & 1) != 0 ? 0xE100000000000000L : 0;
+        low = (high << 63) | (low >>> 1);
+        high = (high >>> 1) ^ reduce;
+        ghash = new GHash(high, low);
+    }
+
+    /**
+     * Absorbs data into the hash. The data is treated as a separate string
+     * that is padded with zeros to a whole number of blocks, as GCM-SIV pads
+     * the AAD and the plaintext
+     * @param in The array containing the data
+     * @param offset The offset of the data
+     * @param length The number of bytes to absorb
+     */
+    void update(byte[] in, int offset, int length) {
+        while (length >= BLOCK_SIZE) {
+            ghash.processBlock(Pack.toLongLittleEndian(in, offset + 8), Pack.toLongLittleEndian(in, offset));
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+        if (length > 0) {
+            byte[] block = new byte[BLOCK_SIZE];
+            System.arraycopy(in, offset, block, 0, length);
+            ghash.processBlock(Pack.toLongLittleEndian(block, 8), Pack.toLongLittleEndian(block, 0));
+        }
+    }
+
+    /**
+     * Absorbs the length block that ends the input in GCM-SIV, which holds
+     * the two lengths in bits as little-endian 64-bit integers
+     * @param aadBits The length of the AAD in bits
+     * @param textBits The length of the plaintext in bits
+     */
+    void processLengths(long aadBits, long textBits) {
+        ghash.processBlock(textBits, aadBits);
+    }
+
+    /**
+     * Writes the current value of the hash
+     * @param out The array that receives the 16-byte value
+     * @param offset The offset at which to write
+     */
+    void digest(byte[] out, int offset) {
+        ghash.digest(out, offset);
+        for (int i = 0; i < BLOCK_SIZE / 2; ++i) {
+            byte b = out[offset + i];
+            out[offset + i] = out[offset + BLOCK_SIZE - 1 - i];
+            out[offset + BLOCK_SIZE - 1 - i] = b;
+        }
+    }
+}
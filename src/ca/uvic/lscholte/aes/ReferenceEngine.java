@@ -0,0 +1,91 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESConstants.NB;
+import static ca.uvic.lscholte.aes.AESConstants.NR;
+import java.util.Arrays;
+
+/**
+ * The straightforward AES-256 implementation that follows FIPS-197 step by
+ * step on a 2D state array, using the transformations in {@link AESAlgorithms}.
+ * Every step allocates a new state, so this engine is only meant for checking
+ * the faster engines against the specification
+ * @author lscholte
+ */
+final class ReferenceEngine implements AESEngine {
+
+    private final byte[][][] roundKeys;
+    private final byte[][][] decryptionRoundKeys;
+
+    /**
+     * @param schedule The expanded key to use
+     */
+    ReferenceEngine(KeySchedule schedule) {
+        this.roundKeys = schedule.toRoundKeys();
+        this.decryptionRoundKeys = schedule.toDecryptionRoundKeys();
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        byte[] output = cipher(Arrays.copyOfRange(in, inOff, inOff + NB * NB), false);
+        System.arraycopy(output, 0, out, outOff, output.length);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        byte[] output = cipher(Arrays.copyOfRange(in, inOff, inOff + NB * NB), true);
+        System.arraycopy(output, 0, out, outOff, output.length);
+    }
+
+    @Override
+    public void destroy() {
+        for (int round = 0; round < roundKeys.length; ++round) {
+            for (int row = 0; row < NB; ++row) {
+                Arrays.fill(roundKeys[round][row], (byte) 0);
+                Arrays.fill(decryptionRoundKeys[round][row], (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * The algorithm for encrypting/decrypting data
+     * @param input An array of bytes of length 16
+     * @param inverse True if the input should be decrypted. False if the input
+     * should be encrypted
+     * @return The encrypted or decrypted array of bytes of length 16
+     */
+    private byte[] cipher(byte[] input, boolean inverse) {
+        if(input.length != NB * NB) {
+            throw new IllegalArgumentException("The input must be " + (NB * NB) + " bytes long");
+        }
+
+        byte[][] state = AESAlgorithms.generateState(input);
+
+        int i, stepSize;
+        if (inverse) {
+            i = NR;
+            stepSize = -1;
+        }
+        else {
+            i = 0;
+            stepSize = 1;
+        }
+
+        //The decryption round keys already have InvMixColumns applied
+        byte[][][] keys = inverse ? decryptionRoundKeys : roundKeys;
+
+        state = AESAlgorithms.addRoundKey(state, keys[i]);
+
+        for (i = i + stepSize; i > 0 && i < NR; i += stepSize) {
+            state = AESAlgorithms.subBytes(state, inverse);
+            state = AESAlgorithms.shiftRows(state, inverse);
+            state = AESAlgorithms.mixColumns(state, inverse);
+            state = AESAlgorithms.addRoundKey(state, keys[i]);
+        }
+
+        state = AESAlgorithms.subBytes(state, inverse);
+        state = AESAlgorithms.shiftRows(state, inverse);
+        state = AESAlgorithms.addRoundKey(state, keys[i]);
+
+        return AESAlgorithms.generateOutput(state);
+    }
+}
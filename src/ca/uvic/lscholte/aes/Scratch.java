@@ -0,0 +1,80 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+
+/**
+ * Working memory for a single thread, so that ciphers shared between threads
+ * need neither locks nor an allocation per call.
+ *
+ * Each buffer belongs to one method at a time. A method may call into
+ * another that uses a different buffer, but must not call anything that
+ * uses the same one while it holds it.
+ * @author lscholte
+ */
+final class Scratch {
+
+    /**
+     * The number of keystream blocks generated at once by counter mode
+     */
+    static final int KEYSTREAM_BLOCKS = 32;
+
+    /**
+     * An upper bound on the heap used by the working memory of one thread:
+     * the contents of the arrays below, plus an allowance for the array
+     * headers, this object and its thread-local entry
+     */
+    static final int BYTES = 8 * 8
+            + BitslicedEngine.BLOCKS_PER_PASS * 4 * 4
+            + KEYSTREAM_BLOCKS * BLOCK_SIZE
+            + KeyWrap.KEYS_PER_STEP * BLOCK_SIZE
+            + KeySchedule.WORDS * 4
+            + 256;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The bitsliced state of one pass of {@link BitslicedEngine}
+     */
+    final long[] bitslicedState = new long[8];
+
+    /**
+     * The little-endian words of the blocks in one pass of
+     * {@link BitslicedEngine}
+     */
+    final int[] bitslicedWords = new int[BitslicedEngine.BLOCKS_PER_PASS * 4];
+
+    /**
+     * A batch of keystream for {@link CTRMode}, also used by {@link CBCMode}
+     * for a batch of decrypted blocks and by {@link AESCipher} for a batch of
+     * blocks copied out of a direct buffer
+     */
+    final byte[] keystream = new byte[KEYSTREAM_BLOCKS * BLOCK_SIZE];
+
+    /**
+     * One block from each of the keys that {@link KeyWrap} wraps or unwraps
+     * side by side
+     */
+    final byte[] keyWrap = new byte[KeyWrap.KEYS_PER_STEP * BLOCK_SIZE];
+
+    /**
+     * The expanded message encryption key of {@link GCMSIVMode}, allocated
+     * the first time this thread encrypts or decrypts a message
+     */
+    int[] messageKey;
+
+    /**
+     * True while {@link #messageKey} holds the key of a message. A thread
+     * that waits on a ForkJoinPool may run another message in the meantime,
+     * and that message has to use an array of its own
+     */
+    boolean messageKeyInUse;
+
+    private Scratch() { }
+
+    /**
+     * @return The working memory of the current thread
+     */
+    static Scratch get() {
+        return SCRATCH.get();
+    }
+}
@@ -0,0 +1,67 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * The common form of the modes that {@link AESInputStream} and
+ * {@link AESOutputStream} can wrap
+ * @author lscholte
+ */
+interface StreamMode {
+
+    /**
+     * The most bytes that update can write beyond its input length, and the
+     * most that doFinal can write
+     */
+    int OVERHEAD = BLOCK_SIZE;
+
+    /**
+     * Processes the input as a continuation of all previous calls. The output
+     * must not overlap the input
+     * @return The number of bytes written to out
+     */
+    int update(byte[] in, int inOff, int len, byte[] out, int outOff);
+
+    /**
+     * Finishes the message
+     * @return The number of bytes written to out
+     * @throws IOException If the message is malformed
+     */
+    int doFinal(byte[] out, int outOff) throws IOException;
+
+    static StreamMode of(CTRMode mode) {
+        return new StreamMode() {
+            @Override
+            public int update(byte[] in, int inOff, int len, byte[] out, int outOff) {
+                mode.update(in, inOff, len, out, outOff);
+                return len;
+            }
+
+            @Override
+            public int doFinal(byte[] out, int outOff) {
+                return 0;
+            }
+        };
+    }
+
+    static StreamMode of(CBCMode mode) {
+        return new StreamMode() {
+            @Override
+            public int update(byte[] in, int inOff, int len, byte[] out, int outOff) {
+                return mode.update(in, inOff, len, out, outOff);
+            }
+
+            @Override
+            public int doFinal(byte[] out, int outOff) throws IOException {
+                try {
+                    return mode.doFinal(out, outOff);
+                }
+                catch (GeneralSecurityException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+}
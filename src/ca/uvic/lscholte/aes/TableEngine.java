@@ -0,0 +1,224 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESConstants.INVERSE_S;
+import static ca.uvic.lscholte.aes.AESConstants.NB;
+import static ca.uvic.lscholte.aes.AESConstants.NR;
+import static ca.uvic.lscholte.aes.AESConstants.S;
+
+/**
+ * An AES-256 implementation that keeps the state in four 32-bit words, one
+ * per column, and merges SubBytes, ShiftRows and MixColumns into lookups in
+ * the precomputed tables T0..T3 (or Td0..Td3 for decryption). This is the
+ * technique described in section 4.2 of the Rijndael proposal.
+ *
+ * Each word holds a column with the byte from row 0 in the most significant
+ * position.
+ * @author lscholte
+ */
+final class TableEngine implements AESEngine {
+
+    /**
+     * The substitution box flattened so it can be indexed by a byte value
+     */
+    static final int[] SBOX = new int[256];
+
+    /**
+     * The inverse substitution box flattened so it can be indexed by a byte value
+     */
+    static final int[] INVERSE_SBOX = new int[256];
+
+    static final int[] T0 = new int[256];
+    static final int[] T1 = new int[256];
+    static final int[] T2 = new int[256];
+    static final int[] T3 = new int[256];
+
+    static final int[] TD0 = new int[256];
+    static final int[] TD1 = new int[256];
+    static final int[] TD2 = new int[256];
+    static final int[] TD3 = new int[256];
+
+    static {
+        for (int x = 0; x < 256; ++x) {
+            SBOX[x] = S[x >>> 4][x & 0x0F];
+            INVERSE_SBOX[x] = INVERSE_S[x >>> 4][x & 0x0F];
+        }
+
+        for (int x = 0; x < 256; ++x) {
+            //One column of MixColumns applied to a substituted byte
+            byte s = (byte) SBOX[x];
+            int t = word(GaloisField.mul2(s), s, s, GaloisField.mul3(s));
+            T0[x] = t;
+            T1[x] = Integer.rotateRight(t, 8);
+            T2[x] = Integer.rotateRight(t, 16);
+            T3[x] = Integer.rotateRight(t, 24);
+
+            //One column of InvMixColumns applied to an inverse substituted byte
+            byte si = (byte) INVERSE_SBOX[x];
+            int td = word(
+                    GaloisField.mul14(si),
+                    GaloisField.mul9(si),
+                    GaloisField.mul13(si),
+                    GaloisField.mul11(si)
+            );
+            TD0[x] = td;
+            TD1[x] = Integer.rotateRight(td, 8);
+            TD2[x] = Integer.rotateRight(td, 16);
+            TD3[x] = Integer.rotateRight(td, 24);
+        }
+    }
+
+    private final int[] encryptionKey;
+    private final int[] decryptionKey;
+    private final int keyOffset;
+
+    /**
+     * @param schedule The expanded key to use
+     */
+    TableEngine(KeySchedule schedule) {
+        encryptionKey = schedule.encryptionWords;
+        decryptionKey = schedule.decryptionWords;
+        keyOffset = schedule.offset;
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        encrypt(toWord(in, inOff), toWord(in, inOff + 4), toWord(in, inOff + 8), toWord(in, inOff + 12),
+                out, outOff);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        decrypt(toWord(in, inOff), toWord(in, inOff + 4), toWord(in, inOff + 8), toWord(in, inOff + 12),
+                out, outOff);
+    }
+
+    /**
+     * Encrypts a block that has already been read as four columns
+     * @param c0 The first column of the input
+     * @param c1 The second column of the input
+     * @param c2 The third column of the input
+     * @param c3 The fourth column of the input
+     * @param out The array that receives the output
+     * @param outOff The offset at which to write
+     */
+    private void encrypt(int c0, int c1, int c2, int c3, byte[] out, int outOff) {
+        int[] rk = encryptionKey;
+        int k = keyOffset;
+
+        int s0 = c0 ^ rk[k];
+        int s1 = c1 ^ rk[k + 1];
+        int s2 = c2 ^ rk[k + 2];
+        int s3 = c3 ^ rk[k + 3];
+
+        k += NB;
+        for (int round = 1; round < NR; ++round) {
+            int t0 = T0[s0 >>> 24] ^ T1[(s1 >>> 16) & 0xFF] ^ T2[(s2 >>> 8) & 0xFF] ^ T3[s3 & 0xFF] ^ rk[k];
+            int t1 = T0[s1 >>> 24] ^ T1[(s2 >>> 16) & 0xFF] ^ T2[(s3 >>> 8) & 0xFF] ^ T3[s0 & 0xFF] ^ rk[k + 1];
+            int t2 = T0[s2 >>> 24] ^ T1[(s3 >>> 16) & 0xFF] ^ T2[(s0 >>> 8) & 0xFF] ^ T3[s1 & 0xFF] ^ rk[k + 2];
+            int t3 = T0[s3 >>> 24] ^ T1[(s0 >>> 16) & 0xFF] ^ T2[(s1 >>> 8) & 0xFF] ^ T3[s2 & 0xFF] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += NB;
+        }
+
+        //The final round has no MixColumns. The whole input has been read by
+        //now, so the output may overwrite it
+        store(lastRound(SBOX, s0, s1, s2, s3) ^ rk[k],
+                lastRound(SBOX, s1, s2, s3, s0) ^ rk[k + 1],
+                lastRound(SBOX, s2, s3, s0, s1) ^ rk[k + 2],
+                lastRound(SBOX, s3, s0, s1, s2) ^ rk[k + 3],
+                out, outOff);
+    }
+
+    /**
+     * Decrypts a block that has already been read as four columns
+     * @param c0 The first column of the input
+     * @param c1 The second column of the input
+     * @param c2 The third column of the input
+     * @param c3 The fourth column of the input
+     * @param out The array that receives the output
+     * @param outOff The offset at which to write
+     */
+    private void decrypt(int c0, int c1, int c2, int c3, byte[] out, int outOff) {
+        int[] rk = decryptionKey;
+        int k = keyOffset;
+
+        int s0 = c0 ^ rk[k];
+        int s1 = c1 ^ rk[k + 1];
+        int s2 = c2 ^ rk[k + 2];
+        int s3 = c3 ^ rk[k + 3];
+
+        k += NB;
+        for (int round = 1; round < NR; ++round) {
+            int t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xFF] ^ TD2[(s2 >>> 8) & 0xFF] ^ TD3[s1 & 0xFF] ^ rk[k];
+            int t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xFF] ^ TD2[(s3 >>> 8) & 0xFF] ^ TD3[s2 & 0xFF] ^ rk[k + 1];
+            int t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xFF] ^ TD2[(s0 >>> 8) & 0xFF] ^ TD3[s3 & 0xFF] ^ rk[k + 2];
+            int t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xFF] ^ TD2[(s1 >>> 8) & 0xFF] ^ TD3[s0 & 0xFF] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += NB;
+        }
+
+        store(lastRound(INVERSE_SBOX, s0, s3, s2, s1) ^ rk[k],
+                lastRound(INVERSE_SBOX, s1, s0, s3, s2) ^ rk[k + 1],
+                lastRound(INVERSE_SBOX, s2, s1, s0, s3) ^ rk[k + 2],
+                lastRound(INVERSE_SBOX, s3, s2, s1, s0) ^ rk[k + 3],
+                out, outOff);
+    }
+
+    /**
+     * Writes the four columns of a finished block
+     */
+    private static void store(int c0, int c1, int c2, int c3, byte[] out, int outOff) {
+        fromWord(c0, out, outOff);
+        fromWord(c1, out, outOff + 4);
+        fromWord(c2, out, outOff + 8);
+        fromWord(c3, out, outOff + 12);
+    }
+
+    /**
+     * Computes one output column of the final round, which is only
+     * SubBytes and ShiftRows
+     * @param sBox The substitution box to use
+     * @param a The column that supplies row 0
+     * @param b The column that supplies row 1
+     * @param c The column that supplies row 2
+     * @param d The column that supplies row 3
+     * @return The substituted column
+     */
+    private static int lastRound(int[] sBox, int a, int b, int c, int d) {
+        return (sBox[a >>> 24] << 24)
+                | (sBox[(b >>> 16) & 0xFF] << 16)
+                | (sBox[(c >>> 8) & 0xFF] << 8)
+                | sBox[d & 0xFF];
+    }
+
+    /**
+     * Packs four bytes into a word with the first byte in the most
+     * significant position
+     */
+    static int word(byte b0, byte b1, byte b2, byte b3) {
+        return ((b0 & 0xFF) << 24) | ((b1 & 0xFF) << 16) | ((b2 & 0xFF) << 8) | (b3 & 0xFF);
+    }
+
+    /**
+     * Reads a big-endian word from an array of bytes
+     */
+    static int toWord(byte[] bytes, int offset) {
+        return word(bytes[offset], bytes[offset + 1], bytes[offset + 2], bytes[offset + 3]);
+    }
+
+    /**
+     * Writes a word into an array of bytes in big-endian order
+     */
+    static void fromWord(int word, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (word >>> 24);
+        bytes[offset + 1] = (byte) (word >>> 16);
+        bytes[offset + 2] = (byte) (word >>> 8);
+        bytes[offset + 3] = (byte) word;
+    }
+}
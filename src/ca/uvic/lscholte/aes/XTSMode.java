@@ -0,0 +1,361 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESCipher.BLOCK_SIZE;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts and decrypts fixed-size sectors using XTS-AES-256, as described in
+ * IEEE Std 1619 and NIST SP 800-38E. Any sector can be encrypted or
+ * decrypted on its own given its sector number, which makes this mode suited
+ * to random-access storage such as disk images.
+ *
+ * The 512-bit XTS key is made up of two AES-256 keys: one for the data, and
+ * one for encrypting the sector number into the initial tweak. The tweak of
+ * each following block in a sector is the previous tweak multiplied by x in
+ * GF(2^128). Sectors that are not a multiple of 16 bytes long use ciphertext
+ * stealing for their last two blocks.
+ *
+ * Requests covering many sectors are split across a {@link ForkJoinPool}.
+ * Instances hold no state between calls and are safe for use by multiple
+ * threads at once.
+ * @author lscholte
+ */
+public final class XTSMode {
+
+    /**
+     * The number of bytes of sectors handed to a single task when processing
+     * in parallel
+     */
+    static final int BYTES_PER_TASK = 65536;
+
+    private final AESCipher dataCipher;
+    private final AESCipher tweakCipher;
+    private final int sectorSize;
+    private final int sectorsPerTask;
+    private final ForkJoinPool pool;
+
+    /**
+     * Initializes XTS mode using the common ForkJoinPool for requests covering
+     * many sectors
+     * @param key The 64-byte XTS key: the data key followed by the tweak key.
+     * The two halves must differ
+     * @param sectorSize The number of bytes in a sector, at least 16
+     */
+    public XTSMode(byte[] key, int sectorSize) {
+        this(key, sectorSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes XTS mode
+     * @param key The 64-byte XTS key: the data key followed by the tweak key.
+     * The two halves must differ
+     * @param sectorSize The number of bytes in a sector, at least 16
+     * @param pool The pool used to process many sectors in parallel
+     */
+    public XTSMode(byte[] key, int sectorSize, ForkJoinPool pool) {
+        this(dataCipher(key), tweakCipher(key), sectorSize, pool);
+    }
+
+    /**
+     * Initializes XTS mode using the common ForkJoinPool for requests covering
+     * many sectors
+     * @param dataCipher The cipher holding the first half of the XTS key
+     * @param tweakCipher The cipher holding the second half of the XTS key
+     * @param sectorSize The number of bytes in a sector, at least 16
+     */
+    public XTSMode(AESCipher dataCipher, AESCipher tweakCipher, int sectorSize) {
+        this(dataCipher, tweakCipher, sectorSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes XTS mode
+     * @param dataCipher The cipher holding the first half of the XTS key
+     * @param tweakCipher The cipher holding the second half of the XTS key
+     * @param sectorSize The number of bytes in a sector, at least 16
+     * @param pool The pool used to process many sectors in parallel
+     */
+    public XTSMode(AESCipher dataCipher, AESCipher tweakCipher, int sectorSize, ForkJoinPool pool) {
+        if (sectorSize < BLOCK_SIZE) {
+            throw new IllegalArgumentException("The sector size must be at least " + BLOCK_SIZE + " bytes");
+        }
+        this.dataCipher = dataCipher;
+        this.tweakCipher = tweakCipher;
+        this.sectorSize = sectorSize;
+        this.sectorsPerTask = Math.max(1, BYTES_PER_TASK / sectorSize);
+        this.pool = pool;
+    }
+
+    /**
+     * @return The number of bytes in a sector
+     */
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    /**
+     * Encrypts consecutive sectors. The input and output may be the same
+     * region of the same array
+     * @param firstSector The number of the first sector, treated as unsigned
+     * @param in The array containing the sectors to encrypt
+     * @param inOff The offset of the first sector
+     * @param len The number of bytes to encrypt, which must be a multiple of
+     * the sector size
+     * @param out The array that receives the encrypted sectors
+     * @param outOff The offset at which to write
+     */
+    public void encrypt(long firstSector, byte[] in, int inOff, int len, byte[] out, int outOff) {
+        process(firstSector, in, inOff, len, out, outOff, true);
+    }
+
+    /**
+     * Decrypts consecutive sectors. The input and output may be the same
+     * region of the same array
+     * @param firstSector The number of the first sector, treated as unsigned
+     * @param in The array containing the sectors to decrypt
+     * @param inOff The offset of the first sector
+     * @param len The number of bytes to decrypt, which must be a multiple of
+     * the sector size
+     * @param out The array that receives the decrypted sectors
+     * @param outOff The offset at which to write
+     */
+    public void decrypt(long firstSector, byte[] in, int inOff, int len, byte[] out, int outOff) {
+        process(firstSector, in, inOff, len, out, outOff, false);
+    }
+
+    /**
+     * Encrypts consecutive sectors
+     * @param firstSector The number of the first sector, treated as unsigned
+     * @param input The sectors to encrypt
+     * @return The encrypted sectors
+     */
+    public byte[] encrypt(long firstSector, byte[] input) {
+        byte[] output = new byte[input.length];
+        encrypt(firstSector, input, 0, input.length, output, 0);
+        return output;
+    }
+
+    /**
+     * Decrypts consecutive sectors
+     * @param firstSector The number of the first sector, treated as unsigned
+     * @param input The sectors to decrypt
+     * @return The decrypted sectors
+     */
+    public byte[] decrypt(long firstSector, byte[] input) {
+        byte[] output = new byte[input.length];
+        decrypt(firstSector, input, 0, input.length, output, 0);
+        return output;
+    }
+
+    private void process(long firstSector, byte[] in, int inOff, int len, byte[] out, int outOff, boolean encrypting) {
+        if (len < 0 || len % sectorSize != 0) {
+            throw new IllegalArgumentException("The input must be a multiple of " + sectorSize + " bytes long");
+        }
+        if (inOff < 0 || outOff < 0 || in.length - inOff < len || out.length - outOff < len) {
+            throw new IllegalArgumentException("The input and output must contain " + len + " bytes");
+        }
+
+        Instrumentation.Span span = Instrumentation.beginBulk(dataCipher.counters);
+        int sectors = len / sectorSize;
+        if (sectors >= 2 * sectorsPerTask && pool.getParallelism() > 1) {
+            pool.invoke(new XTSTask(firstSector, sectors, in, inOff, out, outOff, encrypting));
+        }
+        else if (sectors > 0) {
+            processSectors(firstSector, sectors, in, inOff, out, outOff, encrypting);
+        }
+        Instrumentation.endBulk(span, dataCipher.counters, "XTS", !encrypting, len);
+    }
+
+    /**
+     * Processes a range of sectors on the calling thread. The sector numbers
+     * are encrypted into initial tweaks a group at a time in the thread's
+     * scratch buffer, so the memory used does not grow with the range
+     */
+    private void processSectors(long firstSector, int sectors, byte[] in, int inOff, byte[] out, int outOff, boolean encrypting) {
+        byte[] initialTweaks = Scratch.get().keystream;
+        int group = initialTweaks.length / BLOCK_SIZE;
+        byte[] tweaks = new byte[(sectorSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE];
+        byte[][] stealing = sectorSize % BLOCK_SIZE == 0 ? null : new byte[2][BLOCK_SIZE];
+
+        for (int start = 0; start < sectors; start += group) {
+            int n = Math.min(group, sectors - start);
+            for (int s = 0; s < n; ++s) {
+                Pack.fromLongLittleEndian(firstSector + start + s, initialTweaks, s * BLOCK_SIZE);
+                Pack.fromLongLittleEndian(0, initialTweaks, s * BLOCK_SIZE + 8);
+            }
+            tweakCipher.encryptBlocks(initialTweaks, 0, initialTweaks, 0, n);
+
+            for (int s = 0; s < n; ++s) {
+                int offset = (start + s) * sectorSize;
+                processSector(initialTweaks, s * BLOCK_SIZE, tweaks, stealing,
+                        in, inOff + offset, out, outOff + offset, encrypting);
+            }
+        }
+    }
+
+    /**
+     * Encrypts or decrypts a single sector
+     * @param initialTweaks The array containing the encrypted sector number
+     * @param tweakOff The offset of the encrypted sector number
+     * @param tweaks Scratch space for the tweak of every block in the sector
+     * @param stealing Two blocks of scratch space for ciphertext stealing, or
+     * null if sectors are a whole number of blocks
+     */
+    private void processSector(byte[] initialTweaks, int tweakOff, byte[] tweaks, byte[][] stealing,
+            byte[] in, int inOff, byte[] out, int outOff, boolean encrypting) {
+        int blocks = sectorSize / BLOCK_SIZE;
+        int partial = sectorSize % BLOCK_SIZE;
+
+        //Each tweak is the previous one multiplied by x, with the 128-bit
+        //value stored in little-endian order
+        long low = Pack.toLongLittleEndian(initialTweaks, tweakOff);
+        long high = Pack.toLongLittleEndian(initialTweaks, tweakOff + 8);
+        int tweakBlocks = partial == 0 ? blocks : blocks + 1;
+        for (int j = 0; j < tweakBlocks; ++j) {
+            Pack.fromLongLittleEndian(low, tweaks, j * BLOCK_SIZE);
+            Pack.fromLongLittleEndian(high, tweaks, j * BLOCK_SIZE + 8);
+            long carry = (high >> 63) & 0x87;
+            high = (high << 1) | (low >>> 63);
+            low = (low << 1) ^ carry;
+        }
+
+        //When stealing ciphertext, decryption has to use the tweaks of the
+        //last two blocks the other way round, so it leaves both for later
+        int ordinary = partial != 0 && !encrypting ? blocks - 1 : blocks;
+        int length = ordinary * BLOCK_SIZE;
+        for (int i = 0; i < length; ++i) {
+            out[outOff + i] = (byte) (in[inOff + i] ^ tweaks[i]);
+        }
+        if (encrypting) {
+            dataCipher.encryptBlocks(out, outOff, out, outOff, ordinary);
+        }
+        else {
+            dataCipher.decryptBlocks(out, outOff, out, outOff, ordinary);
+        }
+        for (int i = 0; i < length; ++i) {
+            out[outOff + i] ^= tweaks[i];
+        }
+
+        if (partial != 0) {
+            stealCiphertext(tweaks, stealing[0], stealing[1], in, inOff, out, outOff, blocks, partial, encrypting);
+        }
+    }
+
+    /**
+     * Handles the last full block and the partial block of a sector
+     */
+    private void stealCiphertext(byte[] tweaks, byte[] block, byte[] stolen, byte[] in, int inOff, byte[] out, int outOff,
+            int blocks, int partial, boolean encrypting) {
+        int previous = (blocks - 1) * BLOCK_SIZE;
+        int last = blocks * BLOCK_SIZE;
+
+        if (encrypting) {
+            //The last full block has already been encrypted. Its first bytes
+            //become the partial block, and the rest pad out the last plaintext
+            for (int i = 0; i < partial; ++i) {
+                block[i] = in[inOff + last + i];
+            }
+            for (int i = partial; i < BLOCK_SIZE; ++i) {
+                block[i] = out[outOff + previous + i];
+            }
+            for (int i = 0; i < partial; ++i) {
+                out[outOff + last + i] = out[outOff + previous + i];
+            }
+            xorBlock(block, tweaks, last);
+            dataCipher.encryptBlock(block, 0);
+            xorBlock(block, tweaks, last);
+            System.arraycopy(block, 0, out, outOff + previous, BLOCK_SIZE);
+            return;
+        }
+
+        System.arraycopy(in, inOff + previous, block, 0, BLOCK_SIZE);
+        System.arraycopy(in, inOff + last, stolen, 0, partial);
+
+        xorBlock(block, tweaks, last);
+        dataCipher.decryptBlock(block, 0);
+        xorBlock(block, tweaks, last);
+
+        System.arraycopy(block, partial, stolen, partial, BLOCK_SIZE - partial);
+        System.arraycopy(block, 0, out, outOff + last, partial);
+
+        xorBlock(stolen, tweaks, previous);
+        dataCipher.decryptBlock(stolen, 0);
+        xorBlock(stolen, tweaks, previous);
+        System.arraycopy(stolen, 0, out, outOff + previous, BLOCK_SIZE);
+    }
+
+    private static void xorBlock(byte[] block, byte[] tweaks, int offset) {
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            block[i] ^= tweaks[offset + i];
+        }
+    }
+
+    private static AESCipher dataCipher(byte[] key) {
+        checkKey(key);
+        return halfCipher(key, 0);
+    }
+
+    private static AESCipher tweakCipher(byte[] key) {
+        return halfCipher(key, key.length / 2);
+    }
+
+    private static AESCipher halfCipher(byte[] key, int offset) {
+        byte[] half = Arrays.copyOfRange(key, offset, offset + key.length / 2);
+        try {
+            return new AESCipher(half);
+        }
+        finally {
+            Arrays.fill(half, (byte) 0);
+        }
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key.length != 64) {
+            throw new IllegalArgumentException("The XTS key must be 64 bytes long");
+        }
+        if (Arrays.equals(Arrays.copyOfRange(key, 0, 32), Arrays.copyOfRange(key, 32, 64))) {
+            throw new IllegalArgumentException("The two halves of the XTS key must differ");
+        }
+    }
+
+    /**
+     * Splits a range of sectors in half until each piece is small enough to
+     * process on one thread
+     */
+    @SuppressWarnings("serial")
+    private final class XTSTask extends RecursiveAction {
+
+        private final long firstSector;
+        private final int sectors;
+        private final byte[] in;
+        private final int inOff;
+        private final byte[] out;
+        private final int outOff;
+        private final boolean encrypting;
+
+        XTSTask(long firstSector, int sectors, byte[] in, int inOff, byte[] out, int outOff, boolean encrypting) {
+            this.firstSector = firstSector;
+            this.sectors = sectors;
+            this.in = in;
+            this.inOff = inOff;
+            this.out = out;
+            this.outOff = outOff;
+            this.encrypting = encrypting;
+        }
+
+        @Override
+        protected void compute() {
+            if (sectors <= sectorsPerTask) {
+                processSectors(firstSector, sectors, in, inOff, out, outOff, encrypting);
+                return;
+            }
+            int half = sectors / 2;
+            int offset = half * sectorSize;
+            invokeAll(
+                    new XTSTask(firstSector, half, in, inOff, out, outOff, encrypting),
+                    new XTSTask(firstSector + half, sectors - half, in, inOff + offset, out, outOff + offset, encrypting)
+            );
+        }
+    }
+}
@@ -1,7 +1,18 @@
 package ca.uvic.lscholte.aes;
 
-import javax.xml.bind.DatatypeConverter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import org.junit.Test;
 
 /**
@@ -18,9 +29,9 @@ public class AESCipherTest {
      */
     @Test
     public void testEncrypt_byteArr() {
-        byte[] input = DatatypeConverter.parseHexBinary("00112233445566778899aabbccddeeff");
-        byte[] key = DatatypeConverter.parseHexBinary("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
-        byte[] expResult = DatatypeConverter.parseHexBinary("8ea2b7ca516745bfeafc49904b496089");
+        byte[] input = Hex.decode("00112233445566778899aabbccddeeff");
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
+        byte[] expResult = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
         
         AESCipher instance = new AESCipher(key);
 
@@ -35,9 +46,9 @@ public class AESCipherTest {
      */
     @Test
     public void testDecrypt_byteArr() {
-        byte[] input = DatatypeConverter.parseHexBinary("8ea2b7ca516745bfeafc49904b496089");
-        byte[] key = DatatypeConverter.parseHexBinary("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
-        byte[] expResult = DatatypeConverter.parseHexBinary("00112233445566778899aabbccddeeff");
+        byte[] input = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
+        byte[] expResult = Hex.decode("00112233445566778899aabbccddeeff");
         
         AESCipher instance = new AESCipher(key);
 
@@ -78,5 +89,439 @@ public class AESCipherTest {
         String result = instance.decrypt(input);        
         assertTrue(expResult.equalsIgnoreCase(result));
     }
+
+    /**
+     * Test of encrypt and decrypt methods with several hexadecimal blocks at
+     * once, of class AESCipher.
+     */
+    @Test
+    public void testString_multipleBlocks() {
+        String key = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+        String input = "00112233445566778899aabbccddeeff" + "8ea2b7ca516745bfeafc49904b496089";
+        
+        AESCipher instance = new AESCipher(key);
+        String result = instance.encrypt(input);
+        
+        assertEquals(Hex.encode(instance.encrypt(Hex.decode("00112233445566778899aabbccddeeff")))
+                + Hex.encode(instance.encrypt(Hex.decode("8ea2b7ca516745bfeafc49904b496089"))), result);
+        assertTrue(input.equalsIgnoreCase(instance.decrypt(result)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testString_partialBlock() {
+        new AESCipher(new byte[32]).encrypt("00112233");
+    }
+
+    /**
+     * Test of encrypt and decrypt methods, of class AESCipher, using the
+     * reference engine.
+     * 
+     * Test data taken from http://csrc.nist.gov/publications/fips/fips197/fips-197.pdf
+     */
+    @Test
+    public void testReferenceEngine() {
+        byte[] plaintext = Hex.decode("00112233445566778899aabbccddeeff");
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
+        byte[] ciphertext = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
+        
+        AESCipher instance = new AESCipher(key, AESCipher.Engine.REFERENCE);
+
+        assertArrayEquals(ciphertext, instance.encrypt(plaintext));
+        assertArrayEquals(plaintext, instance.decrypt(ciphertext));
+    }
+
+    /**
+     * Checks that the table engine agrees with the reference engine for
+     * several keys and inputs
+     */
+    @Test
+    public void testEnginesAgree() {
+        Random random = new Random(197);
+        byte[] key = new byte[32];
+        byte[] input = new byte[16];
+        
+        for (int i = 0; i < 50; ++i) {
+            random.nextBytes(key);
+            random.nextBytes(input);
+            
+            AESCipher reference = new AESCipher(key, AESCipher.Engine.REFERENCE);
+            AESCipher table = new AESCipher(key, AESCipher.Engine.TABLE);
+            
+            assertArrayEquals(reference.encrypt(input), table.encrypt(input));
+            assertArrayEquals(reference.decrypt(input), table.decrypt(input));
+        }
+    }
+
+    /**
+     * Test of encrypt and decrypt methods, of class AESCipher, using the
+     * bitsliced engine.
+     * 
+     * Test data taken from http://csrc.nist.gov/publications/fips/fips197/fips-197.pdf
+     */
+    @Test
+    public void testBitslicedEngine() {
+        byte[] plaintext = Hex.decode("00112233445566778899aabbccddeeff");
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
+        byte[] ciphertext = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
+        
+        AESCipher instance = new AESCipher(key, AESCipher.Engine.BITSLICED);
+        assertArrayEquals(ciphertext, instance.encrypt(plaintext));
+        assertArrayEquals(plaintext, instance.decrypt(ciphertext));
+        
+        //Built from an expanded key instead of expanding the key itself
+        instance = new AESCipher(KeySchedule.expand(key), AESCipher.Engine.BITSLICED);
+        assertArrayEquals(ciphertext, instance.encrypt(plaintext));
+        assertArrayEquals(plaintext, instance.decrypt(ciphertext));
+    }
+
+    /**
+     * Test of encryptBlocks and decryptBlocks methods, of class AESCipher.
+     * Checks that every engine agrees with the table engine for batches that
+     * fill and do not fill the bitsliced engine
+     */
+    @Test
+    public void testBlocks() {
+        Random random = new Random(64);
+        byte[] key = new byte[32];
+        
+        for (int blocks = 0; blocks <= 9; ++blocks) {
+            random.nextBytes(key);
+            byte[] input = new byte[blocks * 16 + 5];
+            random.nextBytes(input);
+            
+            AESCipher table = new AESCipher(key, AESCipher.Engine.TABLE);
+            byte[] encrypted = new byte[blocks * 16];
+            byte[] decrypted = new byte[blocks * 16];
+            for (int i = 0; i < blocks; ++i) {
+                table.encryptBlock(input, 5 + i * 16, encrypted, i * 16);
+                table.decryptBlock(input, 5 + i * 16, decrypted, i * 16);
+            }
+            
+            for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+                AESCipher instance = new AESCipher(key, engine);
+                byte[] result = new byte[blocks * 16 + 3];
+                
+                instance.encryptBlocks(input, 5, result, 3, blocks);
+                assertArrayEquals(encrypted, Arrays.copyOfRange(result, 3, result.length));
+                
+                instance.decryptBlocks(input, 5, result, 3, blocks);
+                assertArrayEquals(decrypted, Arrays.copyOfRange(result, 3, result.length));
+            }
+        }
+    }
+
+    /**
+     * Checks that the vector engine agrees with the table engine across
+     * enough blocks to fill several vectors. When the Vector API is not
+     * available this checks the fallback instead
+     */
+    @Test
+    public void testVectorEngine() {
+        Random random = new Random(256);
+        byte[] key = new byte[32];
+        byte[] input = new byte[67 * 16];
+        random.nextBytes(key);
+        random.nextBytes(input);
+        
+        AESCipher table = new AESCipher(key, AESCipher.Engine.TABLE);
+        AESCipher vector = new AESCipher(key, AESCipher.Engine.VECTOR);
+        byte[] expResult = new byte[input.length];
+        byte[] result = new byte[input.length];
+        
+        table.encryptBlocks(input, 0, expResult, 0, 67);
+        vector.encryptBlocks(input, 0, result, 0, 67);
+        assertArrayEquals(expResult, result);
+        
+        vector.decryptBlocks(result, 0, result, 0, 67);
+        assertArrayEquals(input, result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBlocks_shortBuffer() {
+        AESCipher instance = new AESCipher(new byte[32], AESCipher.Engine.BITSLICED);
+        instance.encryptBlocks(new byte[64], 1, new byte[64], 0, 4);
+    }
+
+    /**
+     * Test of encryptBlock and decryptBlock methods with offsets, of class AESCipher.
+     * 
+     * Test data taken from http://csrc.nist.gov/publications/fips/fips197/fips-197.pdf
+     */
+    @Test
+    public void testBlock_offsets() {
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
+        byte[] in = Hex.decode("ffff00112233445566778899aabbccddeeffff");
+        byte[] expResult = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
+        
+        AESCipher instance = new AESCipher(key);
+        
+        byte[] out = new byte[20];
+        instance.encryptBlock(in, 2, out, 3);
+        assertArrayEquals(expResult, Arrays.copyOfRange(out, 3, 19));
+        
+        instance.decryptBlock(out, 3, out, 0);
+        assertArrayEquals(Arrays.copyOfRange(in, 2, 18), Arrays.copyOfRange(out, 0, 16));
+    }
+
+    /**
+     * Test of in place encryptBlock and decryptBlock methods, of class AESCipher.
+     * 
+     * Test data taken from http://csrc.nist.gov/publications/fips/fips197/fips-197.pdf
+     */
+    @Test
+    public void testBlock_inPlace() {
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");        
+        byte[] buffer = Hex.decode("0000000000112233445566778899aabbccddeeff");
+        
+        for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+            AESCipher instance = new AESCipher(key, engine);
+            
+            instance.encryptBlock(buffer, 4);
+            assertArrayEquals(Hex.decode("000000008ea2b7ca516745bfeafc49904b496089"), buffer);
+            
+            instance.decryptBlock(buffer, 4);
+            assertArrayEquals(Hex.decode("0000000000112233445566778899aabbccddeeff"), buffer);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBlock_shortBuffer() {
+        AESCipher instance = new AESCipher(new byte[32]);
+        instance.encryptBlock(new byte[20], 5);
+    }
+
+    /**
+     * Checks that encrypting and decrypting with the offset based methods
+     * does not allocate anything on the heap
+     */
+    @Test
+    public void testBlock_noAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        
+        for (AESCipher.Engine engine : new AESCipher.Engine[] { AESCipher.Engine.TABLE, AESCipher.Engine.BITSLICED }) {
+            AESCipher instance = new AESCipher(new byte[32], engine);
+            byte[] buffer = new byte[1024];
+            final int blocks = 100000;
+            
+            //Warm up so that the JIT compiler has finished with the hot path
+            encryptAndDecrypt(instance, buffer, blocks);
+            
+            long threadId = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(threadId);
+            encryptAndDecrypt(instance, buffer, blocks);
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            
+            //Allow for a few bytes of noise from the measurement itself, which
+            //is still far less than a single byte per block
+            assertTrue(engine + " allocated " + allocated + " bytes", allocated < 1024);
+        }
+    }
+    
+    /**
+     * Checks that the engines keep nothing but their key in instance fields,
+     * which is what makes a shared cipher safe without locking
+     */
+    @Test
+    public void testEngines_noMutableState() {
+        for (Class<?> type : new Class<?>[] { AESCipher.class, TableEngine.class, BitslicedEngine.class, ReferenceEngine.class }) {
+            for (Field field : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    assertTrue(type.getSimpleName() + "." + field.getName(), Modifier.isFinal(field.getModifiers()));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks that 64 threads sharing one cipher for each engine all get the
+     * same results as a single thread
+     */
+    @Test
+    public void testSharedCipher_threads() throws InterruptedException {
+        final int threadCount = 64;
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        byte[] data = new byte[37 * 16];
+        Random random = new Random(19);
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        random.nextBytes(data);
+        
+        for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+            AESCipher shared = new AESCipher(key, engine);
+            byte[] ecb = new byte[data.length];
+            shared.encryptBlocks(data, 0, ecb, 0, data.length / 16);
+            byte[] ctr = new CTRMode(shared, iv).update(data);
+            
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[threadCount];
+            for (int t = 0; t < threadCount; ++t) {
+                threads[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                        byte[] result = new byte[data.length];
+                        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+                        for (int i = 0; i < 50; ++i) {
+                            shared.encryptBlocks(data, 0, result, 0, data.length / 16);
+                            assertArrayEquals(ecb, result);
+                            
+                            shared.decryptBlocks(result, 0, result, 0, data.length / 16);
+                            assertArrayEquals(data, result);
+                            
+                            direct.clear();
+                            direct.put(data).flip();
+                            shared.encrypt(direct.duplicate(), direct.duplicate());
+                            direct.get(result);
+                            assertArrayEquals(ecb, result);
+                            
+                            assertArrayEquals(ctr, new CTRMode(shared, iv).update(data));
+                        }
+                    }
+                    catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                threads[t].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(engine.toString(), Collections.emptyList(), failures);
+        }
+    }
+    
+    /**
+     * Test of encrypt and decrypt methods with direct buffers, of class AESCipher.
+     */
+    @Test
+    public void testByteBuffer_direct() {
+        byte[] key = new byte[32];
+        byte[] data = new byte[10 * AESCipher.BLOCK_SIZE];
+        Random random = new Random(9);
+        random.nextBytes(key);
+        random.nextBytes(data);
+        
+        for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+            AESCipher instance = new AESCipher(key, engine);
+            byte[] expResult = encryptBlocks(instance, data);
+            
+            ByteBuffer src = ByteBuffer.allocateDirect(data.length + 5);
+            src.position(5);
+            src.put(data);
+            src.position(5);
+            ByteBuffer dst = ByteBuffer.allocateDirect(data.length + 3).order(ByteOrder.LITTLE_ENDIAN);
+            dst.position(3);
+            
+            assertEquals(data.length, instance.encrypt(src, dst));
+            assertEquals(src.limit(), src.position());
+            assertEquals(dst.limit(), dst.position());
+            
+            byte[] result = new byte[data.length];
+            dst.position(3);
+            dst.get(result);
+            assertArrayEquals(expResult, result);
+            
+            //Decrypt in place
+            dst.position(3);
+            ByteBuffer view = dst.duplicate();
+            instance.decrypt(dst, view);
+            view.position(3);
+            view.get(result);
+            assertArrayEquals(data, result);
+        }
+    }
+    
+    /**
+     * Test of encrypt and decrypt methods with heap buffers, of class AESCipher.
+     */
+    @Test
+    public void testByteBuffer_heap() {
+        byte[] key = new byte[32];
+        byte[] data = new byte[4 * AESCipher.BLOCK_SIZE];
+        Random random = new Random(10);
+        random.nextBytes(key);
+        random.nextBytes(data);
+        
+        AESCipher instance = new AESCipher(key);
+        byte[] expResult = encryptBlocks(instance, data);
+        
+        byte[] backing = new byte[data.length + 7];
+        System.arraycopy(data, 0, backing, 7, data.length);
+        ByteBuffer src = ByteBuffer.wrap(backing, 2, backing.length - 2).slice();
+        src.position(5);
+        ByteBuffer dst = ByteBuffer.allocate(data.length);
+        
+        instance.encrypt(src, dst);
+        assertArrayEquals(expResult, dst.array());
+        
+        //Heap source and direct destination
+        dst.flip();
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        instance.decrypt(dst, direct);
+        direct.flip();
+        byte[] result = new byte[data.length];
+        direct.get(result);
+        assertArrayEquals(data, result);
+    }
+    
+    /**
+     * Checks that direct buffers give the same output as heap buffers with
+     * the bitsliced engine, over several batches and a partial batch
+     */
+    @Test
+    public void testByteBuffer_directMatchesHeap() {
+        byte[] key = new byte[32];
+        byte[] data = new byte[(3 * Scratch.KEYSTREAM_BLOCKS + 5) * AESCipher.BLOCK_SIZE];
+        Random random = new Random(11);
+        random.nextBytes(key);
+        random.nextBytes(data);
+        AESCipher instance = new AESCipher(key, AESCipher.Engine.BITSLICED);
+        
+        ByteBuffer heap = ByteBuffer.allocate(data.length);
+        instance.encrypt(ByteBuffer.wrap(data), heap);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+        src.put(data).flip();
+        instance.encrypt(src, direct);
+        
+        byte[] result = new byte[data.length];
+        direct.flip();
+        direct.get(result);
+        assertArrayEquals(heap.array(), result);
+        
+        direct.flip();
+        ByteBuffer decrypted = ByteBuffer.allocateDirect(data.length);
+        instance.decrypt(direct, decrypted);
+        decrypted.flip();
+        decrypted.get(result);
+        assertArrayEquals(data, result);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testByteBuffer_partialBlock() {
+        AESCipher instance = new AESCipher(new byte[32]);
+        instance.encrypt(ByteBuffer.allocate(20), ByteBuffer.allocate(32));
+    }
+    
+    private static byte[] encryptBlocks(AESCipher instance, byte[] data) {
+        byte[] result = new byte[data.length];
+        for (int i = 0; i < data.length; i += AESCipher.BLOCK_SIZE) {
+            instance.encryptBlock(data, i, result, i);
+        }
+        return result;
+    }
+    
+    private static void encryptAndDecrypt(AESCipher instance, byte[] buffer, int blocks) {
+        for (int i = 0; i < blocks; ++i) {
+            int offset = (i * AESCipher.BLOCK_SIZE) % buffer.length;
+            instance.encryptBlock(buffer, offset);
+            instance.decryptBlock(buffer, offset, buffer, offset);
+        }
+    }
     
 }
@@ -0,0 +1,211 @@
+package ca.uvic.lscholte.aes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Tests the AESInputStream and AESOutputStream classes
+ *
+ * @author lscholte
+ */
+public class AESStreamTest {
+
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] IV = new byte[16];
+    private static final byte[] DATA = new byte[10000];
+
+    static {
+        Random random = new Random(18);
+        random.nextBytes(KEY);
+        random.nextBytes(IV);
+        random.nextBytes(DATA);
+    }
+
+    private final AESCipher cipher = new AESCipher(KEY);
+
+    /**
+     * Checks that writing in uneven pieces gives the same output as counter
+     * mode on the whole input
+     */
+    @Test
+    public void testOutputStream_ctr() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (OutputStream out = new AESOutputStream(sink, new CTRMode(cipher, IV), 64)) {
+            writeInPieces(out, DATA);
+        }
+        assertArrayEquals(new CTRMode(cipher, IV).update(DATA), sink.toByteArray());
+    }
+
+    @Test
+    public void testOutputStream_cbc() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (OutputStream out = new AESOutputStream(sink, new CBCMode(cipher, IV, true), 64)) {
+            writeInPieces(out, DATA);
+        }
+        assertArrayEquals(new CBCMode(cipher, IV, true).doFinal(DATA), sink.toByteArray());
+    }
+
+    @Test
+    public void testInputStream_ctr() throws IOException {
+        byte[] ciphertext = new CTRMode(cipher, IV).update(DATA);
+        try (InputStream in = new AESInputStream(new ByteArrayInputStream(ciphertext), new CTRMode(cipher, IV), 48)) {
+            assertArrayEquals(DATA, readInPieces(in));
+        }
+    }
+
+    @Test
+    public void testInputStream_cbc() throws Exception {
+        byte[] ciphertext = new CBCMode(cipher, IV, true).doFinal(DATA);
+        try (InputStream in = new AESInputStream(new ByteArrayInputStream(ciphertext), new CBCMode(cipher, IV, false), 48)) {
+            assertArrayEquals(DATA, readInPieces(in));
+        }
+    }
+
+    @Test
+    public void testInputStream_skip() throws IOException {
+        byte[] ciphertext = new CTRMode(cipher, IV).update(DATA);
+        try (InputStream in = new AESInputStream(new ByteArrayInputStream(ciphertext), new CTRMode(cipher, IV), 32)) {
+            assertEquals(1000, in.skip(1000));
+            assertEquals(DATA[1000] & 0xFF, in.read());
+            assertEquals(DATA.length - 1001, in.skip(DATA.length));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    /**
+     * Checks that bad padding is reported when the underlying stream ends
+     */
+    @Test(expected = IOException.class)
+    public void testInputStream_badPadding() throws IOException {
+        byte[] ciphertext = new CTRMode(cipher, IV).update(new byte[64]);
+        try (InputStream in = new AESInputStream(new ByteArrayInputStream(ciphertext), new CBCMode(cipher, IV, false), 32)) {
+            while (in.read() >= 0) {
+            }
+        }
+    }
+
+    /**
+     * Checks that a stream on a thread of its own allocates no more than its
+     * two buffers and the thread's scratch memory, however much is written
+     * through it. This is the budget per stream when each stream has its own
+     * virtual thread
+     */
+    @Test
+    public void testOutputStream_allocation() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        int bufferSize = 4096;
+        //Allow a kilobyte for the stream object, its lock and the mode adapter
+        long budget = 2 * bufferSize + StreamMode.OVERHEAD + AESOutputStream.THREAD_SCRATCH_BYTES + 1024;
+        byte[] ciphertext = new CBCMode(cipher, IV, true).doFinal(DATA);
+        String[] modes = {"CTR", "CBC encryption", "CBC decryption"};
+        for (int variant = 0; variant < modes.length; ++variant) {
+            int v = variant;
+            long[] allocated = new long[1];
+            Thread thread = new Thread(() -> {
+                try {
+                    OutputStream sink = new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                        }
+                    };
+                    CTRMode ctr = new CTRMode(cipher, IV);
+                    CBCMode cbc = new CBCMode(cipher, IV, v == 1);
+                    byte[] input = v == 2 ? ciphertext : DATA;
+                    long threadId = Thread.currentThread().getId();
+                    long before = threads.getThreadAllocatedBytes(threadId);
+                    OutputStream out = v == 0 ?
+                            new AESOutputStream(sink, ctr, bufferSize) :
+                            new AESOutputStream(sink, cbc, bufferSize);
+                    for (int i = 0; i < 1000; i += 100) {
+                        out.write(input, i, 100);
+                    }
+                    out.write(input, 1000, input.length - 1000);
+                    out.close();
+                    allocated[0] = threads.getThreadAllocatedBytes(threadId) - before;
+                }
+                catch (IOException e) {
+                    allocated[0] = -1;
+                }
+            });
+            thread.start();
+            thread.join();
+            assertTrue(modes[variant] + " allocated " + allocated[0] + " bytes",
+                    allocated[0] >= 0 && allocated[0] <= budget);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBufferSize() {
+        new AESOutputStream(new ByteArrayOutputStream(), new CTRMode(cipher, IV), 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrite_closed() throws IOException {
+        OutputStream out = new AESOutputStream(new ByteArrayOutputStream(), new CTRMode(cipher, IV));
+        out.close();
+        out.write(1);
+    }
+
+    /**
+     * Writes single bytes, small arrays and arrays larger than the buffer
+     */
+    private static void writeInPieces(OutputStream out, byte[] data) throws IOException {
+        Random random = new Random(1);
+        int offset = 0;
+        while (offset < data.length) {
+            int choice = random.nextInt(3);
+            if (choice == 0) {
+                out.write(data[offset++]);
+            }
+            else {
+                int length = Math.min(data.length - offset, random.nextInt(choice == 1 ? 40 : 300));
+                out.write(data, offset, length);
+                offset += length;
+            }
+            if (random.nextInt(20) == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    private static byte[] readInPieces(InputStream in) throws IOException {
+        Random random = new Random(2);
+        byte[] result = new byte[DATA.length + 100];
+        int offset = 0;
+        while (true) {
+            if (random.nextBoolean()) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                result[offset++] = (byte) b;
+            }
+            else {
+                int n = in.read(result, offset, Math.min(result.length - offset, random.nextInt(200)));
+                if (n < 0) {
+                    break;
+                }
+                offset += n;
+            }
+        }
+        return Arrays.copyOf(result, offset);
+    }
+
+}
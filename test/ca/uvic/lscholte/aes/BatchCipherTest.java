@@ -0,0 +1,183 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the BatchCipher class
+ *
+ * @author lscholte
+ */
+public class BatchCipherTest {
+
+    private static final byte[] KEY = new byte[32];
+
+    static {
+        new Random(17).nextBytes(KEY);
+    }
+
+    /**
+     * Checks that requests of different sizes and directions, submitted from
+     * several threads at once, each get the same result as the cipher alone
+     */
+    @Test
+    public void testEncryptAndDecrypt() throws Exception {
+        AESCipher cipher = new AESCipher(KEY, AESCipher.Engine.BITSLICED);
+        try (BatchCipher batch = new BatchCipher(cipher, 3, 64, 32)) {
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                Random random = new Random(t);
+                threads.add(new Thread(() -> {
+                    try {
+                        checkRequests(cipher, batch, random);
+                    }
+                    catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(new ArrayList<Throwable>(), failures);
+
+            assertEquals(4 * 500, batch.requests());
+            assertTrue(batch.batches() <= batch.requests());
+            assertTrue(batch.largestBatchBlocks() <= 40);
+            assertTrue(batch.averageBatchBlocks() > 0);
+            assertTrue(batch.latencyPercentile(50) <= batch.latencyPercentile(99));
+        }
+    }
+
+    private static void checkRequests(AESCipher cipher, BatchCipher batch, Random random) throws Exception {
+        List<byte[]> inputs = new ArrayList<>();
+        List<Boolean> inverses = new ArrayList<>();
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            //Mostly small records, with the odd one larger than a batch
+            byte[] input = new byte[16 * (random.nextInt(20) == 0 ? 40 : random.nextInt(5))];
+            random.nextBytes(input);
+            boolean inverse = random.nextBoolean();
+            inputs.add(input);
+            inverses.add(inverse);
+            results.add(inverse ? batch.decrypt(input) : batch.encrypt(input));
+        }
+
+        for (int i = 0; i < inputs.size(); ++i) {
+            byte[] input = inputs.get(i);
+            byte[] expResult = new byte[input.length];
+            if (inverses.get(i)) {
+                cipher.decryptBlocks(input, 0, expResult, 0, input.length / 16);
+            }
+            else {
+                cipher.encryptBlocks(input, 0, expResult, 0, input.length / 16);
+            }
+            assertArrayEquals(expResult, results.get(i).get());
+        }
+    }
+
+    @Test
+    public void testTryEncrypt() throws Exception {
+        AESCipher cipher = new AESCipher(KEY);
+        byte[] input = new byte[48];
+        new Random(1).nextBytes(input);
+        byte[] expResult = new byte[48];
+        cipher.encryptBlocks(input, 0, expResult, 0, 3);
+
+        try (BatchCipher batch = new BatchCipher(cipher)) {
+            CompletableFuture<byte[]> result;
+            do {
+                result = batch.tryEncrypt(input);
+            } while (result.isCompletedExceptionally());
+            assertArrayEquals(expResult, result.get());
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        BatchCipher batch = new BatchCipher(new AESCipher(KEY), 2, 16, 8);
+        CompletableFuture<byte[]> result = batch.encrypt(new byte[16]);
+        batch.close();
+        assertEquals(16, result.get().length);
+
+        try {
+            batch.encrypt(new byte[16]);
+            fail("Expected a RejectedExecutionException");
+        }
+        catch (RejectedExecutionException e) {
+            //Expected
+        }
+    }
+
+    /**
+     * Requests queued just before close are all processed, even when the
+     * workers are interrupted while waiting for them
+     */
+    @Test
+    public void testClose_drainsQueue() throws Exception {
+        for (int round = 0; round < 50; ++round) {
+            BatchCipher batch = new BatchCipher(new AESCipher(KEY), 2, 256, 4);
+            List<CompletableFuture<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 200; ++i) {
+                results.add(batch.encrypt(new byte[16]));
+            }
+            batch.close();
+            for (CompletableFuture<byte[]> result : results) {
+                assertEquals(16, result.get().length);
+            }
+        }
+    }
+
+    /**
+     * An interrupt during close does not stop it waiting for the workers, and
+     * is passed on to the caller
+     */
+    @Test
+    public void testClose_interrupted() throws Exception {
+        BatchCipher batch = new BatchCipher(new AESCipher(KEY), 1, 16, 8);
+        CompletableFuture<byte[]> result = batch.encrypt(new byte[16]);
+        Thread.currentThread().interrupt();
+        batch.close();
+        assertTrue(Thread.interrupted());
+        assertEquals(16, result.get().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncrypt_partialBlock() throws Exception {
+        try (BatchCipher batch = new BatchCipher(new AESCipher(KEY), 1, 1, 1)) {
+            batch.encrypt(new byte[15]);
+        }
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        for (long value : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = BatchCipher.LatencyHistogram.bucket(value);
+            assertTrue(value <= BatchCipher.LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > BatchCipher.LatencyHistogram.upperBound(bucket - 1));
+        }
+
+        BatchCipher.LatencyHistogram histogram = new BatchCipher.LatencyHistogram();
+        assertEquals(0, histogram.percentile(50));
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i * 1000);
+        }
+        long median = histogram.percentile(50);
+        assertTrue(median >= 50000 && median < 50000 * 9 / 8);
+        long highest = histogram.percentile(100);
+        assertTrue(highest >= 100000 && highest < 100000 * 9 / 8);
+    }
+
+}
@@ -0,0 +1,164 @@
+package ca.uvic.lscholte.aes;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the CBCMode class
+ *
+ * @author lscholte
+ */
+public class CBCModeTest {
+
+    private static final byte[] KEY = Hex.decode("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+
+    private static final byte[] IV = Hex.decode("000102030405060708090a0b0c0d0e0f");
+
+    private static final byte[] PLAINTEXT = Hex.decode(
+            "6bc1bee22e409f96e93d7e117393172a" +
+            "ae2d8a571e03ac9c9eb76fac45af8e51" +
+            "30c81c46a35ce411e5fbc1191a0a52ef" +
+            "f69f2445df4f9b17ad2b417be66c3710");
+
+    private static final byte[] CIPHERTEXT = Hex.decode(
+            "f58c4c04d6e5f1ba779eabfb5f7bfbd6" +
+            "9cfc4e967edb808d679f777bc6702c7d" +
+            "39f23369a9d9bacfa530e26304231461" +
+            "b2eb05e2c39be9fcda6c19078c6a9d1b");
+
+    /**
+     * Test of doFinal method when encrypting, of class CBCMode.
+     *
+     * Test data taken from NIST SP 800-38A, F.2.5 CBC-AES256.Encrypt
+     */
+    @Test
+    public void testEncrypt() throws GeneralSecurityException {
+        CBCMode instance = new CBCMode(new AESCipher(KEY), IV, true, CBCMode.Padding.NONE);
+        assertArrayEquals(CIPHERTEXT, instance.doFinal(PLAINTEXT));
+    }
+
+    /**
+     * Test of doFinal method when decrypting, of class CBCMode.
+     *
+     * Test data taken from NIST SP 800-38A, F.2.6 CBC-AES256.Decrypt
+     */
+    @Test
+    public void testDecrypt() throws GeneralSecurityException {
+        CBCMode instance = new CBCMode(new AESCipher(KEY), IV, false, CBCMode.Padding.NONE);
+        assertArrayEquals(PLAINTEXT, instance.doFinal(CIPHERTEXT));
+    }
+
+    /**
+     * Checks PKCS#7 padding against javax.crypto for every length up to
+     * three blocks
+     */
+    @Test
+    public void testPadding() throws GeneralSecurityException {
+        Cipher jce = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        jce.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(IV));
+        AESCipher cipher = new AESCipher(KEY);
+
+        for (int length = 0; length <= 48; ++length) {
+            byte[] input = Arrays.copyOf(PLAINTEXT, length);
+            byte[] expResult = jce.doFinal(input);
+
+            byte[] result = new CBCMode(cipher, IV, true).doFinal(input);
+            assertArrayEquals(expResult, result);
+
+            assertArrayEquals(input, new CBCMode(cipher, IV, false).doFinal(result));
+        }
+    }
+
+    /**
+     * Checks that splitting the input into pieces that do not line up with
+     * block boundaries gives the same result as a single call
+     */
+    @Test
+    public void testUpdate_pieces() throws GeneralSecurityException {
+        AESCipher cipher = new AESCipher(KEY);
+        byte[] input = Arrays.copyOf(PLAINTEXT, 60);
+        byte[] ciphertext = new CBCMode(cipher, IV, true).doFinal(input);
+        int[] lengths = { 3, 13, 1, 20, 0, 7 };
+
+        for (boolean encrypting : new boolean[] { true, false }) {
+            byte[] source = encrypting ? input : ciphertext;
+            byte[] expResult = encrypting ? ciphertext : input;
+
+            CBCMode instance = new CBCMode(cipher, IV, encrypting);
+            byte[] result = new byte[expResult.length];
+            int inOff = 0;
+            int outOff = 0;
+            for (int length : lengths) {
+                outOff += instance.update(source, inOff, length, result, outOff);
+                inOff += length;
+            }
+            outOff += instance.update(source, inOff, source.length - inOff, result, outOff);
+            outOff += instance.doFinal(result, outOff);
+
+            assertEquals(expResult.length, outOff);
+            assertArrayEquals(expResult, result);
+        }
+    }
+
+    /**
+     * Checks that large inputs decrypted in parallel, both in place and into
+     * a separate array, give the same result as decrypting them on a single
+     * thread
+     */
+    @Test
+    public void testDecrypt_parallel() throws GeneralSecurityException {
+        byte[] input = new byte[(CBCMode.BLOCKS_PER_TASK * 5 + 3) * AESCipher.BLOCK_SIZE + 7];
+        new Random(38).nextBytes(input);
+        AESCipher cipher = new AESCipher(KEY);
+        byte[] ciphertext = new CBCMode(cipher, IV, true).doFinal(input);
+
+        ForkJoinPool sequentialPool = new ForkJoinPool(1);
+        ForkJoinPool parallelPool = new ForkJoinPool(4);
+        try {
+            byte[] expResult = new CBCMode(cipher, IV, false, CBCMode.Padding.PKCS7, sequentialPool).doFinal(ciphertext);
+            assertArrayEquals(input, expResult);
+
+            byte[] result = new CBCMode(cipher, IV, false, CBCMode.Padding.PKCS7, parallelPool).doFinal(ciphertext);
+            assertArrayEquals(input, result);
+
+            byte[] buffer = ciphertext.clone();
+            CBCMode instance = new CBCMode(cipher, IV, false, CBCMode.Padding.PKCS7, parallelPool);
+            int written = instance.update(buffer, 0, 100, buffer, 0);
+            written += instance.update(buffer, 100, buffer.length - 100, buffer, written);
+            written += instance.doFinal(buffer, written);
+            assertEquals(input.length, written);
+            assertArrayEquals(input, Arrays.copyOf(buffer, written));
+        }
+        finally {
+            sequentialPool.shutdown();
+            parallelPool.shutdown();
+        }
+    }
+
+    @Test(expected = BadPaddingException.class)
+    public void testDecrypt_badPadding() throws GeneralSecurityException {
+        //The last plaintext block ends in 0x37 0x10, which claims sixteen
+        //bytes of padding that are not all 0x10
+        new CBCMode(new AESCipher(KEY), IV, false).doFinal(CIPHERTEXT);
+    }
+
+    @Test(expected = IllegalBlockSizeException.class)
+    public void testDecrypt_partialBlock() throws GeneralSecurityException {
+        new CBCMode(new AESCipher(KEY), IV, false).doFinal(Arrays.copyOf(CIPHERTEXT, 40));
+    }
+
+    @Test(expected = IllegalBlockSizeException.class)
+    public void testEncrypt_noPaddingPartialBlock() throws GeneralSecurityException {
+        new CBCMode(new AESCipher(KEY), IV, true, CBCMode.Padding.NONE).doFinal(new byte[20]);
+    }
+
+}
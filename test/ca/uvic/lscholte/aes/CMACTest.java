@@ -0,0 +1,173 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.AEADBadTagException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the CMAC class
+ *
+ * Test data taken from examples 9 to 12 of NIST SP 800-38B, which are the
+ * AES-256 examples
+ *
+ * @author lscholte
+ */
+public class CMACTest {
+
+    private static final byte[] KEY = Hex.decode("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+
+    private static final byte[] MESSAGE = Hex.decode(
+            "6bc1bee22e409f96e93d7e117393172a" +
+            "ae2d8a571e03ac9c9eb76fac45af8e51" +
+            "30c81c46a35ce411e5fbc1191a0a52ef" +
+            "f69f2445df4f9b17ad2b417be66c3710");
+
+    private static final byte[] IV = Hex.decode("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+
+    /**
+     * Example 9: an empty message
+     */
+    @Test
+    public void testMac_empty() {
+        check(0, "028962f61b7bf89efc6b551f4667d983");
+    }
+
+    /**
+     * Example 10: one whole block
+     */
+    @Test
+    public void testMac_oneBlock() {
+        check(16, "28a7023f452e8f82bd4bf28d8c37c35c");
+    }
+
+    /**
+     * Example 11: a partial last block
+     */
+    @Test
+    public void testMac_partialBlock() {
+        check(40, "aaf3d8f1de5640c232f5b169b9c911e6");
+    }
+
+    /**
+     * Example 12: four whole blocks
+     */
+    @Test
+    public void testMac_fourBlocks() {
+        check(64, "e1992190549f6ed5696a2c056c315410");
+    }
+
+    /**
+     * Splitting a message into pieces of any size gives the same MAC, and
+     * doFinal starts a new message
+     */
+    @Test
+    public void testUpdate_pieces() {
+        byte[] expResult = Hex.decode("e1992190549f6ed5696a2c056c315410");
+        CMAC instance = new CMAC(new AESCipher(KEY));
+        for (int piece = 1; piece <= 64; ++piece) {
+            for (int i = 0; i < MESSAGE.length; i += piece) {
+                instance.update(MESSAGE, i, Math.min(piece, MESSAGE.length - i));
+            }
+            assertArrayEquals("piece " + piece, expResult, instance.doFinal());
+        }
+    }
+
+    /**
+     * Test of copy method, of class CMAC. A copy carries on from the same
+     * data without affecting the original
+     */
+    @Test
+    public void testCopy() {
+        CMAC instance = new CMAC(new AESCipher(KEY));
+        instance.update(MESSAGE, 0, 20);
+        CMAC copy = instance.copy();
+
+        copy.update(MESSAGE, 20, 44);
+        assertArrayEquals(Hex.decode("e1992190549f6ed5696a2c056c315410"), copy.doFinal());
+        instance.update(MESSAGE, 20, 20);
+        assertArrayEquals(Hex.decode("aaf3d8f1de5640c232f5b169b9c911e6"), instance.doFinal());
+    }
+
+    /**
+     * Test of encryptThenMac method, of class CMAC. The result is the
+     * counter mode ciphertext followed by the MAC of any header and the
+     * ciphertext
+     */
+    @Test
+    public void testEncryptThenMac() {
+        AESCipher macCipher = new AESCipher(KEY);
+        AESCipher ctrCipher = new AESCipher(random(32, 1));
+        byte[] header = random(5, 2);
+        for (int length : new int[] {0, 1, 16, 511, 512, 513, 5000}) {
+            byte[] plaintext = random(length, length);
+            byte[] ciphertext = new CTRMode(ctrCipher, IV).update(plaintext);
+            CMAC reference = new CMAC(macCipher);
+            reference.update(header);
+            byte[] mac = reference.mac(ciphertext);
+
+            CMAC instance = new CMAC(macCipher);
+            instance.update(header);
+            byte[] result = new byte[length + CMAC.MAC_LENGTH];
+            assertEquals(result.length, instance.encryptThenMac(new CTRMode(ctrCipher, IV), plaintext, 0, length, result, 0));
+            assertArrayEquals(ciphertext, Arrays.copyOf(result, length));
+            assertArrayEquals(mac, Arrays.copyOfRange(result, length, result.length));
+        }
+    }
+
+    /**
+     * Test of decryptAndVerify method, of class CMAC, in place
+     */
+    @Test
+    public void testDecryptAndVerify() throws AEADBadTagException {
+        CMAC instance = new CMAC(new AESCipher(KEY));
+        AESCipher ctrCipher = new AESCipher(random(32, 1));
+        byte[] plaintext = random(3000, 3);
+        byte[] buffer = Arrays.copyOf(plaintext, plaintext.length + CMAC.MAC_LENGTH);
+        instance.encryptThenMac(new CTRMode(ctrCipher, IV), buffer, 0, plaintext.length, buffer, 0);
+
+        assertEquals(plaintext.length, instance.decryptAndVerify(new CTRMode(ctrCipher, IV), buffer, 0, buffer.length, buffer, 0));
+        assertArrayEquals(plaintext, Arrays.copyOf(buffer, plaintext.length));
+    }
+
+    /**
+     * A tampered message is rejected and no plaintext is left in the output
+     */
+    @Test
+    public void testDecryptAndVerify_tampered() {
+        CMAC instance = new CMAC(new AESCipher(KEY));
+        AESCipher ctrCipher = new AESCipher(random(32, 1));
+        byte[] message = new byte[100 + CMAC.MAC_LENGTH];
+        instance.encryptThenMac(new CTRMode(ctrCipher, IV), random(100, 4), 0, 100, message, 0);
+        message[50] ^= 1;
+
+        byte[] output = new byte[100];
+        try {
+            instance.decryptAndVerify(new CTRMode(ctrCipher, IV), message, 0, message.length, output, 0);
+            fail("Expected an AEADBadTagException");
+        }
+        catch (AEADBadTagException e) {
+            assertArrayEquals(new byte[100], output);
+        }
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testDecryptAndVerify_short() throws AEADBadTagException {
+        new CMAC(new AESCipher(KEY)).decryptAndVerify(new CTRMode(new AESCipher(KEY), IV), new byte[15], 0, 15, new byte[15], 0);
+    }
+
+    private void check(int length, String mac) {
+        for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+            CMAC instance = new CMAC(new AESCipher(KEY, engine));
+            assertArrayEquals(engine.name(), Hex.decode(mac), instance.mac(Arrays.copyOf(MESSAGE, length)));
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+}
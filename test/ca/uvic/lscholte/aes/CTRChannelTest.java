@@ -0,0 +1,126 @@
+package ca.uvic.lscholte.aes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the CTRChannel class
+ *
+ * @author lscholte
+ */
+public class CTRChannelTest {
+
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] IV = new byte[16];
+
+    static {
+        Random random = new Random(16);
+        random.nextBytes(KEY);
+        random.nextBytes(IV);
+    }
+
+    private Path file;
+    private AESCipher cipher;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("ciphertext", ".bin");
+        cipher = new AESCipher(KEY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Checks that data written in pieces, out of order, gives the same file
+     * as counter mode on the whole input, and reads back from any position
+     */
+    @Test
+    public void testWriteAndRead() throws IOException {
+        byte[] data = new byte[3 * CTRChannel.CHUNK_SIZE + 100];
+        new Random(1).nextBytes(data);
+
+        try (CTRChannel channel = CTRChannel.open(file, cipher, IV, StandardOpenOption.WRITE)) {
+            int middle = 70001;
+            channel.position(middle);
+            assertEquals(data.length - middle, channel.write(ByteBuffer.wrap(data, middle, data.length - middle)));
+            channel.position(0);
+            channel.write(ByteBuffer.wrap(data, 0, middle));
+            assertEquals(middle, channel.position());
+        }
+
+        assertArrayEquals(new CTRMode(cipher, IV).update(data), Files.readAllBytes(file));
+
+        try (CTRChannel channel = CTRChannel.open(file, cipher, IV, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+            channel.position(12345);
+            assertEquals(1000, channel.read(buffer));
+            buffer.flip();
+            byte[] result = new byte[1000];
+            buffer.get(result);
+            assertArrayEquals(Arrays.copyOfRange(data, 12345, 13345), result);
+
+            ByteBuffer rest = ByteBuffer.allocate(data.length);
+            channel.position(data.length - 50);
+            assertEquals(50, channel.read(rest));
+            assertEquals(-1, channel.read(rest));
+        }
+    }
+
+    /**
+     * Checks that a write far into a sparse file uses the keystream for that
+     * position
+     */
+    @Test
+    public void testRead_largeOffset() throws IOException {
+        long offset = 10L << 30;
+        byte[] data = new byte[4096];
+        new Random(2).nextBytes(data);
+
+        try (CTRChannel channel = CTRChannel.open(file, cipher, IV, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.position(offset).write(ByteBuffer.wrap(data));
+            assertEquals(offset + data.length, channel.size());
+
+            ByteBuffer buffer = ByteBuffer.allocate(data.length);
+            channel.position(offset).read(buffer);
+            assertArrayEquals(data, buffer.array());
+        }
+
+        CTRMode ctr = new CTRMode(cipher, IV);
+        ctr.seek(offset);
+        byte[] expResult = ctr.update(data);
+        try (SeekableByteChannel raw = Files.newByteChannel(file)) {
+            ByteBuffer ciphertext = ByteBuffer.allocate(data.length);
+            raw.position(offset).read(ciphertext);
+            assertArrayEquals(expResult, ciphertext.array());
+        }
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        try (CTRChannel channel = CTRChannel.open(file, cipher, IV, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[100]));
+            channel.truncate(40);
+            assertEquals(40, channel.size());
+            assertEquals(40, channel.position());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOpen_append() throws IOException {
+        CTRChannel.open(file, cipher, IV, StandardOpenOption.APPEND);
+    }
+
+}
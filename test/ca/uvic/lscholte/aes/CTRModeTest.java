@@ -0,0 +1,134 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the CTRMode class
+ *
+ * @author lscholte
+ */
+public class CTRModeTest {
+
+    private static final byte[] KEY = Hex.decode("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+
+    private static final byte[] IV = Hex.decode("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+
+    private static final byte[] PLAINTEXT = Hex.decode(
+            "6bc1bee22e409f96e93d7e117393172a" +
+            "ae2d8a571e03ac9c9eb76fac45af8e51" +
+            "30c81c46a35ce411e5fbc1191a0a52ef" +
+            "f69f2445df4f9b17ad2b417be66c3710");
+
+    private static final byte[] CIPHERTEXT = Hex.decode(
+            "601ec313775789a5b7a7f504bbf3d228" +
+            "f443e3ca4d62b59aca84e990cacaf5c5" +
+            "2b0930daa23de94ce87017ba2d84988d" +
+            "dfc9c58db67aada613c2dd08457941a6");
+
+    /**
+     * Test of update method when encrypting, of class CTRMode.
+     *
+     * Test data taken from NIST SP 800-38A, F.5.5 CTR-AES256.Encrypt
+     */
+    @Test
+    public void testEncrypt() {
+        CTRMode instance = new CTRMode(new AESCipher(KEY), IV);
+        assertArrayEquals(CIPHERTEXT, instance.update(PLAINTEXT));
+    }
+
+    /**
+     * Test of update method when decrypting, of class CTRMode.
+     *
+     * Test data taken from NIST SP 800-38A, F.5.6 CTR-AES256.Decrypt
+     */
+    @Test
+    public void testDecrypt() {
+        CTRMode instance = new CTRMode(new AESCipher(KEY), IV);
+        assertArrayEquals(PLAINTEXT, instance.update(CIPHERTEXT));
+    }
+
+    /**
+     * Test of update method with the bitsliced engine, of class CTRMode.
+     *
+     * Test data taken from NIST SP 800-38A, F.5.5 CTR-AES256.Encrypt
+     */
+    @Test
+    public void testEncrypt_bitsliced() {
+        CTRMode instance = new CTRMode(new AESCipher(KEY, AESCipher.Engine.BITSLICED), IV);
+        assertArrayEquals(CIPHERTEXT, instance.update(PLAINTEXT));
+    }
+
+    /**
+     * Checks that splitting the input into pieces that do not line up with
+     * block boundaries gives the same result as a single call
+     */
+    @Test
+    public void testUpdate_pieces() {
+        CTRMode instance = new CTRMode(new AESCipher(KEY), IV);
+        byte[] result = new byte[PLAINTEXT.length];
+
+        int[] lengths = { 3, 13, 1, 20, 0, 27 };
+        int offset = 0;
+        for (int length : lengths) {
+            instance.update(PLAINTEXT, offset, length, result, offset);
+            offset += length;
+        }
+
+        assertArrayEquals(CIPHERTEXT, result);
+    }
+
+    /**
+     * Checks that large inputs processed in parallel give the same result as
+     * processing them on a single thread
+     */
+    @Test
+    public void testUpdate_parallel() {
+        byte[] input = new byte[(CTRMode.BLOCKS_PER_TASK * 5 + 3) * AESCipher.BLOCK_SIZE + 7];
+        new Random(38).nextBytes(input);
+
+        //Start just below a carry out of the low 64 bits of the counter
+        byte[] iv = Hex.decode("00000000000000fffffffffffffffff0");
+        AESCipher cipher = new AESCipher(KEY);
+
+        ForkJoinPool sequentialPool = new ForkJoinPool(1);
+        ForkJoinPool parallelPool = new ForkJoinPool(4);
+        try {
+            byte[] expResult = new CTRMode(cipher, iv, sequentialPool).update(input);
+            byte[] result = new CTRMode(cipher, iv, parallelPool).update(input);
+            assertArrayEquals(expResult, result);
+
+            byte[] expected = new byte[AESCipher.BLOCK_SIZE];
+            byte[] counter = Hex.decode("00000000000001000000000000000000");
+            cipher.encryptBlock(counter, 0, expected, 0);
+            for (int i = 0; i < AESCipher.BLOCK_SIZE; ++i) {
+                expected[i] ^= input[16 * AESCipher.BLOCK_SIZE + i];
+            }
+            assertArrayEquals(expected, Arrays.copyOfRange(result, 16 * AESCipher.BLOCK_SIZE, 17 * AESCipher.BLOCK_SIZE));
+        }
+        finally {
+            sequentialPool.shutdown();
+            parallelPool.shutdown();
+        }
+    }
+
+    /**
+     * Test of seek method, of class CTRMode.
+     *
+     * Test data taken from NIST SP 800-38A, F.5.5 CTR-AES256.Encrypt
+     */
+    @Test
+    public void testSeek() {
+        CTRMode instance = new CTRMode(new AESCipher(KEY), IV);
+        instance.seek(37);
+
+        byte[] result = new byte[PLAINTEXT.length - 37];
+        instance.update(PLAINTEXT, 37, result.length, result, 0);
+
+        assertArrayEquals(Arrays.copyOfRange(CIPHERTEXT, 37, CIPHERTEXT.length), result);
+    }
+
+}
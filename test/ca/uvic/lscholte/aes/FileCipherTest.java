@@ -0,0 +1,119 @@
+package ca.uvic.lscholte.aes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the FileCipher class
+ *
+ * @author lscholte
+ */
+public class FileCipherTest {
+
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] IV = new byte[16];
+
+    static {
+        Random random = new Random(800);
+        random.nextBytes(KEY);
+        random.nextBytes(IV);
+    }
+
+    private Path plaintext;
+    private Path ciphertext;
+    private Path decrypted;
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        plaintext = Files.createTempFile("plaintext", ".bin");
+        ciphertext = Files.createTempFile("ciphertext", ".bin");
+        decrypted = Files.createTempFile("decrypted", ".bin");
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        Files.deleteIfExists(plaintext);
+        Files.deleteIfExists(ciphertext);
+        Files.deleteIfExists(decrypted);
+    }
+
+    /**
+     * Checks that a file spanning many windows, with a length that is not a
+     * multiple of the block size, matches counter mode on the whole input
+     */
+    @Test
+    public void testEncrypt_windows() throws IOException {
+        byte[] data = new byte[10 * 4096 + 100];
+        new Random(1).nextBytes(data);
+        Files.write(plaintext, data);
+
+        AESCipher cipher = new AESCipher(KEY);
+        FileCipher instance = new FileCipher(cipher, pool, 4096);
+        instance.encrypt(plaintext, ciphertext, IV);
+
+        byte[] expResult = new CTRMode(cipher, IV).update(data);
+        assertArrayEquals(expResult, Files.readAllBytes(ciphertext));
+
+        instance.decrypt(ciphertext, decrypted, IV);
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+
+    /**
+     * Checks that an existing destination is replaced rather than partly
+     * overwritten
+     */
+    @Test
+    public void testEncrypt_replacesDestination() throws IOException {
+        byte[] data = new byte[37];
+        new Random(2).nextBytes(data);
+        Files.write(plaintext, data);
+        Files.write(ciphertext, new byte[1000]);
+
+        new FileCipher(new AESCipher(KEY)).encrypt(plaintext, ciphertext, IV);
+
+        assertEquals(data.length, Files.size(ciphertext));
+    }
+
+    /**
+     * Checks that a file given as both the source and the destination, by
+     * different paths, is encrypted and decrypted in place rather than
+     * truncated
+     */
+    @Test
+    public void testEncrypt_inPlace() throws IOException {
+        byte[] data = new byte[10 * 4096 + 100];
+        new Random(3).nextBytes(data);
+        Files.write(plaintext, data);
+        Path alias = plaintext.getParent().resolve(".").resolve(plaintext.getFileName());
+
+        AESCipher cipher = new AESCipher(KEY);
+        FileCipher instance = new FileCipher(cipher, pool, 4096);
+        instance.encrypt(plaintext, alias, IV);
+        assertArrayEquals(new CTRMode(cipher, IV).update(data), Files.readAllBytes(plaintext));
+
+        instance.decrypt(plaintext, plaintext, IV);
+        assertArrayEquals(data, Files.readAllBytes(plaintext));
+    }
+
+    @Test
+    public void testEncrypt_empty() throws IOException {
+        new FileCipher(new AESCipher(KEY)).encrypt(plaintext, ciphertext, IV);
+        assertEquals(0, Files.size(ciphertext));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowSize() {
+        new FileCipher(new AESCipher(KEY), pool, 1000);
+    }
+
+}
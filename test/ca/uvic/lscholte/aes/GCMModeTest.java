@@ -0,0 +1,150 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the GCMMode class
+ *
+ * Test data taken from test cases 13 to 18 of "The Galois/Counter Mode of
+ * Operation (GCM)" by McGrew and Viega, which are the AES-256 cases used by
+ * NIST SP 800-38D
+ *
+ * @author lscholte
+ */
+public class GCMModeTest {
+
+    private static final String KEY = "feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308";
+
+    private static final String PLAINTEXT =
+            "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72" +
+            "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b39";
+
+    private static final String AAD = "feedfacedeadbeeffeedfacedeadbeefabaddad2";
+
+    /**
+     * Test case 13: no plaintext and no AAD
+     */
+    @Test
+    public void testEncrypt_empty() throws AEADBadTagException {
+        byte[] result = encrypt(
+                "0000000000000000000000000000000000000000000000000000000000000000",
+                "000000000000000000000000", "", "");
+        assertArrayEquals(Hex.decode("530f8afbc74536b9a963b4f1c4cb738b"), result);
+    }
+
+    /**
+     * Test case 14: one block of plaintext and no AAD
+     */
+    @Test
+    public void testEncrypt_oneBlock() throws AEADBadTagException {
+        byte[] result = encrypt(
+                "0000000000000000000000000000000000000000000000000000000000000000",
+                "000000000000000000000000", "00000000000000000000000000000000", "");
+        assertArrayEquals(Hex.decode(
+                "cea7403d4d606b6e074ec5d3baf39d18" + "d0d1c8a799996bf0265b98b5d48ab919"), result);
+    }
+
+    /**
+     * Test case 15: four blocks of plaintext and no AAD
+     */
+    @Test
+    public void testEncrypt_noAAD() throws AEADBadTagException {
+        byte[] result = encrypt(KEY, "cafebabefacedbaddecaf888",
+                "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72" +
+                "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255", "");
+        assertArrayEquals(Hex.decode(
+                "522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa" +
+                "8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662898015ad" +
+                "b094dac5d93471bdec1a502270e3cc6c"), result);
+    }
+
+    /**
+     * Test case 16: a partial final block and AAD
+     */
+    @Test
+    public void testEncrypt_AAD() throws AEADBadTagException {
+        byte[] result = encrypt(KEY, "cafebabefacedbaddecaf888", PLAINTEXT, AAD);
+        assertArrayEquals(Hex.decode(
+                "522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa" +
+                "8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662" +
+                "76fc6ece0f4e1768cddf8853bb2d551b"), result);
+    }
+
+    /**
+     * Test case 17: an 8-byte IV
+     */
+    @Test
+    public void testEncrypt_shortIV() throws AEADBadTagException {
+        byte[] result = encrypt(KEY, "cafebabefacedbad", PLAINTEXT, AAD);
+        assertArrayEquals(Hex.decode(
+                "c3762df1ca787d32ae47c13bf19844cbaf1ae14d0b976afac52ff7d79bba9de0" +
+                "feb582d33934a4f0954cc2363bc73f7862ac430e64abe499f47c9b1f" +
+                "3a337dbf46a792c45e454913fe2ea8f2"), result);
+    }
+
+    /**
+     * Test case 18: a 60-byte IV
+     */
+    @Test
+    public void testEncrypt_longIV() throws AEADBadTagException {
+        byte[] result = encrypt(KEY,
+                "9313225df88406e555909c5aff5269aa6a7a9538534f7da1e4c303d2a318a728" +
+                "c3c0c95156809539fcf0e2429a6b525416aedbf5a0de6a57a637b39b",
+                PLAINTEXT, AAD);
+        assertArrayEquals(Hex.decode(
+                "5a8def2f0c9e53f1f75d7853659e2a20eeb2b22aafde6419a058ab4f6f746bf4" +
+                "0fc0c3b780f244452da3ebf1c5d82cdea2418997200ef82e44ae7e3f" +
+                "a44a8266ee1c8eb0c8b5d4cf5ae9f19a"), result);
+    }
+
+    /**
+     * Test of decrypting with update called on pieces that do not line up
+     * with block boundaries, using test case 16
+     */
+    @Test
+    public void testDecrypt_pieces() throws AEADBadTagException {
+        AESCipher cipher = new AESCipher(KEY);
+        byte[] iv = Hex.decode("cafebabefacedbaddecaf888");
+        byte[] aad = Hex.decode(AAD);
+        byte[] ciphertext = encrypt(KEY, "cafebabefacedbaddecaf888", PLAINTEXT, AAD);
+
+        GCMMode instance = new GCMMode(cipher, iv, false);
+        instance.updateAAD(aad, 0, 7);
+        instance.updateAAD(aad, 7, aad.length - 7);
+
+        byte[] result = new byte[ciphertext.length];
+        int written = 0;
+        int[] lengths = { 5, 11, 30, 2, 0, 28 };
+        int offset = 0;
+        for (int length : lengths) {
+            written += instance.update(ciphertext, offset, length, result, written);
+            offset += length;
+        }
+        written += instance.doFinal(result, written);
+
+        assertArrayEquals(Hex.decode(PLAINTEXT), Arrays.copyOf(result, written));
+    }
+
+    /**
+     * Checks that a modified ciphertext is rejected
+     */
+    @Test(expected = AEADBadTagException.class)
+    public void testDecrypt_badTag() throws AEADBadTagException {
+        byte[] ciphertext = encrypt(KEY, "cafebabefacedbaddecaf888", PLAINTEXT, AAD);
+        ciphertext[3] ^= 1;
+
+        GCMMode instance = new GCMMode(new AESCipher(KEY), Hex.decode("cafebabefacedbaddecaf888"), false);
+        instance.updateAAD(Hex.decode(AAD));
+        instance.doFinal(ciphertext);
+    }
+
+    private static byte[] encrypt(String key, String iv, String plaintext, String aad) throws AEADBadTagException {
+        GCMMode instance = new GCMMode(new AESCipher(key), Hex.decode(iv), true);
+        instance.updateAAD(Hex.decode(aad));
+        return instance.doFinal(Hex.decode(plaintext));
+    }
+
+}
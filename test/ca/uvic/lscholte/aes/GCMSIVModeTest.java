@@ -0,0 +1,199 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the GCMSIVMode class
+ *
+ * Test data taken from appendices A, C.2 and C.3 of RFC 8452
+ *
+ * @author lscholte
+ */
+public class GCMSIVModeTest {
+
+    private static final String KEY = "0100000000000000000000000000000000000000000000000000000000000000";
+
+    private static final String NONCE = "030000000000000000000000";
+
+    /**
+     * Test of the Polyval class, using the example from appendix A
+     */
+    @Test
+    public void testPolyval() {
+        Polyval polyval = new Polyval(Hex.decode("25629347589242761d31f826ba4b757b"), 0);
+        byte[] x = Hex.decode("4f4f95668c83dfb6401762bb2d01a262" + "d1a24ddd2721d006bbe45f20d3c9f362");
+        polyval.update(x, 0, x.length);
+
+        byte[] result = new byte[16];
+        polyval.digest(result, 0);
+        assertArrayEquals(Hex.decode("f7a3b47b846119fae5b7866cf5e5b77e"), result);
+    }
+
+    /**
+     * Appendix C.2: no plaintext and no AAD
+     */
+    @Test
+    public void testEncrypt_empty() throws AEADBadTagException {
+        check(KEY, NONCE, "", "", "07f5f4169bbf55a8400cd47ea6fd400f");
+    }
+
+    /**
+     * Appendix C.2: a partial block of plaintext
+     */
+    @Test
+    public void testEncrypt_partialBlock() throws AEADBadTagException {
+        check(KEY, NONCE, "", "0100000000000000", "c2ef328e5c71c83b843122130f7364b761e0b97427e3df28");
+        check(KEY, NONCE, "", "010000000000000000000000", "9aab2aeb3faa0a34aea8e2b18ca50da9ae6559e48fd10f6e5c9ca17e");
+    }
+
+    /**
+     * Appendix C.2: whole blocks of plaintext
+     */
+    @Test
+    public void testEncrypt_wholeBlocks() throws AEADBadTagException {
+        check(KEY, NONCE, "", "01000000000000000000000000000000",
+                "85a01b63025ba19b7fd3ddfc033b3e76c9eac6fa700942702e90862383c6c366");
+        check(KEY, NONCE, "", "01000000000000000000000000000000" + "02000000000000000000000000000000",
+                "4a6a9db4c8c6549201b9edb53006cba821ec9cf850948a7c86c68ac7539d027f" +
+                "e819e63abcd020b006a976397632eb5d");
+    }
+
+    /**
+     * Appendix C.2: AAD and plaintext
+     */
+    @Test
+    public void testEncrypt_AAD() throws AEADBadTagException {
+        check(KEY, NONCE, "01", "0200000000000000", "1de22967237a813291213f267e3b452f02d01ae33e4ec854");
+    }
+
+    /**
+     * Appendix C.3: the little-endian counter wraps around to zero without
+     * carrying into the rest of the counter block
+     */
+    @Test
+    public void testEncrypt_counterWrap() throws AEADBadTagException {
+        String key = "0000000000000000000000000000000000000000000000000000000000000000";
+        String nonce = "000000000000000000000000";
+        check(key, nonce, "", "000000000000000000000000000000004db923dc793ee6497c76dcc03a98e108",
+                "f3f80f2cf0cb2dd9c5984fcda908456cc537703b5ba70324a6793a7bf218d3ea" +
+                "ffffffff000000000000000000000000");
+        check(key, nonce, "", "eb3640277c7ffd1303c7a542d02d3e4c0000000000000000",
+                "18ce4f0b8cb4d0cac65fea8f79257b20888e53e72299e56d" +
+                "ffffffff000000000000000000000000");
+    }
+
+    /**
+     * A message large enough for counter mode to split across the pool gives
+     * the same result as a single thread, and decrypts in place
+     */
+    @Test
+    public void testEncrypt_parallel() throws AEADBadTagException {
+        byte[] plaintext = new byte[5 * CTRMode.BLOCKS_PER_TASK * 16 + 7];
+        new Random(8452).nextBytes(plaintext);
+        byte[] nonce = Hex.decode(NONCE);
+        byte[] aad = Hex.decode("0102030405");
+        AESCipher cipher = new AESCipher(KEY);
+
+        ForkJoinPool sequential = new ForkJoinPool(1);
+        ForkJoinPool parallel = new ForkJoinPool(4);
+        try {
+            byte[] expResult = new GCMSIVMode(cipher, AESCipher.Engine.TABLE, sequential).encrypt(nonce, aad, plaintext);
+            GCMSIVMode instance = new GCMSIVMode(cipher, AESCipher.Engine.BITSLICED, parallel);
+            byte[] buffer = Arrays.copyOf(plaintext, plaintext.length + GCMSIVMode.TAG_LENGTH);
+            instance.encrypt(nonce, aad, buffer, 0, plaintext.length, buffer, 0);
+            assertArrayEquals(expResult, buffer);
+
+            assertEquals(plaintext.length, instance.decrypt(nonce, aad, buffer, 0, buffer.length, buffer, 0));
+            assertArrayEquals(plaintext, Arrays.copyOf(buffer, plaintext.length));
+        }
+        finally {
+            sequential.shutdown();
+            parallel.shutdown();
+        }
+    }
+
+    /**
+     * A tampered message is rejected and no plaintext is left in the output
+     */
+    @Test
+    public void testDecrypt_tampered() {
+        GCMSIVMode instance = new GCMSIVMode(new AESCipher(KEY));
+        byte[] nonce = Hex.decode(NONCE);
+        byte[] ciphertext = instance.encrypt(nonce, new byte[3], new byte[40]);
+        ciphertext[0] ^= 1;
+
+        byte[] output = new byte[40];
+        Arrays.fill(output, (byte) 1);
+        try {
+            instance.decrypt(nonce, new byte[3], ciphertext, 0, ciphertext.length, output, 0);
+            fail("Expected an AEADBadTagException");
+        }
+        catch (AEADBadTagException e) {
+            assertArrayEquals(new byte[40], output);
+        }
+    }
+
+    /**
+     * The message key is expanded into the same per-thread array every time,
+     * and that array is zeroed and released after each call, including one
+     * that fails
+     */
+    @Test
+    public void testMessageKey_zeroed() throws AEADBadTagException {
+        GCMSIVMode instance = new GCMSIVMode(new AESCipher(KEY));
+        byte[] nonce = Hex.decode(NONCE);
+        byte[] ciphertext = instance.encrypt(nonce, new byte[0], new byte[40]);
+        Scratch scratch = Scratch.get();
+        int[] words = scratch.messageKey;
+        assertArrayEquals(new int[KeySchedule.WORDS], words);
+        assertFalse(scratch.messageKeyInUse);
+
+        instance.decrypt(nonce, new byte[0], ciphertext);
+        ciphertext[0] ^= 1;
+        try {
+            instance.decrypt(nonce, new byte[0], ciphertext);
+            fail("Expected an AEADBadTagException");
+        }
+        catch (AEADBadTagException e) {
+            assertSame(words, scratch.messageKey);
+            assertArrayEquals(new int[KeySchedule.WORDS], words);
+            assertFalse(scratch.messageKeyInUse);
+        }
+    }
+
+    /**
+     * The AAD is authenticated
+     */
+    @Test(expected = AEADBadTagException.class)
+    public void testDecrypt_wrongAAD() throws AEADBadTagException {
+        GCMSIVMode instance = new GCMSIVMode(new AESCipher(KEY));
+        byte[] nonce = Hex.decode(NONCE);
+        byte[] ciphertext = instance.encrypt(nonce, Hex.decode("01"), new byte[20]);
+        instance.decrypt(nonce, Hex.decode("02"), ciphertext);
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testDecrypt_short() throws AEADBadTagException {
+        new GCMSIVMode(new AESCipher(KEY)).decrypt(Hex.decode(NONCE), new byte[0], new byte[15]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncrypt_badNonce() {
+        new GCMSIVMode(new AESCipher(KEY)).encrypt(new byte[16], new byte[0], new byte[16]);
+    }
+
+    private void check(String key, String nonce, String aad, String plaintext, String result) throws AEADBadTagException {
+        for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+            GCMSIVMode instance = new GCMSIVMode(new AESCipher(key, engine), engine, ForkJoinPool.commonPool());
+            byte[] ciphertext = instance.encrypt(Hex.decode(nonce), Hex.decode(aad), Hex.decode(plaintext));
+            assertArrayEquals(engine.name(), Hex.decode(result), ciphertext);
+            assertArrayEquals(engine.name(), Hex.decode(plaintext), instance.decrypt(Hex.decode(nonce), Hex.decode(aad), ciphertext));
+        }
+    }
+
+}
@@ -30,16 +30,47 @@ public class GaloisFieldTest {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Checks the table-driven multiply method against the loop for every
+     * pair of bytes
+     */
+    @Test
+    public void testMultiply_exhaustive() {
+        for (int a = 0; a < 256; ++a) {
+            for (int b = 0; b < 256; ++b) {
+                byte expResult = GaloisField.multiplyLoop((byte) a, (byte) b);
+                assertEquals(expResult, GaloisField.multiply((byte) a, (byte) b));
+            }
+        }
+    }
+
+    /**
+     * Checks the tables of products by constants against the loop for every
+     * byte
+     */
+    @Test
+    public void testMulTables() {
+        for (int i = 0; i < 256; ++i) {
+            byte a = (byte) i;
+            assertEquals(GaloisField.multiplyLoop(a, (byte) 2), GaloisField.mul2(a));
+            assertEquals(GaloisField.multiplyLoop(a, (byte) 3), GaloisField.mul3(a));
+            assertEquals(GaloisField.multiplyLoop(a, (byte) 9), GaloisField.mul9(a));
+            assertEquals(GaloisField.multiplyLoop(a, (byte) 11), GaloisField.mul11(a));
+            assertEquals(GaloisField.multiplyLoop(a, (byte) 13), GaloisField.mul13(a));
+            assertEquals(GaloisField.multiplyLoop(a, (byte) 14), GaloisField.mul14(a));
+        }
+    }
+
     /**
      * Test of add method, of class GaloisField.
      */
     @Test
     public void testAdd() {
         byte a = 5, b = 3, c = 12, d = 127;
-        byte expResult = (byte) (a ^ b ^ c ^ d);
         
-        byte result = GaloisField.add(a, b, c, d);
-        assertEquals(expResult, result);
+        assertEquals((byte) (a ^ b), GaloisField.add(a, b));
+        assertEquals((byte) (a ^ b ^ c), GaloisField.add(a, b, c));
+        assertEquals((byte) (a ^ b ^ c ^ d), GaloisField.add(a, b, c, d));
     }
     
 }
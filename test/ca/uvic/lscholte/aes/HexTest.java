@@ -0,0 +1,79 @@
+package ca.uvic.lscholte.aes;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the Hex class
+ *
+ * @author lscholte
+ */
+public class HexTest {
+
+    /**
+     * Test of decode method, of class Hex.
+     */
+    @Test
+    public void testDecode() {
+        byte[] expResult = new byte[] { 0x00, 0x1f, (byte) 0xa0, (byte) 0xff, 0x7e };
+
+        assertArrayEquals(expResult, Hex.decode("001fA0fF7e"));
+        assertArrayEquals(new byte[0], Hex.decode(""));
+    }
+
+    /**
+     * Test of decode method with caller-provided output, of class Hex.
+     */
+    @Test
+    public void testDecode_offsets() {
+        byte[] out = new byte[4];
+
+        assertEquals(2, Hex.decode("xxABCDxx", 2, 6, out, 1));
+        assertArrayEquals(new byte[] { 0, (byte) 0xab, (byte) 0xcd, 0 }, out);
+
+        assertEquals(1, Hex.decode("0102".toCharArray(), 2, 2, out, 3));
+        assertEquals(2, out[3]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecode_oddLength() {
+        Hex.decode("abc");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecode_invalidDigit() {
+        Hex.decode("0g");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecode_nonAscii() {
+        Hex.decode("0\u0660");
+    }
+
+    /**
+     * Test of encode method, of class Hex.
+     */
+    @Test
+    public void testEncode() {
+        assertEquals("001FA0FF7E", Hex.encode(new byte[] { 0x00, 0x1f, (byte) 0xa0, (byte) 0xff, 0x7e }));
+
+        char[] out = new char[6];
+        assertEquals(4, Hex.encode(new byte[] { 1, 2, 3 }, 1, 2, out, 1));
+        assertArrayEquals(new char[] { 0, '0', '2', '0', '3', 0 }, out);
+    }
+
+    /**
+     * Checks that every byte value survives encoding and decoding
+     */
+    @Test
+    public void testRoundTrip() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) i;
+        }
+
+        assertArrayEquals(bytes, Hex.decode(Hex.encode(bytes)));
+        assertArrayEquals(bytes, Hex.decode(Hex.encode(bytes).toLowerCase()));
+    }
+
+}
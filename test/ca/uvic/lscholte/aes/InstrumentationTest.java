@@ -0,0 +1,155 @@
+package ca.uvic.lscholte.aes;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.crypto.BadPaddingException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the Instrumentation class
+ *
+ * @author lscholte
+ */
+public class InstrumentationTest {
+
+    private boolean wasEnabled;
+
+    @Before
+    public void setUp() {
+        wasEnabled = Instrumentation.isEnabled();
+    }
+
+    @After
+    public void tearDown() {
+        Instrumentation.setEnabled(wasEnabled);
+    }
+
+    @Test
+    public void testDisabled() {
+        Instrumentation.setEnabled(false);
+        AESCipher cipher = new AESCipher(new byte[32]);
+        cipher.encryptBlocks(new byte[64], 0, new byte[64], 0, 4);
+        new CTRMode(cipher, new byte[16]).update(new byte[100]);
+
+        CipherMetrics metrics = cipher.metrics();
+        assertEquals(0, metrics.id());
+        assertEquals(0, metrics.blocksEncrypted());
+        assertEquals(0, metrics.bytesProcessed());
+        assertEquals(0, metrics.keyExpansions());
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        Instrumentation.setEnabled(true);
+        long totalBlocks = Instrumentation.totals().blocksEncrypted();
+        long totalErrors = Instrumentation.totals().errors();
+
+        AESCipher cipher = new AESCipher(new byte[32]);
+        CipherMetrics metrics = cipher.metrics();
+        assertTrue(metrics.id() > 0);
+        assertEquals(1, metrics.keyExpansions());
+        assertTrue(metrics.keySetupNanos() > 0);
+
+        cipher.encryptBlocks(new byte[64], 0, new byte[64], 0, 4);
+        cipher.decrypt(new byte[16]);
+        assertEquals(4, metrics.blocksEncrypted());
+        assertEquals(1, metrics.blocksDecrypted());
+
+        //Counter mode counts its bytes, and its keystream as blocks
+        new CTRMode(cipher, new byte[16]).update(new byte[100]);
+        assertEquals(100, metrics.bytesProcessed());
+        assertEquals(4 + 7, metrics.blocksEncrypted());
+
+        CBCMode cbc = new CBCMode(cipher, new byte[16], false);
+        cbc.update(new byte[32], 0, 32, new byte[32], 0);
+        try {
+            cbc.doFinal(new byte[16], 0);
+            fail("Expected a BadPaddingException");
+        }
+        catch (BadPaddingException e) {
+            //Expected for a block of zeros, which almost never has valid padding
+        }
+        assertEquals(132, metrics.bytesProcessed());
+        assertEquals(1, metrics.errors());
+
+        assertTrue(Instrumentation.totals().blocksEncrypted() - totalBlocks >= 11);
+        assertTrue(Instrumentation.totals().errors() - totalErrors >= 1);
+    }
+
+    @Test
+    public void testCipherFromCache() {
+        Instrumentation.setEnabled(true);
+        long expansions = Instrumentation.totals().keyExpansions();
+
+        KeyScheduleCache cache = new KeyScheduleCache(4);
+        try (KeyScheduleCache.Lease first = cache.acquire(new byte[32]);
+                KeyScheduleCache.Lease second = cache.acquire(new byte[32])) {
+            assertEquals(0, first.cipher().metrics().keyExpansions());
+        }
+        assertTrue(Instrumentation.totals().keyExpansions() - expansions >= 1);
+    }
+
+    @Test
+    public void testRegisterMBean() throws Exception {
+        Instrumentation.setEnabled(true);
+        ObjectName name = Instrumentation.registerMBean();
+        assertEquals(name, Instrumentation.registerMBean());
+
+        new AESCipher(new byte[32]).encrypt(new byte[16]);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue((Long) server.getAttribute(name, "BlocksEncrypted") >= 1);
+        assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Instrumentation.setEnabled(true);
+        Path file = Files.createTempFile("aes", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("ca.uvic.lscholte.aes.KeySetup").withoutThreshold();
+            recording.enable("ca.uvic.lscholte.aes.BulkOperation").withoutThreshold();
+            recording.start();
+
+            AESCipher cipher = new AESCipher(new byte[32], AESCipher.Engine.BITSLICED);
+            new XTSMode(cipher, new AESCipher(new byte[32]), 32).decrypt(5, new byte[64]);
+
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            boolean keySetup = false;
+            boolean bulk = false;
+            for (RecordedEvent event : events) {
+                if (event.getLong("cipherId") != cipher.metrics().id()) {
+                    continue;
+                }
+                if (event.getEventType().getName().equals("ca.uvic.lscholte.aes.KeySetup")) {
+                    assertEquals("BITSLICED", event.getString("engine"));
+                    keySetup = true;
+                }
+                else {
+                    assertEquals("XTS", event.getString("mode"));
+                    assertTrue(event.getBoolean("decrypting"));
+                    assertEquals(64, event.getLong("bytes"));
+                    bulk = true;
+                }
+            }
+            assertTrue(keySetup);
+            assertTrue(bulk);
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+}
@@ -1,6 +1,5 @@
 package ca.uvic.lscholte.aes;
 
-import javax.xml.bind.DatatypeConverter;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -11,12 +10,14 @@ import org.junit.Test;
  */
 public class KeyExpansionTest {
 
+    private static final byte[] KEY = Hex.decode("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+
     /**
-     * Test of formatKey method, of class KeyExpansion.
+     * Test of expandKey method, of class KeyExpansion. The first NK words are
+     * the key itself, four bytes at a time
      */
     @Test
-    public void testFormatKey() {
-        
+    public void testExpandKey_keyWords() {
         byte[] key = new byte[] {
             0, 1, 2, 3, 4, 5, 6, 7,
             8, 9, 10, 11, 12, 13, 14, 15,
@@ -24,141 +25,72 @@ public class KeyExpansionTest {
             24, 25, 26, 27, 28, 29, 30, 31
         };
         
-        byte[][] expResult = new byte[][] {
-            { 0, 1, 2, 3 },
-            { 4, 5, 6, 7 },
-            { 8, 9, 10, 11 },
-            { 12, 13, 14, 15 },
-            { 16, 17, 18, 19 },
-            { 20, 21, 22, 23 },
-            { 24, 25, 26, 27 },
-            { 28, 29, 30, 31 }
+        int[] expResult = new int[] {
+            0x00010203, 0x04050607, 0x08090a0b, 0x0c0d0e0f,
+            0x10111213, 0x14151617, 0x18191a1b, 0x1c1d1e1f
         };
         
-        byte[][] result = KeyExpansion.formatKey(key);
+        int[] result = KeyExpansion.expandKey(key);
         
-        assertArrayEquals(expResult, result);
+        assertEquals(60, result.length);
+        for (int i = 0; i < expResult.length; ++i) {
+            assertEquals(expResult[i], result[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpandKey_shortKey() {
+        KeyExpansion.expandKey(new byte[16]);
     }
 
     /**
-     * Test of generateRoundKeys method, of class KeyExpansion.
+     * Test of expandKey method, of class KeyExpansion.
      *
      * Test data taken from http://csrc.nist.gov/publications/fips/fips197/fips-197.pdf
      */
     @Test
-    public void testGenerateRoundKeys() {        
-        byte[] key = DatatypeConverter.
-                parseHexBinary("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
-        
-        byte[][][] expResult = new byte[][][] {
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("603deb10"),
-                DatatypeConverter.parseHexBinary("15ca71be"),
-                DatatypeConverter.parseHexBinary("2b73aef0"),
-                DatatypeConverter.parseHexBinary("857d7781"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("1f352c07"),
-                DatatypeConverter.parseHexBinary("3b6108d7"),
-                DatatypeConverter.parseHexBinary("2d9810a3"),
-                DatatypeConverter.parseHexBinary("0914dff4"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("9ba35411"),
-                DatatypeConverter.parseHexBinary("8e6925af"),
-                DatatypeConverter.parseHexBinary("a51a8b5f"),
-                DatatypeConverter.parseHexBinary("2067fcde"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("a8b09c1a"),
-                DatatypeConverter.parseHexBinary("93d194cd"),
-                DatatypeConverter.parseHexBinary("be49846e"),
-                DatatypeConverter.parseHexBinary("b75d5b9a"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("d59aecb8"),
-                DatatypeConverter.parseHexBinary("5bf3c917"),
-                DatatypeConverter.parseHexBinary("fee94248"),
-                DatatypeConverter.parseHexBinary("de8ebe96"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("b5a9328a"),
-                DatatypeConverter.parseHexBinary("2678a647"),
-                DatatypeConverter.parseHexBinary("98312229"),
-                DatatypeConverter.parseHexBinary("2f6c79b3"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("812c81ad"),
-                DatatypeConverter.parseHexBinary("dadf48ba"),
-                DatatypeConverter.parseHexBinary("24360af2"),
-                DatatypeConverter.parseHexBinary("fab8b464"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("98c5bfc9"),
-                DatatypeConverter.parseHexBinary("bebd198e"),
-                DatatypeConverter.parseHexBinary("268c3ba7"),
-                DatatypeConverter.parseHexBinary("09e04214"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("68007bac"),
-                DatatypeConverter.parseHexBinary("b2df3316"),
-                DatatypeConverter.parseHexBinary("96e939e4"),
-                DatatypeConverter.parseHexBinary("6c518d80"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("c814e204"),
-                DatatypeConverter.parseHexBinary("76a9fb8a"),
-                DatatypeConverter.parseHexBinary("5025c02d"),
-                DatatypeConverter.parseHexBinary("59c58239"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("de136967"),
-                DatatypeConverter.parseHexBinary("6ccc5a71"),
-                DatatypeConverter.parseHexBinary("fa256395"),
-                DatatypeConverter.parseHexBinary("9674ee15"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("5886ca5d"),
-                DatatypeConverter.parseHexBinary("2e2f31d7"),
-                DatatypeConverter.parseHexBinary("7e0af1fa"),
-                DatatypeConverter.parseHexBinary("27cf73c3"),
-
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("749c47ab"),
-                DatatypeConverter.parseHexBinary("18501dda"),
-                DatatypeConverter.parseHexBinary("e2757e4f"),
-                DatatypeConverter.parseHexBinary("7401905a"),
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("cafaaae3"),
-                DatatypeConverter.parseHexBinary("e4d59b34"),
-                DatatypeConverter.parseHexBinary("9adf6ace"),
-                DatatypeConverter.parseHexBinary("bd10190d"),
-            },
-            new byte[][] {
-                DatatypeConverter.parseHexBinary("fe4890d1"),
-                DatatypeConverter.parseHexBinary("e6188d0b"),
-                DatatypeConverter.parseHexBinary("046df344"),
-                DatatypeConverter.parseHexBinary("706c631e"),
-            }
-            
+    public void testExpandKey() {
+        int[] expResult = new int[] {
+            0x603deb10, 0x15ca71be, 0x2b73aef0, 0x857d7781,
+            0x1f352c07, 0x3b6108d7, 0x2d9810a3, 0x0914dff4,
+            0x9ba35411, 0x8e6925af, 0xa51a8b5f, 0x2067fcde,
+            0xa8b09c1a, 0x93d194cd, 0xbe49846e, 0xb75d5b9a,
+            0xd59aecb8, 0x5bf3c917, 0xfee94248, 0xde8ebe96,
+            0xb5a9328a, 0x2678a647, 0x98312229, 0x2f6c79b3,
+            0x812c81ad, 0xdadf48ba, 0x24360af2, 0xfab8b464,
+            0x98c5bfc9, 0xbebd198e, 0x268c3ba7, 0x09e04214,
+            0x68007bac, 0xb2df3316, 0x96e939e4, 0x6c518d80,
+            0xc814e204, 0x76a9fb8a, 0x5025c02d, 0x59c58239,
+            0xde136967, 0x6ccc5a71, 0xfa256395, 0x9674ee15,
+            0x5886ca5d, 0x2e2f31d7, 0x7e0af1fa, 0x27cf73c3,
+            0x749c47ab, 0x18501dda, 0xe2757e4f, 0x7401905a,
+            0xcafaaae3, 0xe4d59b34, 0x9adf6ace, 0xbd10190d,
+            0xfe4890d1, 0xe6188d0b, 0x046df344, 0x706c631e
         };
                 
-        byte[][][] result = KeyExpansion.generateRoundKeys(KeyExpansion.formatKey(key));
+        int[] result = KeyExpansion.expandKey(KEY);
         
         assertArrayEquals(expResult, result);
     }
+
+    /**
+     * Test of generateDecryptionWords method, of class KeyExpansion.
+     */
+    @Test
+    public void testGenerateDecryptionWords() {
+        KeySchedule schedule = KeySchedule.expand(KEY);
+        byte[][][] roundKeys = schedule.toRoundKeys();
+        byte[][][] result = schedule.toDecryptionRoundKeys();
+        
+        assertEquals(roundKeys.length, result.length);
+        assertArrayEquals(roundKeys[0], result[0]);
+        assertArrayEquals(roundKeys[roundKeys.length - 1], result[result.length - 1]);
+        for (int i = 1; i < roundKeys.length - 1; ++i) {
+            assertArrayEquals(AESAlgorithms.inverseMixColumns(roundKeys[i]), result[i]);
+            
+            //InvMixColumns undoes MixColumns, so this recovers the original key
+            assertArrayEquals(roundKeys[i], AESAlgorithms.mixColumns(result[i]));
+        }
+    }
     
 }
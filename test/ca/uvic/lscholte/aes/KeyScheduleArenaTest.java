@@ -0,0 +1,160 @@
+package ca.uvic.lscholte.aes;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the KeyScheduleArena class
+ *
+ * @author lscholte
+ */
+public class KeyScheduleArenaTest {
+
+    private static final byte[] PLAINTEXT = Hex.decode("00112233445566778899aabbccddeeff");
+
+    /**
+     * Test of expand method, of class KeyScheduleArena.
+     *
+     * Test data taken from http://csrc.nist.gov/publications/fips/fips197/fips-197.pdf
+     */
+    @Test
+    public void testExpand() {
+        byte[] keys = new byte[5 + 3 * 32];
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+        System.arraycopy(key, 0, keys, 5 + 32, 32);
+
+        KeyScheduleArena arena = KeyScheduleArena.expand(keys, 5, 3);
+        assertEquals(3, arena.size());
+
+        AESCipher cipher = arena.cipher(1);
+        byte[] ciphertext = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
+        assertArrayEquals(ciphertext, cipher.encrypt(PLAINTEXT));
+        assertArrayEquals(PLAINTEXT, cipher.decrypt(ciphertext));
+    }
+
+    /**
+     * Every engine gives the same result from an arena as from a key
+     * expanded on its own
+     */
+    @Test
+    public void testCipher_engines() {
+        byte[] keys = random(40 * 32, 1);
+        KeyScheduleArena arena = KeyScheduleArena.expand(keys, 0, 40);
+
+        for (int i = 0; i < arena.size(); ++i) {
+            byte[] key = new byte[32];
+            System.arraycopy(keys, i * 32, key, 0, 32);
+            byte[] expected = new AESCipher(key).encrypt(PLAINTEXT);
+            for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+                AESCipher cipher = arena.cipher(i, engine);
+                assertArrayEquals(engine.name(), expected, cipher.encrypt(PLAINTEXT));
+                assertArrayEquals(engine.name(), PLAINTEXT, cipher.decrypt(expected));
+            }
+        }
+    }
+
+    /**
+     * Keys in a direct buffer give the same schedules as keys in an array,
+     * and the buffer is consumed
+     */
+    @Test
+    public void testExpand_directBuffer() {
+        byte[] keys = random(10 * 32, 2);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(keys.length + 7);
+        buffer.position(7);
+        buffer.put(keys);
+        buffer.position(7);
+
+        KeyScheduleArena fromBuffer = KeyScheduleArena.expand(buffer);
+        KeyScheduleArena fromArray = KeyScheduleArena.expand(ByteBuffer.wrap(keys));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(10, fromBuffer.size());
+        for (int i = 0; i < fromBuffer.size(); ++i) {
+            assertArrayEquals(fromArray.cipher(i).encrypt(PLAINTEXT), fromBuffer.cipher(i).encrypt(PLAINTEXT));
+        }
+    }
+
+    /**
+     * A batch large enough to be split across the pool gives the same
+     * schedules as expanding each key on its own
+     */
+    @Test
+    public void testExpand_parallel() {
+        int count = 4 * KeyScheduleArena.KEYS_PER_TASK + 3;
+        byte[] keys = random(count * 32, 3);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            KeyScheduleArena arena = KeyScheduleArena.expand(keys, 0, count, pool);
+            for (int i = 0; i < count; i += 97) {
+                byte[] key = new byte[32];
+                System.arraycopy(keys, i * 32, key, 0, 32);
+                KeySchedule expected = KeySchedule.expand(key);
+                KeySchedule actual = arena.get(i);
+                for (int j = 0; j < KeySchedule.WORDS; ++j) {
+                    assertEquals(expected.encryptionWords[j], actual.encryptionWords[actual.offset + j]);
+                    assertEquals(expected.decryptionWords[j], actual.decryptionWords[actual.offset + j]);
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test of destroy method, of class KeyScheduleArena.
+     */
+    @Test
+    public void testDestroy() {
+        KeyScheduleArena arena = KeyScheduleArena.expand(random(4 * 32, 4), 0, 4);
+        KeySchedule schedule = arena.get(3);
+        arena.destroy();
+
+        for (int word : schedule.encryptionWords) {
+            assertEquals(0, word);
+        }
+        for (int word : schedule.decryptionWords) {
+            assertEquals(0, word);
+        }
+    }
+
+    /**
+     * Destroying one schedule only zeroes its own part of the arena
+     */
+    @Test
+    public void testDestroy_schedule() {
+        byte[] keys = random(3 * 32, 5);
+        KeyScheduleArena arena = KeyScheduleArena.expand(keys, 0, 3);
+        byte[] expected = arena.cipher(2).encrypt(PLAINTEXT);
+
+        arena.get(1).destroy();
+        assertArrayEquals(expected, arena.cipher(2).encrypt(PLAINTEXT));
+        assertNotEquals(0, arena.get(0).encryptionWords[0]);
+        assertEquals(0, arena.get(1).encryptionWords[KeySchedule.WORDS]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpand_shortArray() {
+        KeyScheduleArena.expand(new byte[64], 1, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpand_partialKey() {
+        KeyScheduleArena.expand(ByteBuffer.allocate(48));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGet_outOfRange() {
+        KeyScheduleArena.expand(new byte[64], 0, 2).get(2);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,177 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the KeyScheduleCache class
+ *
+ * @author lscholte
+ */
+public class KeyScheduleCacheTest {
+
+    /**
+     * Test of acquire method, of class KeyScheduleCache.
+     */
+    @Test
+    public void testAcquire() {
+        KeyScheduleCache instance = new KeyScheduleCache(4);
+        byte[] key = key(1);
+
+        try (KeyScheduleCache.Lease first = instance.acquire(key);
+                KeyScheduleCache.Lease second = instance.acquire(key.clone())) {
+            assertSame(first.schedule(), second.schedule());
+        }
+        assertEquals(1, instance.misses());
+        assertEquals(1, instance.hits());
+        assertEquals(1, instance.size());
+    }
+
+    /**
+     * Test of cipher method, of class KeyScheduleCache.Lease.
+     *
+     * Test data taken from http://csrc.nist.gov/publications/fips/fips197/fips-197.pdf
+     */
+    @Test
+    public void testCipher() {
+        KeyScheduleCache instance = new KeyScheduleCache(4);
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+        byte[] plaintext = Hex.decode("00112233445566778899aabbccddeeff");
+        byte[] ciphertext = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
+
+        for (int i = 0; i < 3; ++i) {
+            try (KeyScheduleCache.Lease lease = instance.acquire(key)) {
+                AESCipher cipher = lease.cipher();
+                assertArrayEquals(ciphertext, cipher.encrypt(plaintext));
+                assertArrayEquals(plaintext, cipher.decrypt(ciphertext));
+            }
+        }
+        assertEquals(2, instance.hits());
+    }
+
+    /**
+     * Checks that the least recently used key is evicted, and that an evicted
+     * schedule is zeroed only once its last lease is released
+     */
+    @Test
+    public void testEviction() {
+        KeyScheduleCache instance = new KeyScheduleCache(2);
+
+        KeySchedule first;
+        try (KeyScheduleCache.Lease lease = instance.acquire(key(1))) {
+            first = lease.schedule();
+        }
+        instance.acquire(key(2)).close();
+        instance.acquire(key(1)).close();
+        instance.acquire(key(3)).close();
+
+        assertEquals(1, instance.evictions());
+        assertEquals(2, instance.size());
+
+        //Key 2 was the least recently used, so key 1 is still cached
+        try (KeyScheduleCache.Lease lease = instance.acquire(key(1))) {
+            assertSame(first, lease.schedule());
+        }
+
+        KeyScheduleCache.Lease third = instance.acquire(key(3));
+        KeySchedule schedule = third.schedule();
+        instance.acquire(key(4)).close();
+        instance.acquire(key(5)).close();
+        assertFalse(isZero(schedule));
+
+        third.close();
+        assertTrue(isZero(schedule));
+        third.close();
+    }
+
+    /**
+     * Checks that a cipher keeps working while other keys evict its schedule
+     * and the cache is cleared, for as long as its lease is held
+     */
+    @Test
+    public void testEviction_whileEncrypting() throws Exception {
+        KeyScheduleCache instance = new KeyScheduleCache(1);
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+        byte[] plaintext = Hex.decode("00112233445566778899aabbccddeeff");
+        byte[] ciphertext = Hex.decode("8ea2b7ca516745bfeafc49904b496089");
+
+        KeyScheduleCache.Lease lease = instance.acquire(key);
+        KeySchedule schedule = lease.schedule();
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread encrypting = new Thread(() -> {
+            try {
+                AESCipher cipher = lease.cipher();
+                for (int i = 0; i < 20000; ++i) {
+                    assertArrayEquals(ciphertext, cipher.encrypt(plaintext));
+                    started.countDown();
+                }
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+            finally {
+                started.countDown();
+                lease.close();
+            }
+        });
+        encrypting.start();
+
+        started.await();
+        for (int i = 0; encrypting.isAlive(); ++i) {
+            instance.acquire(key(i)).close();
+            instance.clear();
+        }
+        encrypting.join();
+
+        assertNull(failure.get());
+        assertTrue(instance.evictions() > 0);
+        assertTrue(isZero(schedule));
+    }
+
+    /**
+     * Test of clear method, of class KeyScheduleCache.
+     */
+    @Test
+    public void testClear() {
+        KeyScheduleCache instance = new KeyScheduleCache(8);
+        KeySchedule schedule;
+        try (KeyScheduleCache.Lease lease = instance.acquire(key(1))) {
+            schedule = lease.schedule();
+        }
+        instance.acquire(key(2)).close();
+
+        instance.clear();
+
+        assertEquals(0, instance.size());
+        assertEquals(2, instance.evictions());
+        assertTrue(isZero(schedule));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSchedule_released() {
+        KeyScheduleCache.Lease lease = new KeyScheduleCache(1).acquire(key(1));
+        lease.close();
+        lease.schedule();
+    }
+
+    private static boolean isZero(KeySchedule schedule) {
+        for (int i = 0; i < KeySchedule.WORDS; ++i) {
+            if (schedule.encryptionWords[schedule.offset + i] != 0 || schedule.decryptionWords[schedule.offset + i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; ++i) {
+            key[i] = (byte) (seed * 31 + i);
+        }
+        return key;
+    }
+
+}
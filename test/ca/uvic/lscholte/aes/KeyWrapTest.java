@@ -0,0 +1,228 @@
+package ca.uvic.lscholte.aes;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the KeyWrap class
+ *
+ * Test data taken from sections 4.4 to 4.6 of RFC 3394, which wrap keys
+ * under a 256-bit key-encryption key. The RFC 5649 examples use a 192-bit
+ * key-encryption key, so the padded variant is checked against the JDK
+ * instead
+ *
+ * @author lscholte
+ */
+public class KeyWrapTest {
+
+    private static final byte[] KEK = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+
+    private static final String KEY_DATA = "00112233445566778899aabbccddeeff000102030405060708090a0b0c0d0e0f";
+
+    /**
+     * Section 4.4: wrap 128 bits of key data
+     */
+    @Test
+    public void testWrap_128() throws AEADBadTagException {
+        check(KEY_DATA.substring(0, 32), "64e8c3f9ce0f5ba263e9777905818a2a93c8191e7d6e8ae7");
+    }
+
+    /**
+     * Section 4.5: wrap 192 bits of key data
+     */
+    @Test
+    public void testWrap_192() throws AEADBadTagException {
+        check(KEY_DATA.substring(0, 48), "a8f9bc1612c68b3ff6e6f4fbe30e71e4769c8b80a32cb8958cd5d17d6b254da1");
+    }
+
+    /**
+     * Section 4.6: wrap 256 bits of key data
+     */
+    @Test
+    public void testWrap_256() throws AEADBadTagException {
+        check(KEY_DATA, "28c9f404c4b810f4cbccb35cfb87f8263f5786e2d80ed326cbc7f0e71a99f43bfb988b9b7a02dd21");
+    }
+
+    /**
+     * Both variants give the same result as the JDK for every key length
+     * they accept, with every engine
+     */
+    @Test
+    public void testWrap_jdk() throws GeneralSecurityException {
+        byte[] key = random(64, 1);
+        for (KeyWrap.Variant variant : KeyWrap.Variant.values()) {
+            Cipher jce = Cipher.getInstance("AES/" + variant + "/NoPadding");
+            jce.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEK, "AES"));
+            for (AESCipher.Engine engine : AESCipher.Engine.values()) {
+                KeyWrap instance = new KeyWrap(new AESCipher(KEK, engine), variant);
+                for (int length = variant == KeyWrap.Variant.KW ? 16 : 1; length <= 64; length += variant == KeyWrap.Variant.KW ? 8 : 1) {
+                    byte[] input = Arrays.copyOf(key, length);
+                    byte[] expResult = jce.doFinal(input);
+
+                    byte[] result = instance.wrap(input);
+                    assertArrayEquals(variant + " " + engine + " " + length, expResult, result);
+                    assertArrayEquals(input, instance.unwrap(result));
+                }
+            }
+        }
+    }
+
+    /**
+     * RFC 5649 wraps a key of at most 8 bytes as a single block holding the
+     * alternative IV, the length and the padded key
+     */
+    @Test
+    public void testWrap_paddedSingleBlock() {
+        AESCipher cipher = new AESCipher(KEK);
+        KeyWrap instance = new KeyWrap(cipher, KeyWrap.Variant.KWP);
+
+        byte[] result = instance.wrap(Hex.decode("466f7250617369"));
+        assertEquals(16, result.length);
+        assertArrayEquals(Hex.decode("a65959a600000007466f725061736900"), cipher.decrypt(result));
+    }
+
+    /**
+     * Wrapping and unwrapping in place leaves the rest of the buffer alone
+     */
+    @Test
+    public void testWrap_inPlace() throws AEADBadTagException {
+        KeyWrap instance = new KeyWrap(new AESCipher(KEK), KeyWrap.Variant.KWP);
+        byte[] buffer = new byte[64];
+        Arrays.fill(buffer, (byte) 0x55);
+        byte[] key = random(21, 2);
+        System.arraycopy(key, 0, buffer, 5, key.length);
+
+        assertEquals(32, instance.wrap(buffer, 5, key.length));
+        assertArrayEquals(instance.wrap(key), Arrays.copyOfRange(buffer, 5, 37));
+        assertEquals(0x55, buffer[4]);
+        assertEquals(0x55, buffer[37]);
+
+        assertEquals(21, instance.unwrap(buffer, 5, 32));
+        assertArrayEquals(key, Arrays.copyOfRange(buffer, 5, 26));
+        assertArrayEquals(new byte[11], Arrays.copyOfRange(buffer, 26, 37));
+        assertEquals(0x55, buffer[4]);
+        assertEquals(0x55, buffer[37]);
+    }
+
+    /**
+     * A corrupted wrapped key fails the integrity check and is zeroed
+     */
+    @Test
+    public void testUnwrap_corrupted() {
+        for (KeyWrap.Variant variant : KeyWrap.Variant.values()) {
+            KeyWrap instance = new KeyWrap(new AESCipher(KEK), variant);
+            int shortest = variant == KeyWrap.Variant.KW ? 24 : 16;
+            for (int length : new int[] {shortest, 40}) {
+                byte[] wrapped = instance.wrap(random(length - 8, 3));
+                wrapped[length - 1] ^= 1;
+                try {
+                    instance.unwrap(wrapped, 0, wrapped.length);
+                    fail("Expected an AEADBadTagException");
+                }
+                catch (AEADBadTagException e) {
+                    assertArrayEquals(new byte[wrapped.length], wrapped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unwrapping under RFC 5649 rejects a length that leaves too much
+     * padding, even though the block decrypts correctly
+     */
+    @Test(expected = AEADBadTagException.class)
+    public void testUnwrap_badLength() throws AEADBadTagException {
+        AESCipher cipher = new AESCipher(KEK);
+        byte[] wrapped = cipher.encrypt(Hex.decode("a65959a600000000466f725061736900"));
+        new KeyWrap(cipher, KeyWrap.Variant.KWP).unwrap(wrapped);
+    }
+
+    /**
+     * Test of unwrapAll method, of class KeyWrap. Enough keys are used to
+     * split the work across the pool, and a few are corrupted
+     */
+    @Test
+    public void testUnwrapAll() {
+        int count = 2 * KeyWrap.KEYS_PER_TASK + KeyWrap.KEYS_PER_STEP + 5;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (KeyWrap.Variant variant : KeyWrap.Variant.values()) {
+                KeyWrap instance = new KeyWrap(new AESCipher(KEK, AESCipher.Engine.BITSLICED), variant, pool);
+                byte[] keys = random(count * 32, 4);
+                byte[] buffer = new byte[3 + count * 40];
+                for (int i = 0; i < count; ++i) {
+                    System.arraycopy(keys, i * 32, buffer, 3 + i * 40, 32);
+                    instance.wrap(buffer, 3 + i * 40, 32);
+                }
+                buffer[3 + 7 * 40] ^= 1;
+                buffer[3 + (count - 1) * 40 + 39] ^= 1;
+
+                int[] lengths = instance.unwrapAll(buffer, 3, 40, count);
+                for (int i = 0; i < count; ++i) {
+                    byte[] slot = Arrays.copyOfRange(buffer, 3 + i * 40, 3 + (i + 1) * 40);
+                    if (i == 7 || i == count - 1) {
+                        assertEquals(-1, lengths[i]);
+                        assertArrayEquals(new byte[40], slot);
+                    }
+                    else {
+                        assertEquals(32, lengths[i]);
+                        assertArrayEquals(Arrays.copyOfRange(keys, i * 32, (i + 1) * 32), Arrays.copyOf(slot, 32));
+                        assertArrayEquals(new byte[8], Arrays.copyOfRange(slot, 32, 40));
+                    }
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Unwrapping a run of single-block wrapped keys
+     */
+    @Test
+    public void testUnwrapAll_singleBlock() {
+        KeyWrap instance = new KeyWrap(new AESCipher(KEK), KeyWrap.Variant.KWP);
+        byte[] buffer = new byte[50 * 16];
+        for (int i = 0; i < 50; ++i) {
+            buffer[i * 16] = (byte) i;
+            instance.wrap(buffer, i * 16, 1);
+        }
+
+        int[] lengths = instance.unwrapAll(buffer, 0, 16, 50);
+        for (int i = 0; i < 50; ++i) {
+            assertEquals(1, lengths[i]);
+            assertEquals(i, buffer[i * 16]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrap_partialSemiblock() {
+        new KeyWrap(new AESCipher(KEK), KeyWrap.Variant.KW).wrap(new byte[20]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnwrapAll_shortBuffer() {
+        new KeyWrap(new AESCipher(KEK), KeyWrap.Variant.KW).unwrapAll(new byte[100], 0, 40, 3);
+    }
+
+    private void check(String key, String wrapped) throws AEADBadTagException {
+        KeyWrap instance = new KeyWrap(new AESCipher(KEK), KeyWrap.Variant.KW);
+        assertArrayEquals(Hex.decode(wrapped), instance.wrap(Hex.decode(key)));
+        assertArrayEquals(Hex.decode(key), instance.unwrap(Hex.decode(wrapped)));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+}
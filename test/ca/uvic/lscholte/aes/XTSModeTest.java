@@ -0,0 +1,125 @@
+package ca.uvic.lscholte.aes;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the XTSMode class
+ *
+ * @author lscholte
+ */
+public class XTSModeTest {
+
+    private static final byte[] KEY = Hex.decode(
+            "2718281828459045235360287471352662497757247093699959574966967627" +
+            "3141592653589793238462643383279502884197169399375105820974944592");
+
+    private static final byte[] CIPHERTEXT = Hex.decode(
+            "1c3b3a102f770386e4836c99e370cf9bea00803f5e482357a4ae12d414a3e63b" +
+            "5d31e276f8fe4a8d66b317f9ac683f44680a86ac35adfc3345befecb4bb188fd" +
+            "5776926c49a3095eb108fd1098baec70aaa66999a72a82f27d848b21d4a741b0" +
+            "c5cd4d5fff9dac89aeba122961d03a757123e9870f8acf1000020887891429ca" +
+            "2a3e7a7d7df7b10355165c8b9a6d0a7de8b062c4500dc4cd120c0f7418dae3d0" +
+            "b5781c34803fa75421c790dfe1de1834f280d7667b327f6c8cd7557e12ac3a0f" +
+            "93ec05c52e0493ef31a12d3d9260f79a289d6a379bc70c50841473d1a8cc81ec" +
+            "583e9645e07b8d9670655ba5bbcfecc6dc3966380ad8fecb17b6ba02469a020a" +
+            "84e18e8f84252070c13e9f1f289be54fbc481457778f616015e1327a02b140f1" +
+            "505eb309326d68378f8374595c849d84f4c333ec4423885143cb47bd71c5edae" +
+            "9be69a2ffeceb1bec9de244fbe15992b11b77c040f12bd8f6a975a44a0f90c29" +
+            "a9abc3d4d893927284c58754cce294529f8614dcd2aba991925fedc4ae74ffac" +
+            "6e333b93eb4aff0479da9a410e4450e0dd7ae4c6e2910900575da401fc07059f" +
+            "645e8b7e9bfdef33943054ff84011493c27b3429eaedb4ed5376441a77ed4385" +
+            "1ad77f16f541dfd269d50d6a5f14fb0aab1cbb4c1550be97f7ab4066193c4caa" +
+            "773dad38014bd2092fa755c824bb5e54c4f36ffda9fcea70b9c6e693e148c151");
+
+    /**
+     * Test of encrypt and decrypt methods, of class XTSMode.
+     *
+     * Test data taken from IEEE Std 1619-2007, XTS-AES-256 vector 10
+     */
+    @Test
+    public void testVector10() {
+        byte[] plaintext = new byte[512];
+        for (int i = 0; i < plaintext.length; ++i) {
+            plaintext[i] = (byte) i;
+        }
+        XTSMode instance = new XTSMode(KEY, 512);
+
+        assertArrayEquals(CIPHERTEXT, instance.encrypt(0xff, plaintext));
+        assertArrayEquals(plaintext, instance.decrypt(0xff, CIPHERTEXT));
+    }
+
+    /**
+     * Test of ciphertext stealing for sectors that are not a multiple of the
+     * block size, of class XTSMode.
+     *
+     * Expected values computed with the aes-256-xts cipher in OpenSSL
+     */
+    @Test
+    public void testCiphertextStealing() {
+        String[] expected = {
+            "305df6e1882b1413520605508a29976c50",
+            "50ea7b0e72da7912892bcd0c7496baa4d9ee3fc67d7b94b2d2d697014b0c6441b346523120af299dac5b9960ae"
+        };
+        for (String hex : expected) {
+            byte[] ciphertext = Hex.decode(hex);
+            byte[] plaintext = new byte[ciphertext.length];
+            for (int i = 0; i < plaintext.length; ++i) {
+                plaintext[i] = (byte) i;
+            }
+            XTSMode instance = new XTSMode(KEY, plaintext.length);
+
+            assertArrayEquals(ciphertext, instance.encrypt(0x123456789aL, plaintext));
+            assertArrayEquals(plaintext, instance.decrypt(0x123456789aL, ciphertext));
+        }
+    }
+
+    /**
+     * Checks that each sector can be decrypted on its own, in place, after
+     * encrypting many sectors in parallel
+     */
+    @Test
+    public void testParallel() {
+        int sectorSize = 520;
+        int sectors = XTSMode.BYTES_PER_TASK / sectorSize * 5 + 3;
+        byte[] input = new byte[sectors * sectorSize];
+        new Random(1619).nextBytes(input);
+
+        ForkJoinPool sequentialPool = new ForkJoinPool(1);
+        ForkJoinPool parallelPool = new ForkJoinPool(4);
+        try {
+            byte[] expResult = new XTSMode(KEY, sectorSize, sequentialPool).encrypt(-2, input);
+            XTSMode instance = new XTSMode(KEY, sectorSize, parallelPool);
+            byte[] result = instance.encrypt(-2, input);
+            assertArrayEquals(expResult, result);
+
+            for (int s = 0; s < sectors; s += 97) {
+                int offset = s * sectorSize;
+                instance.decrypt(s - 2, result, offset, sectorSize, result, offset);
+                assertArrayEquals(Arrays.copyOfRange(input, offset, offset + sectorSize),
+                        Arrays.copyOfRange(result, offset, offset + sectorSize));
+            }
+
+            instance.decrypt(-2, expResult, 0, expResult.length, expResult, 0);
+            assertArrayEquals(input, expResult);
+        }
+        finally {
+            sequentialPool.shutdown();
+            parallelPool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKey_equalHalves() {
+        new XTSMode(new byte[64], 512);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncrypt_partialSector() {
+        new XTSMode(KEY, 512).encrypt(0, new byte[1000]);
+    }
+
+}
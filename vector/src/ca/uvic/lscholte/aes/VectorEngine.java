@@ -0,0 +1,208 @@
+package ca.uvic.lscholte.aes;
+
+import static ca.uvic.lscholte.aes.AESConstants.NB;
+import static ca.uvic.lscholte.aes.AESConstants.NR;
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * An implementation of AES-256 that uses the JDK Vector API to process as
+ * many blocks at once as fit in the widest vector register. Each lane holds
+ * one byte of the state, laid out exactly as the blocks appear in memory:
+ * <ul>
+ * <li>ShiftRows is a fixed byte shuffle within each block</li>
+ * <li>SubBytes is a table lookup by permutation: the low nibble of each byte
+ * selects from sixteen 16-byte rows of the S-box, and the high nibble picks
+ * the row</li>
+ * <li>MixColumns rotates bytes within each column and uses a lane-wise xtime
+ * for the multiplication by 2</li>
+ * </ul>
+ *
+ * This class needs the jdk.incubator.vector module and is compiled from its
+ * own source root. {@link AESCipher} loads it by name and uses
+ * {@link TableEngine} instead when it is not available. Single blocks, and
+ * blocks left over after filling whole vectors, also go to the table engine.
+ * @author lscholte
+ */
+final class VectorEngine implements AESEngine {
+
+    private static final VectorSpecies<Byte> SPECIES =
+            ByteVector.SPECIES_PREFERRED.length() >= 16 ? ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_128;
+
+    /**
+     * The number of blocks that fit in one vector
+     */
+    static final int BLOCKS_PER_VECTOR = SPECIES.length() / 16;
+
+    private static final VectorShuffle<Byte> SHIFT_ROWS = shuffle((c, r) -> NB * ((c + r) % NB) + r);
+    private static final VectorShuffle<Byte> INVERSE_SHIFT_ROWS = shuffle((c, r) -> NB * ((c - r + NB) % NB) + r);
+    private static final VectorShuffle<Byte> ROTATE_1 = shuffle((c, r) -> NB * c + (r + 1) % NB);
+    private static final VectorShuffle<Byte> ROTATE_2 = shuffle((c, r) -> NB * c + (r + 2) % NB);
+    private static final VectorShuffle<Byte> ROTATE_3 = shuffle((c, r) -> NB * c + (r + 3) % NB);
+
+    private static final ByteVector[] SBOX_ROWS = rows(TableEngine.SBOX);
+    private static final ByteVector[] INVERSE_SBOX_ROWS = rows(TableEngine.INVERSE_SBOX);
+
+    private final TableEngine scalar;
+
+    /**
+     * The round keys in the order of the encryption rounds, each repeated
+     * once for every block in a vector
+     */
+    private final ByteVector[] roundKeys = new ByteVector[NR + 1];
+
+    /**
+     * @param schedule The expanded key to use
+     */
+    VectorEngine(KeySchedule schedule) {
+        scalar = new TableEngine(schedule);
+
+        byte[] bytes = new byte[SPECIES.length()];
+        for (int round = 0; round <= NR; ++round) {
+            for (int i = 0; i < bytes.length; ++i) {
+                int word = schedule.encryptionWords[schedule.offset + round * NB + (i & 15) / NB];
+                bytes[i] = (byte) (word >>> (24 - 8 * (i & 3)));
+            }
+            roundKeys[round] = ByteVector.fromArray(SPECIES, bytes, 0);
+        }
+        Arrays.fill(bytes, (byte) 0);
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        scalar.encryptBlock(in, inOff, out, outOff);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        scalar.decryptBlock(in, inOff, out, outOff);
+    }
+
+    @Override
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        int i = 0;
+        for (; blocks - i >= BLOCKS_PER_VECTOR; i += BLOCKS_PER_VECTOR) {
+            encrypt(ByteVector.fromArray(SPECIES, in, inOff + i * 16)).intoArray(out, outOff + i * 16);
+        }
+        scalar.encryptBlocks(in, inOff + i * 16, out, outOff + i * 16, blocks - i);
+    }
+
+    @Override
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        int i = 0;
+        for (; blocks - i >= BLOCKS_PER_VECTOR; i += BLOCKS_PER_VECTOR) {
+            decrypt(ByteVector.fromArray(SPECIES, in, inOff + i * 16)).intoArray(out, outOff + i * 16);
+        }
+        scalar.decryptBlocks(in, inOff + i * 16, out, outOff + i * 16, blocks - i);
+    }
+
+    /**
+     * Vectors cannot be overwritten, so this only drops them and leaves
+     * their contents to the garbage collector
+     */
+    @Override
+    public void destroy() {
+        Arrays.fill(roundKeys, null);
+        scalar.destroy();
+    }
+
+    private ByteVector encrypt(ByteVector state) {
+        state = state.lanewise(VectorOperators.XOR, roundKeys[0]);
+        for (int round = 1; round < NR; ++round) {
+            state = mixColumns(subBytes(state, SBOX_ROWS).rearrange(SHIFT_ROWS))
+                    .lanewise(VectorOperators.XOR, roundKeys[round]);
+        }
+        return subBytes(state, SBOX_ROWS).rearrange(SHIFT_ROWS)
+                .lanewise(VectorOperators.XOR, roundKeys[NR]);
+    }
+
+    private ByteVector decrypt(ByteVector state) {
+        state = state.lanewise(VectorOperators.XOR, roundKeys[NR]);
+        for (int round = NR - 1; round > 0; --round) {
+            state = subBytes(state.rearrange(INVERSE_SHIFT_ROWS), INVERSE_SBOX_ROWS)
+                    .lanewise(VectorOperators.XOR, roundKeys[round]);
+            state = inverseMixColumns(state);
+        }
+        return subBytes(state.rearrange(INVERSE_SHIFT_ROWS), INVERSE_SBOX_ROWS)
+                .lanewise(VectorOperators.XOR, roundKeys[0]);
+    }
+
+    /**
+     * Looks up every byte in a 256-entry table split into sixteen rows
+     */
+    private static ByteVector subBytes(ByteVector state, ByteVector[] rows) {
+        VectorShuffle<Byte> column = state.and((byte) 0x0F).toShuffle();
+        ByteVector row = state.lanewise(VectorOperators.LSHR, 4);
+
+        ByteVector result = rows[0].rearrange(column);
+        for (int r = 1; r < rows.length; ++r) {
+            result = result.blend(rows[r].rearrange(column), row.eq((byte) r));
+        }
+        return result;
+    }
+
+    /**
+     * Computes 2a ^ 3b ^ c ^ d for each column (a, b, c, d) and its
+     * rotations, written as 2(a ^ b) ^ b ^ c ^ d
+     */
+    private static ByteVector mixColumns(ByteVector state) {
+        ByteVector r1 = state.rearrange(ROTATE_1);
+        ByteVector r2 = state.rearrange(ROTATE_2);
+        ByteVector r3 = state.rearrange(ROTATE_3);
+        return xtime(state.lanewise(VectorOperators.XOR, r1))
+                .lanewise(VectorOperators.XOR, r1)
+                .lanewise(VectorOperators.XOR, r2)
+                .lanewise(VectorOperators.XOR, r3);
+    }
+
+    /**
+     * The InvMixColumns matrix is the MixColumns matrix multiplied by the
+     * circulant matrix (05 00 04 00), so multiply by that and then reuse
+     * {@link #mixColumns(ByteVector)}
+     */
+    private static ByteVector inverseMixColumns(ByteVector state) {
+        ByteVector t = xtime(xtime(state.lanewise(VectorOperators.XOR, state.rearrange(ROTATE_2))));
+        return mixColumns(state.lanewise(VectorOperators.XOR, t));
+    }
+
+    /**
+     * Multiplies every byte by 2 in GF(2^8)
+     */
+    private static ByteVector xtime(ByteVector x) {
+        ByteVector reduce = x.lanewise(VectorOperators.ASHR, 7).and((byte) 0x1B);
+        return x.lanewise(VectorOperators.LSHL, 1).lanewise(VectorOperators.XOR, reduce);
+    }
+
+    /**
+     * Builds a shuffle that moves bytes within each block
+     * @param source Gives the index within a block of the byte that ends up
+     * in column c, row r
+     */
+    private static VectorShuffle<Byte> shuffle(IntBinaryOperator source) {
+        int[] indexes = new int[SPECIES.length()];
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i] = (i & ~15) + source.applyAsInt((i & 15) / NB, i & 3);
+        }
+        return VectorShuffle.fromArray(SPECIES, indexes, 0);
+    }
+
+    /**
+     * Splits a 256-entry table into sixteen rows, each repeated once for
+     * every block in a vector
+     */
+    private static ByteVector[] rows(int[] table) {
+        ByteVector[] rows = new ByteVector[16];
+        byte[] bytes = new byte[SPECIES.length()];
+        for (int r = 0; r < rows.length; ++r) {
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = (byte) table[r * 16 + (i & 15)];
+            }
+            rows[r] = ByteVector.fromArray(SPECIES, bytes, 0);
+        }
+        return rows;
+    }
+}